@@ -0,0 +1,99 @@
+package edu.soton.ecs.arxivscraper;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// ArxivDbWrapper against a temp SQLite file pre-loaded with the sample feed.
+// Inserts grow the table over the run, so compare runs of the same length.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DbBenchmark {
+
+    @Param({"WAL"})
+    public String journalMode;
+
+    @Param({"NORMAL"})
+    public String synchronous;
+
+    private File dir;
+    private ArxivDbWrapper dbwrapper;
+    private List<ArxivEntry> entries;
+    private List<ArxivEntry> freshEntries;
+    private long counter = 0;
+    private int lookup = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("arxivscraper-bench").toFile();
+        dbwrapper = new ArxivDbWrapper(new File(dir, "bench.sqlite").getPath(), "arxiv_raw", journalMode, synchronous);
+        dbwrapper.setCodec(new ArxivEntryCodec(true, 256));
+        dbwrapper.initalize();
+        entries = SampleFeed.entries();
+        dbwrapper.upsertEntries(entries);
+
+        // A separate copy whose ids are rewritten before every insert
+        freshEntries = SampleFeed.entries();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        dbwrapper.close();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    // A page of unseen papers: version lookups, encoding and a batched insert in one transaction
+    @Benchmark
+    public List<ArxivEntry> upsertNewPage() throws Exception {
+        long page = counter++;
+        for (int i = 0; i < freshEntries.size(); i++) {
+            freshEntries.get(i).setId("http://arxiv.org/abs/bench." + page + "." + i + "v1");
+        }
+        return dbwrapper.upsertEntries(freshEntries);
+    }
+
+    // The common poll: every entry is already stored, so only version lookups run
+    @Benchmark
+    public List<ArxivEntry> upsertSeenPage() throws Exception {
+        return dbwrapper.upsertEntries(entries);
+    }
+
+    @Benchmark
+    public int getStoredVersion() throws Exception {
+        ArxivEntry arxivEntry = entries.get(lookup++ % entries.size());
+        return dbwrapper.getStoredVersion(ArxivId.parse(arxivEntry.getId()).getBaseId());
+    }
+
+    @Benchmark
+    public boolean isExtracted() throws Exception {
+        return dbwrapper.isExtracted(entries.get(lookup++ % entries.size()).getId());
+    }
+
+    // One autocommitted row per call
+    @Benchmark
+    public int defaultInsert() throws Exception {
+        ArxivEntry arxivEntry = freshEntries.get(0);
+        arxivEntry.setId("http://arxiv.org/abs/single." + counter++ + "v1");
+        return dbwrapper.defaultInsert(arxivEntry.getId(), arxivEntry);
+    }
+
+}
@@ -0,0 +1,72 @@
+package edu.soton.ecs.arxivscraper;
+
+import com.rometools.rome.feed.synd.SyndEntry;
+import com.rometools.rome.feed.synd.SyndFeed;
+import com.rometools.rome.io.SyndFeedInput;
+import com.rometools.rome.io.XmlReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Whole-page parse of the sample feed, and mapping of ROME entries on their own
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FeedParseBenchmark {
+
+    private byte[] sample;
+    private List<SyndEntry> syndEntries;
+    private ArxivScraper romeScraper;
+    private ArxivScraper staxScraper;
+
+    @Setup
+    public void setup() throws Exception {
+        sample = SampleFeed.bytes();
+        syndEntries = new SyndFeedInput().build(new XmlReader(new ByteArrayInputStream(sample))).getEntries();
+        romeScraper = new ArxivScraper("http://localhost", "10", "");
+        romeScraper.setParser("rome");
+        staxScraper = new ArxivScraper("http://localhost", "10", "");
+        staxScraper.setParser("stax");
+    }
+
+    // SyndFeed construction only
+    @Benchmark
+    public SyndFeed romeBuild() throws Exception {
+        return new SyndFeedInput().build(new XmlReader(new ByteArrayInputStream(sample)));
+    }
+
+    // ROME parse plus syndEntryToArxivEntry, as scrape() does with parser = rome
+    @Benchmark
+    public ArxivFeed romeParse() throws Exception {
+        return romeScraper.parse(new ByteArrayInputStream(sample));
+    }
+
+    @Benchmark
+    public ArxivFeed staxParse() throws Exception {
+        return staxScraper.parse(new ByteArrayInputStream(sample));
+    }
+
+    // Includes the BeanUtils.copyProperties link copy
+    @Benchmark
+    public void syndEntryToArxivEntry(Blackhole blackhole) {
+        for (SyndEntry syndEntry : syndEntries) {
+            blackhole.consume(ArxivScraper.syndEntryToArxivEntry(syndEntry));
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+package edu.soton.ecs.arxivscraper;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// ArxivLogStore in a temp directory pre-loaded with the sample feed; the same operations as DbBenchmark
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogStoreBenchmark {
+
+    @Param({"true", "false"})
+    public boolean sync;
+
+    private File dir;
+    private ArxivLogStore store;
+    private List<ArxivEntry> entries;
+    private List<ArxivEntry> freshEntries;
+    private long counter = 0;
+    private int lookup = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("arxivscraper-bench").toFile();
+        store = new ArxivLogStore(dir.getPath());
+        store.setSync(sync);
+        store.setCompaction(0.5, 0);
+        store.setCodec(new ArxivEntryCodec(true, 256));
+        store.initalize();
+        entries = SampleFeed.entries();
+        store.upsertEntries(entries);
+
+        freshEntries = SampleFeed.entries();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        store.close();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    public List<ArxivEntry> upsertNewPage() throws Exception {
+        long page = counter++;
+        for (int i = 0; i < freshEntries.size(); i++) {
+            freshEntries.get(i).setId("http://arxiv.org/abs/bench." + page + "." + i + "v1");
+        }
+        return store.upsertEntries(freshEntries);
+    }
+
+    @Benchmark
+    public List<ArxivEntry> upsertSeenPage() throws Exception {
+        return store.upsertEntries(entries);
+    }
+
+    @Benchmark
+    public int getStoredVersion() throws Exception {
+        ArxivEntry arxivEntry = entries.get(lookup++ % entries.size());
+        return store.getStoredVersion(ArxivId.parse(arxivEntry.getId()).getBaseId());
+    }
+
+}
@@ -0,0 +1,62 @@
+package edu.soton.ecs.arxivscraper;
+
+import edu.soton.ecs.arxivscraper.util.ByteArrayBuffer;
+import org.apache.commons.lang3.SerializationUtils;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+// Stored bytes per row of each blob encoding over the sample feed, next to SerializationBenchmark's timings:
+//   java -cp target/benchmarks.jar edu.soton.ecs.arxivscraper.RowSizes
+public class RowSizes {
+
+    public static void main(String[] args) throws Exception {
+        List<ArxivEntry> entries = SampleFeed.entries();
+        ArxivEntrySerializer serializer = new ArxivEntrySerializer();
+        ByteArrayBuffer jsonBuffer = new ByteArrayBuffer(4096);
+        ArxivEntryCodec codec = new ArxivEntryCodec(false, 256);
+        ArxivEntryCodec deflateCodec = new ArxivEntryCodec(true, 256);
+        // As the sqlite backend stores them, with taxonomy categories as dictionary codes
+        CategoryDictionary dictionary = new CategoryDictionary();
+        for (ArxivEntry arxivEntry : entries) {
+            for (String category : dictionary.findUnknown(arxivEntry.getCategories())) {
+                dictionary.put(dictionary.size(), category);
+            }
+        }
+        ArxivEntryCodec dictionaryCodec = new ArxivEntryCodec(true, 256);
+        dictionaryCodec.setCategoryDictionary(dictionary);
+
+        long javaBytes = print("Java serialization", entries, -1,
+                arxivEntry -> SerializationUtils.serialize(arxivEntry).length);
+        print("JSON output", entries, javaBytes, arxivEntry -> {
+            try {
+                serializer.serialize(arxivEntry, jsonBuffer);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            return jsonBuffer.size();
+        });
+        print("Codec", entries, javaBytes, arxivEntry -> codec.encode(arxivEntry).length);
+        print("Codec, deflated summary", entries, javaBytes, arxivEntry -> deflateCodec.encode(arxivEntry).length);
+        print("Codec, deflated summary, category codes", entries, javaBytes,
+                arxivEntry -> dictionaryCodec.encode(arxivEntry).length);
+    }
+
+    // Returns the total bytes; percentages are of javaBytes
+    private static long print(String format, List<ArxivEntry> entries, long javaBytes,
+                              Function<ArxivEntry, Integer> size) {
+        int[] sizes = new int[entries.size()];
+        long total = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = size.apply(entries.get(i));
+            total += sizes[i];
+        }
+        Arrays.sort(sizes);
+        System.out.printf("%-42s %8d bytes/row  median %6d  max %6d  %s%n", format, total / sizes.length,
+                sizes[sizes.length / 2], sizes[sizes.length - 1],
+                javaBytes > 0 ? String.format("%3d%% of Java serialization", total * 100 / javaBytes) : "");
+        return total;
+    }
+
+}
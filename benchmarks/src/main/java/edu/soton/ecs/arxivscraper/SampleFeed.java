@@ -0,0 +1,25 @@
+package edu.soton.ecs.arxivscraper;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+// etc/sample.xml, copied onto the benchmark classpath by the build
+public class SampleFeed {
+
+    public static byte[] bytes() throws IOException {
+        try (InputStream is = SampleFeed.class.getResourceAsStream("/sample.xml");) {
+            if (is == null)
+                throw new IOException("sample.xml is not on the classpath");
+            return IOUtils.toByteArray(is);
+        }
+    }
+
+    public static List<ArxivEntry> entries() throws Exception {
+        return new ArxivFeedParser().parse(new ByteArrayInputStream(bytes())).getEntries();
+    }
+
+}
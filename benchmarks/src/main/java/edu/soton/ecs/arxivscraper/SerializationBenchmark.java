@@ -0,0 +1,126 @@
+package edu.soton.ecs.arxivscraper;
+
+import com.google.gson.Gson;
+import edu.soton.ecs.arxivscraper.util.ByteArrayBuffer;
+import org.apache.commons.lang3.SerializationUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Per-page cost of the JSON output and of the stored blob encodings, over every entry in the sample feed
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    private List<ArxivEntry> entries;
+    private Gson gson;
+    private ArxivEntrySerializer serializer;
+    private ByteArrayBuffer jsonBuffer;
+    private ArxivEntryCodec codec;
+    private ArxivEntryCodec deflateCodec;
+    private byte[][] javaSerialized;
+    private byte[][] encoded;
+    private byte[][] deflateEncoded;
+
+    @Setup
+    public void setup() throws Exception {
+        entries = SampleFeed.entries();
+        gson = new Gson();
+        serializer = new ArxivEntrySerializer();
+        jsonBuffer = new ByteArrayBuffer(4096);
+        codec = new ArxivEntryCodec(false, 256);
+        deflateCodec = new ArxivEntryCodec(true, 256);
+        javaSerialized = new byte[entries.size()][];
+        encoded = new byte[entries.size()][];
+        deflateEncoded = new byte[entries.size()][];
+        for (int i = 0; i < entries.size(); i++) {
+            javaSerialized[i] = SerializationUtils.serialize(entries.get(i));
+            encoded[i] = codec.encode(entries.get(i));
+            deflateEncoded[i] = deflateCodec.encode(entries.get(i));
+        }
+    }
+
+    // A new Gson per entry, as output was written before the shared serializer
+    @Benchmark
+    public void gsonNewInstance(Blackhole blackhole) {
+        for (ArxivEntry arxivEntry : entries) {
+            blackhole.consume(new Gson().toJson(arxivEntry));
+        }
+    }
+
+    @Benchmark
+    public void gsonReflective(Blackhole blackhole) {
+        for (ArxivEntry arxivEntry : entries) {
+            blackhole.consume(gson.toJson(arxivEntry));
+        }
+    }
+
+    @Benchmark
+    public void gsonStreaming(Blackhole blackhole) throws IOException {
+        for (ArxivEntry arxivEntry : entries) {
+            serializer.serialize(arxivEntry, jsonBuffer);
+            blackhole.consume(jsonBuffer.size());
+        }
+    }
+
+    // What defaultInsert stores for anything other than an ArxivEntry
+    @Benchmark
+    public void javaSerialize(Blackhole blackhole) {
+        for (ArxivEntry arxivEntry : entries) {
+            blackhole.consume(SerializationUtils.serialize((Serializable) arxivEntry));
+        }
+    }
+
+    @Benchmark
+    public void javaDeserialize(Blackhole blackhole) {
+        for (byte[] raw : javaSerialized) {
+            blackhole.consume(SerializationUtils.deserialize(raw));
+        }
+    }
+
+    @Benchmark
+    public void codecEncode(Blackhole blackhole) {
+        for (ArxivEntry arxivEntry : entries) {
+            blackhole.consume(codec.encode(arxivEntry));
+        }
+    }
+
+    @Benchmark
+    public void codecDecode(Blackhole blackhole) {
+        for (byte[] raw : encoded) {
+            blackhole.consume(codec.decode(raw));
+        }
+    }
+
+    @Benchmark
+    public void codecDeflateEncode(Blackhole blackhole) {
+        for (ArxivEntry arxivEntry : entries) {
+            blackhole.consume(deflateCodec.encode(arxivEntry));
+        }
+    }
+
+    @Benchmark
+    public void codecDeflateDecode(Blackhole blackhole) {
+        for (byte[] raw : deflateEncoded) {
+            blackhole.consume(deflateCodec.decode(raw));
+        }
+    }
+
+}
@@ -0,0 +1,191 @@
+package edu.soton.ecs.arxivscraper;
+
+import edu.soton.ecs.arxivscraper.util.ByteArrayBuffer;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Column oriented export format with per-column compression.
+// File: magic "ARXC", version byte, row groups, footer, int footer length, magic.
+// Row group: int row count, then for each column in COLUMNS order an int raw length, an int compressed
+// length and the zlib compressed values of that column for every row of the group.
+// Footer: int number of row groups, a long file offset for each, long total rows, int number of columns
+// and the column names as modified UTF-8. Ints and longs are big-endian.
+// Values are in the EntryWireFormat encoding, as in ArxivEntryCodec rows.
+public class ArxivColumnarFile {
+
+    public static final List<String> COLUMNS = Arrays.asList("id", "title", "published", "updated", "summary",
+            "authors", "links", "categories", "primaryCategory", "comment", "doi", "journalRef");
+
+    private static final byte[] MAGIC = "ARXC".getBytes(StandardCharsets.US_ASCII);
+    private static final byte VERSION = 1;
+
+    public static void writeHeader(OutputStream out) throws IOException {
+        out.write(MAGIC);
+        out.write(VERSION);
+    }
+
+    public static int headerSize() {
+        return MAGIC.length + 1;
+    }
+
+    public static void writeFooter(OutputStream out, List<Long> rowGroupOffsets, long numRows) throws IOException {
+        ByteArrayBuffer footer = new ByteArrayBuffer(1024);
+        DataOutputStream data = new DataOutputStream(footer);
+        data.writeInt(rowGroupOffsets.size());
+        for (long offset : rowGroupOffsets) {
+            data.writeLong(offset);
+        }
+        data.writeLong(numRows);
+        data.writeInt(COLUMNS.size());
+        for (String column : COLUMNS) {
+            data.writeUTF(column);
+        }
+        data.flush();
+        footer.writeTo(out);
+        new DataOutputStream(out).writeInt(footer.size());
+        out.write(MAGIC);
+    }
+
+    // Buffers the columns of one row group. Holds its own Deflater, so each thread needs its own writer.
+    public static class RowGroupWriter {
+        private final EntryWireFormat.Writer[] columns = new EntryWireFormat.Writer[COLUMNS.size()];
+        private final Deflater deflater;
+        private byte[] compressed = new byte[8192];
+        private int numRows = 0;
+
+        public RowGroupWriter(int level) {
+            deflater = new Deflater(level);
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = new EntryWireFormat.Writer(8192);
+            }
+        }
+
+        public void add(ArxivEntry arxivEntry) {
+            int column = 0;
+            columns[column++].writeString(arxivEntry.getId());
+            columns[column++].writeString(arxivEntry.getTitle());
+            columns[column++].writeDate(arxivEntry.getPublished());
+            columns[column++].writeDate(arxivEntry.getUpdated());
+            columns[column++].writeString(arxivEntry.getSummary());
+            columns[column++].writeStringList(arxivEntry.getAuthors());
+            columns[column++].writeLinks(arxivEntry.getLinks());
+            columns[column++].writeStringList(arxivEntry.getCategories());
+            columns[column++].writeString(arxivEntry.getPrimaryCategory());
+            columns[column++].writeString(arxivEntry.getComment());
+            columns[column++].writeString(arxivEntry.getDoi());
+            columns[column].writeString(arxivEntry.getJournalRef());
+            numRows++;
+        }
+
+        public int getNumRows() {
+            return numRows;
+        }
+
+        // Compresses each column into target and starts a new row group
+        public void writeTo(ByteArrayBuffer target) throws IOException {
+            DataOutputStream data = new DataOutputStream(target);
+            data.writeInt(numRows);
+            for (EntryWireFormat.Writer column : columns) {
+                deflater.reset();
+                deflater.setInput(column.array(), 0, column.size());
+                deflater.finish();
+                int compressedLength = 0;
+                while (!deflater.finished()) {
+                    if (compressedLength == compressed.length)
+                        compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                    compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+                }
+                data.writeInt(column.size());
+                data.writeInt(compressedLength);
+                data.write(compressed, 0, compressedLength);
+                column.reset();
+            }
+            data.flush();
+            numRows = 0;
+        }
+
+        public void close() {
+            deflater.end();
+        }
+    }
+
+    // Reads every row group in order; returns the number of entries
+    public static long read(File file, Consumer<ArxivEntry> consumer) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r");) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.readByte() != VERSION)
+                throw new IOException("Not a columnar export: " + file);
+            in.seek(in.length() - MAGIC.length - 4);
+            int footerLength = in.readInt();
+            in.seek(in.length() - MAGIC.length - 4 - footerLength);
+            int numRowGroups = in.readInt();
+            long[] offsets = new long[numRowGroups];
+            for (int i = 0; i < numRowGroups; i++) {
+                offsets[i] = in.readLong();
+            }
+
+            Inflater inflater = new Inflater();
+            long numRead = 0;
+            try {
+                for (long offset : offsets) {
+                    in.seek(offset);
+                    int numRows = in.readInt();
+                    EntryWireFormat.Reader[] columns = new EntryWireFormat.Reader[COLUMNS.size()];
+                    for (int i = 0; i < columns.length; i++) {
+                        byte[] raw = new byte[in.readInt()];
+                        byte[] compressed = new byte[in.readInt()];
+                        in.readFully(compressed);
+                        inflater.reset();
+                        inflater.setInput(compressed);
+                        try {
+                            if (inflater.inflate(raw) != raw.length)
+                                throw new EOFException("Truncated column " + COLUMNS.get(i));
+                        } catch (DataFormatException e) {
+                            throw new IOException("Corrupt column " + COLUMNS.get(i), e);
+                        }
+                        columns[i] = new EntryWireFormat.Reader(raw, 0);
+                    }
+                    for (int row = 0; row < numRows; row++) {
+                        consumer.accept(readRow(columns));
+                        numRead++;
+                    }
+                }
+            } finally {
+                inflater.end();
+            }
+            return numRead;
+        }
+    }
+
+    private static ArxivEntry readRow(EntryWireFormat.Reader[] columns) {
+        ArxivEntry arxivEntry = new ArxivEntry();
+        int column = 0;
+        arxivEntry.setId(columns[column++].readString());
+        arxivEntry.setTitle(columns[column++].readString());
+        arxivEntry.setPublished(columns[column++].readDate());
+        arxivEntry.setUpdated(columns[column++].readDate());
+        arxivEntry.setSummary(columns[column++].readString());
+        arxivEntry.setAuthors(columns[column++].readStringList());
+        arxivEntry.setLinks(columns[column++].readLinks());
+        arxivEntry.setCategories(columns[column++].readStringList());
+        arxivEntry.setPrimaryCategory(columns[column++].readString());
+        arxivEntry.setComment(columns[column++].readString());
+        arxivEntry.setDoi(columns[column++].readString());
+        arxivEntry.setJournalRef(columns[column].readString());
+        return arxivEntry;
+    }
+
+}
@@ -0,0 +1,387 @@
+package edu.soton.ecs.arxivscraper;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
+import edu.soton.ecs.arxivscraper.util.Metrics;
+import edu.soton.ecs.arxivscraper.util.MqWrapper;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.jms.ConnectionFactory;
+import javax.jms.TextMessage;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Splits polls and backfills into fetch jobs for ArxivWorker nodes, and publishes the entries of their results
+// through its own ingest pipeline, so they are deduplicated, stored and output once, whichever worker fetched them.
+// Only the coordinator reads and writes cursors; they move in the same flush as the entries of the job behind them.
+// At most maxOutstandingJobs are queued or running at once. A job whose result does not arrive within
+// jobTimeoutSeconds is sent again under the same id; whichever copy finishes first counts.
+// With a tokens queue, one rate token is released every tokenIntervalMillis and expires after tokenTtlMillis,
+// so all workers together make at most one request per interval, plus a burst of unused unexpired tokens.
+public class ArxivCoordinator implements AutoCloseable {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    // Results carry entries, whose dates need ArxivEntry's type adapter to survive the trip whatever the locale
+    private static final Gson GSON = ArxivEntrySerializer.GSON;
+
+    private static final Metrics.Counter JOBS_DISPATCHED = Metrics.counter("arxiv_coordinator_jobs_dispatched_total",
+            "Fetch jobs sent to the jobs queue, excluding resends after a timeout");
+    private static final Metrics.Counter JOBS_COMPLETED = Metrics.counter("arxiv_coordinator_jobs_completed_total",
+            "Fetch jobs whose result was received");
+    private static final Metrics.Counter JOBS_FAILED = Metrics.counter("arxiv_coordinator_jobs_failed_total",
+            "Fetch jobs that failed on every delivery");
+    private static final Metrics.Counter JOBS_REDISPATCHED = Metrics.counter("arxiv_coordinator_jobs_redispatched_total",
+            "Fetch jobs sent again after timing out");
+
+    private ConnectionFactory factory;
+    private ArxivStore store;
+    private IngestPipeline pipeline;
+    private List<String> shards;
+
+    private String jobsQueue = "arxiv.jobs.queue";
+    private String resultsQueue = "arxiv.jobs.results";
+    private String tokensQueue = null;
+    private long tokenIntervalMillis = 3000;
+    private long tokenTtlMillis = 6000;
+    private int maxOutstandingJobs = 8;
+    private long jobTimeoutMillis = TimeUnit.MINUTES.toMillis(10);
+    private int pollPageSize = 50;
+    private int pollMaxResults = 50;
+    private int backfillPageSize = 200;
+    private int backfillMaxEmptyPages = 3;
+
+    private final String runId = UUID.randomUUID().toString().substring(0, 8);
+    private long nextJobSeq = 0;
+    private final Map<String, OutstandingJob> outstanding = new LinkedHashMap<>();
+    private final Set<String> pollingShards = new HashSet<>();
+    private final Set<String> duePolls = new LinkedHashSet<>();
+    private Map<String, BackfillShard> backfillShards;
+
+    private MqWrapper jobs;
+    private MqWrapper results;
+    private MqWrapper tokens;
+    private ScheduledExecutorService tokenScheduler;
+    private volatile boolean isStopped = false;
+
+    // Cursors are read from the store between flushes, while the pipeline is not using it
+    public ArxivCoordinator(ConnectionFactory factory, ArxivStore store, IngestPipeline pipeline, List<String> shards) {
+        this.factory = factory;
+        this.store = store;
+        this.pipeline = pipeline;
+        this.shards = shards;
+        Metrics.gauge("arxiv_coordinator_jobs_outstanding", "Fetch jobs dispatched and not yet completed",
+                () -> outstanding.size());
+    }
+
+    // tokensQueue may be null when every worker keeps to its own request delay
+    public void setQueues(String jobsQueue, String resultsQueue, String tokensQueue) {
+        this.jobsQueue = jobsQueue;
+        this.resultsQueue = resultsQueue;
+        this.tokensQueue = tokensQueue;
+    }
+
+    public void setRateBudget(long tokenIntervalMillis, long tokenTtlMillis) {
+        this.tokenIntervalMillis = tokenIntervalMillis;
+        this.tokenTtlMillis = tokenTtlMillis;
+    }
+
+    public void setLeases(int maxOutstandingJobs, long jobTimeoutSeconds) {
+        this.maxOutstandingJobs = maxOutstandingJobs;
+        this.jobTimeoutMillis = TimeUnit.SECONDS.toMillis(jobTimeoutSeconds);
+    }
+
+    public void setPoll(int pageSize, int maxResults) {
+        this.pollPageSize = pageSize;
+        this.pollMaxResults = maxResults;
+    }
+
+    public void setBackfill(int pageSize, int maxEmptyPages) {
+        this.backfillPageSize = pageSize;
+        this.backfillMaxEmptyPages = maxEmptyPages;
+    }
+
+    // Polls every shard each pollIntervalMillis and runs until stop() if isPolling, or polls every shard once
+    // if pollIntervalMillis is 0. Otherwise returns once the backfill of every shard is complete.
+    public void run(long pollIntervalMillis, boolean isPolling, boolean isBackfill) throws Exception {
+        jobs = new MqWrapper(factory, null, jobsQueue, false);
+        jobs.setPersistent(true);
+        results = new MqWrapper(factory, null, resultsQueue, false);
+        if (tokensQueue != null)
+            startTokens();
+        if (isBackfill)
+            loadBackfillShards();
+
+        long nextPollMillis = 0;
+        while (!isStopped) {
+            long now = System.currentTimeMillis();
+            if (isPolling && now >= nextPollMillis) {
+                duePolls.addAll(shards);
+                nextPollMillis = pollIntervalMillis > 0 ? now + pollIntervalMillis : Long.MAX_VALUE;
+            }
+            dispatchPolls();
+            if (isBackfill)
+                dispatchBackfillPages();
+            redispatchTimedOut(now);
+
+            if ((!isPolling || pollIntervalMillis <= 0) && duePolls.isEmpty() && outstanding.isEmpty()
+                    && !isBackfillPending())
+                break;
+
+            TextMessage message = results.receive(1000);
+            if (message != null)
+                handleResult(GSON.fromJson(message.getText(), FetchJobResult.class));
+        }
+        LOGGER.info("Coordinator {} finished with {} jobs outstanding", runId, outstanding.size());
+    }
+
+    public void stop() {
+        isStopped = true;
+    }
+
+    private void startTokens() throws Exception {
+        tokens = new MqWrapper(factory, null, tokensQueue, false);
+        tokens.setTimeToLive(tokenTtlMillis);
+        tokens.open();
+        tokenScheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("job-tokens").setDaemon(true).build());
+        tokenScheduler.scheduleAtFixedRate(() -> {
+            try {
+                tokens.sendTextMessage(runId);
+            } catch (Exception e) {
+                LOGGER.error("Unable to release a rate token", e);
+            }
+        }, 0, tokenIntervalMillis, TimeUnit.MILLISECONDS);
+        LOGGER.info("Releasing a rate token every {}ms on {}", tokenIntervalMillis, tokensQueue);
+    }
+
+    // Shards wait in duePolls while the outstanding window is full
+    private void dispatchPolls() throws Exception {
+        for (Iterator<String> iterator = duePolls.iterator(); iterator.hasNext(); ) {
+            if (outstanding.size() >= maxOutstandingJobs)
+                break;
+            String shard = iterator.next();
+            iterator.remove();
+            // A slow poll is never overlapped by the next one, which would start from the same mark
+            if (pollingShards.contains(shard))
+                continue;
+            FetchJob job = newJob(FetchJob.Type.POLL, shard);
+            job.setMarkMillis(store.getCursor(ArxivHarvester.HWM_CURSOR_PREFIX + shard, 0L));
+            job.setPageSize(pollPageSize);
+            job.setMaxResults(pollMaxResults);
+            pollingShards.add(shard);
+            dispatch(job);
+        }
+    }
+
+    private void loadBackfillShards() throws Exception {
+        backfillShards = new LinkedHashMap<>();
+        for (String shard : shards) {
+            BackfillShard backfillShard = new BackfillShard();
+            backfillShard.cursor = (int) store.getCursor(ArxivHarvester.BACKFILL_CURSOR_PREFIX + shard, 0L);
+            backfillShard.nextStart = backfillShard.cursor;
+            backfillShards.put(shard, backfillShard);
+            LOGGER.info("Resuming backfill of [{}] from offset {}", shard, backfillShard.cursor);
+        }
+    }
+
+    // Fills the outstanding window with pages, round robin over the shards
+    private void dispatchBackfillPages() throws Exception {
+        boolean isDispatched = true;
+        while (isDispatched && outstanding.size() < maxOutstandingJobs) {
+            isDispatched = false;
+            for (Map.Entry<String, BackfillShard> entry : backfillShards.entrySet()) {
+                BackfillShard backfillShard = entry.getValue();
+                if (backfillShard.isComplete || outstanding.size() >= maxOutstandingJobs)
+                    continue;
+                // Until the first page reports the total, only that page is in flight
+                boolean hasMorePages = backfillShard.totalResults < 0 ? backfillShard.numOutstanding == 0
+                        : backfillShard.nextStart < backfillShard.totalResults;
+                if (!hasMorePages)
+                    continue;
+                dispatchBackfillPage(entry.getKey(), backfillShard.nextStart, backfillPageSize);
+                backfillShard.nextStart += backfillPageSize;
+                isDispatched = true;
+            }
+        }
+    }
+
+    private void dispatchBackfillPage(String shard, int start, int pageSize) throws Exception {
+        FetchJob job = newJob(FetchJob.Type.BACKFILL, shard);
+        job.setStart(start);
+        job.setPageSize(pageSize);
+        backfillShards.get(shard).numOutstanding++;
+        dispatch(job);
+    }
+
+    private boolean isBackfillPending() {
+        return backfillShards != null
+                && backfillShards.values().stream().anyMatch(backfillShard -> !backfillShard.isComplete);
+    }
+
+    private FetchJob newJob(FetchJob.Type type, String shard) {
+        FetchJob job = new FetchJob();
+        job.setId(runId + ":" + nextJobSeq++);
+        job.setType(type);
+        job.setShard(shard);
+        return job;
+    }
+
+    private void dispatch(FetchJob job) throws Exception {
+        jobs.sendTextMessage(GSON.toJson(job));
+        outstanding.put(job.getId(), new OutstandingJob(job, System.currentTimeMillis()));
+        JOBS_DISPATCHED.increment();
+        LOGGER.debug("Dispatched {}", job);
+    }
+
+    // Covers a worker that hangs while holding a job; a worker that dies releases its jobs to the broker
+    private void redispatchTimedOut(long now) throws Exception {
+        for (OutstandingJob outstandingJob : outstanding.values()) {
+            if (now - outstandingJob.dispatchedMillis < jobTimeoutMillis)
+                continue;
+            LOGGER.warn("No result for {} after {}s, dispatching it again", outstandingJob.job,
+                    TimeUnit.MILLISECONDS.toSeconds(now - outstandingJob.dispatchedMillis));
+            jobs.sendTextMessage(GSON.toJson(outstandingJob.job));
+            outstandingJob.dispatchedMillis = now;
+            JOBS_REDISPATCHED.increment();
+        }
+    }
+
+    private void handleResult(FetchJobResult result) throws Exception {
+        FetchJob job = result.getJob();
+        // Results of resent jobs, and of jobs from an earlier coordinator run, are dropped
+        if (job == null || outstanding.remove(job.getId()) == null) {
+            LOGGER.debug("Ignoring result of unknown or completed job {}", job);
+            return;
+        }
+        JOBS_COMPLETED.increment();
+        if (result.isFailed())
+            JOBS_FAILED.increment();
+        for (ArxivEntry arxivEntry : result.getEntries()) {
+            pipeline.publish(arxivEntry);
+        }
+
+        Map<String, Long> cursors = new HashMap<>();
+        if (job.getType() == FetchJob.Type.POLL) {
+            pollingShards.remove(job.getShard());
+            if (result.isFailed()) {
+                LOGGER.error("Poll of [{}] failed on {}", job.getShard(), result.getWorker());
+            } else if (result.getMarkMillis() > job.getMarkMillis()) {
+                cursors.put(ArxivHarvester.HWM_CURSOR_PREFIX + job.getShard(), result.getMarkMillis());
+            }
+        } else {
+            handleBackfillResult(job, result, cursors);
+        }
+        pipeline.flush(cursors);
+    }
+
+    // Adds the shard's cursor to cursors if it moved
+    private void handleBackfillResult(FetchJob job, FetchJobResult result, Map<String, Long> cursors) throws Exception {
+        String shard = job.getShard();
+        BackfillShard backfillShard = backfillShards.get(shard);
+        backfillShard.numOutstanding--;
+        if (backfillShard.isComplete)
+            return;
+        if (result.isFailed()) {
+            // Moving on would leave a hole behind the cursor; a restart resumes from the cursor instead
+            LOGGER.error("Backfill of [{}] stopped at offset {}: page at {} failed on {}",
+                    shard, backfillShard.cursor, job.getStart(), result.getWorker());
+            backfillShard.isComplete = true;
+            return;
+        }
+        if (result.getTotalResults() >= 0)
+            backfillShard.totalResults = result.getTotalResults();
+
+        int numEntries = result.getNumEntries();
+        int end = job.getStart() + numEntries;
+        if (numEntries > 0) {
+            backfillShard.emptyPages = 0;
+            backfillShard.covered.merge(job.getStart(), end, Math::max);
+            // Arxiv sometimes returns short pages mid result set; fetch the rest of the page separately
+            if (numEntries < job.getPageSize() && end < backfillShard.totalResults)
+                dispatchBackfillPage(shard, end, job.getPageSize() - numEntries);
+        } else if (backfillShard.totalResults < 0 || job.getStart() < backfillShard.totalResults) {
+            // Arxiv occasionally returns empty pages mid result set; retry before giving up
+            if (++backfillShard.emptyPages >= backfillMaxEmptyPages) {
+                LOGGER.warn("Backfill of [{}] stopped at offset {} after {} empty pages",
+                        shard, backfillShard.cursor, backfillShard.emptyPages);
+                backfillShard.isComplete = true;
+                return;
+            }
+            dispatchBackfillPage(shard, job.getStart(), job.getPageSize());
+        }
+
+        // The cursor only moves over pages with no gap behind them
+        int cursor = backfillShard.cursor;
+        while (!backfillShard.covered.isEmpty() && backfillShard.covered.firstKey() <= cursor) {
+            cursor = Math.max(cursor, backfillShard.covered.pollFirstEntry().getValue());
+        }
+        if (cursor > backfillShard.cursor) {
+            cursors.put(ArxivHarvester.BACKFILL_CURSOR_PREFIX + shard, (long) cursor);
+            backfillShard.cursor = cursor;
+            LOGGER.info("Backfill of [{}] at offset {} of {}", shard, cursor, backfillShard.totalResults);
+        }
+        if (backfillShard.totalResults >= 0 && backfillShard.numOutstanding == 0
+                && backfillShard.nextStart >= backfillShard.totalResults) {
+            if (backfillShard.cursor < backfillShard.totalResults)
+                LOGGER.warn("Backfill of [{}] ended with a gap at offset {}", shard, backfillShard.cursor);
+            LOGGER.info("Backfill of [{}] complete at offset {}", shard, backfillShard.cursor);
+            backfillShard.isComplete = true;
+        }
+    }
+
+    private static class OutstandingJob {
+        private final FetchJob job;
+        private long dispatchedMillis;
+
+        private OutstandingJob(FetchJob job, long dispatchedMillis) {
+            this.job = job;
+            this.dispatchedMillis = dispatchedMillis;
+        }
+    }
+
+    private static class BackfillShard {
+        private int cursor;
+        private int nextStart;
+        private int totalResults = -1;
+        private int emptyPages;
+        private int numOutstanding;
+        // Start to end offsets of fetched pages beyond the cursor
+        private final TreeMap<Integer, Integer> covered = new TreeMap<>();
+        private boolean isComplete;
+    }
+
+    @Override
+    public void close() {
+        if (tokenScheduler != null) {
+            tokenScheduler.shutdown();
+            try {
+                tokenScheduler.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (MqWrapper mqWrapper : new MqWrapper[]{jobs, results, tokens}) {
+            if (mqWrapper == null)
+                continue;
+            try {
+                mqWrapper.close();
+            } catch (Exception e) {
+                LOGGER.warn(e);
+            }
+        }
+    }
+
+}
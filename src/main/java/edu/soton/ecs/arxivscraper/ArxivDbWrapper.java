@@ -1,57 +1,588 @@
 package edu.soton.ecs.arxivscraper;
 
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import edu.soton.ecs.arxivscraper.util.DateTimeUtil;
+import edu.soton.ecs.arxivscraper.util.Metrics;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.SerializationUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.RoaringBitmap;
+import org.sqlite.SQLiteConfig;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-public class ArxivDbWrapper implements AutoCloseable {
+public class ArxivDbWrapper implements ArxivStore {
 
     private static final Logger LOGGER = LogManager.getLogger();
 
+    private static final Metrics.Histogram TRANSACTION_SECONDS = Metrics.timer("arxiv_db_transaction_seconds",
+            "Time to upsert one batch of entries in a single SQLite transaction");
+    private static final Metrics.Counter UNCHANGED_ENTRIES = Metrics.counter("arxiv_db_unchanged_total",
+            "Entries skipped because a newer version, or the same version with the same content, is already stored");
+    private static final Metrics.Counter REVISED_ENTRIES = Metrics.counter("arxiv_db_revised_total",
+            "Entries rewritten at the same version because their content fingerprint changed");
+    private static final Metrics.Counter RETENTION_DELETED = Metrics.counter("arxiv_db_retention_deleted_total",
+            "Entries deleted by the retention policy");
+
+    // Rowids bound per query when reading rows selected by the category postings
+    private static final int ROWID_CHUNK_SIZE = 256;
+    // Gap between retention transactions, leaving the write lock free for ingest
+    private static final long RETENTION_PAUSE_MILLIS = 100;
+    private static final int INCREMENTAL_VACUUM_PAGES = 1000;
+
     private Connection connection;
     private String dbFile;
     private String tablename = "arxiv_raw";
+    private String journalMode;
+    private String synchronous;
+    private long bloomExpectedInsertions;
+    private double bloomFpp;
+    private BloomFilter<CharSequence> idFilter;
+    private ArxivEntryCodec codec = new ArxivEntryCodec();
+    private boolean isSearchIndexEnabled = false;
+    private ArxivSearchIndex searchIndex;
+    private CategoryDictionary categoryDictionary = new CategoryDictionary();
+    // Rowids of the entries in each category, by category code; rebuilt from category_bits on startup
+    private final Map<Integer, RoaringBitmap> categoryPostings = new HashMap<>();
+    private long retentionMillis = 0;
+    private boolean isRetentionByUpdated = false;
+    private int retentionChunkSize = 500;
+    private long retentionIntervalSeconds = 3600;
+    private ScheduledExecutorService retention;
+    private Connection retentionConnection;
+    private volatile boolean isClosed = false;
+    private Map<ArxivEntry, ArxivEntry> replacedEntries = Collections.emptyMap();
+
+    private PreparedStatement isExtractedStatement;
+    private PreparedStatement versionStatement;
+    private PreparedStatement storedRowStatement;
+    private PreparedStatement insertStatement;
+    private PreparedStatement updateStatement;
+    private PreparedStatement rowidStatement;
 
     public ArxivDbWrapper(String dbFile, String tablename) {
+        this(dbFile, tablename, null, null);
+    }
+
+    public ArxivDbWrapper(String dbFile, String tablename, String journalMode, String synchronous) {
         this.dbFile = dbFile;
         this.tablename = tablename;
+        this.journalMode = journalMode;
+        this.synchronous = synchronous;
+        Metrics.gauge("arxiv_db_category_postings_bytes", "Memory held by the category posting bitmaps", () -> {
+            synchronized (categoryPostings) {
+                return categoryPostings.values().stream().mapToLong(RoaringBitmap::getLongSizeInBytes).sum();
+            }
+        });
+    }
+
+    // Keeps a Bloom filter of extracted arxiv ids in memory so lookups of new ids can skip the DB
+    public void setBloomFilter(long expectedInsertions, double fpp) {
+        this.bloomExpectedInsertions = expectedInsertions;
+        this.bloomFpp = fpp;
+    }
+
+    public void setCodec(ArxivEntryCodec codec) {
+        this.codec = codec;
+    }
+
+    // Maintains a full-text index of title, summary, authors and categories alongside every write
+    public void setSearchIndex(boolean isSearchIndexEnabled) {
+        this.isSearchIndexEnabled = isSearchIndexEnabled;
+    }
+
+    // Deletes entries received, or last updated, more than maxAgeMillis ago on a background thread and
+    // its own connection, chunkSize rows per transaction; 0 keeps everything
+    public void setRetention(long maxAgeMillis, boolean isByUpdated, int chunkSize, long intervalSeconds) {
+        this.retentionMillis = maxAgeMillis;
+        this.isRetentionByUpdated = isByUpdated;
+        this.retentionChunkSize = chunkSize;
+        this.retentionIntervalSeconds = intervalSeconds;
+    }
+
+    public String getTablename() {
+        return tablename;
     }
 
+    public CategoryDictionary getCategoryDictionary() {
+        return categoryDictionary;
+    }
+
+    @Override
     public void initalize() throws SQLException, IOException, ClassNotFoundException {
         openDBConnection();
         initDb();
+        loadCategoryPostings();
+        if (bloomExpectedInsertions > 0)
+            loadIdFilter();
+        if (retentionMillis > 0)
+            startRetention();
     }
 
     private void openDBConnection() throws SQLException, IOException, ClassNotFoundException {
         FileUtils.touch(new File(dbFile));
         Class.forName("org.sqlite.JDBC");
         connection = DriverManager.getConnection("jdbc:sqlite:" + dbFile);
+        try (Statement statement = connection.createStatement();) {
+            // Only takes effect on a new database, before its first table is created
+            statement.execute("PRAGMA auto_vacuum=INCREMENTAL");
+            if (StringUtils.isNotBlank(journalMode))
+                statement.execute("PRAGMA journal_mode=" + journalMode);
+            if (StringUtils.isNotBlank(synchronous))
+                statement.execute("PRAGMA synchronous=" + synchronous);
+        }
+    }
+
+    // A separate read only connection, e.g. for a worker thread; the caller closes it
+    public Connection openReadConnection() throws SQLException {
+        SQLiteConfig config = new SQLiteConfig();
+        config.setReadOnly(true);
+        return config.createConnection("jdbc:sqlite:" + dbFile);
     }
 
     private void initDb() throws SQLException {
         try (PreparedStatement statement = connection.prepareStatement(
-                "CREATE TABLE IF NOT EXISTS " + tablename + " (id TEXT PRIMARY KEY, ts TEXT, uri TEXT, raw BLOB)");) {
+                "CREATE TABLE IF NOT EXISTS " + tablename
+                        + " (id TEXT PRIMARY KEY, ts TEXT, uri TEXT, raw BLOB, arxiv_id TEXT, version INTEGER)");) {
+            statement.executeUpdate();
+        }
+        if (!columnExists("arxiv_id")) {
+            migrateArxivIdColumns();
+        }
+        if (!indexExists(tablename + "_arxiv_id_idx")) {
+            // Older versions of the same paper were stored as separate rows; keep only the latest
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "DELETE FROM " + tablename + " WHERE rowid NOT IN (SELECT keep_rowid FROM "
+                            + "(SELECT rowid AS keep_rowid, MAX(version) FROM " + tablename + " GROUP BY arxiv_id))");) {
+                int numDeleted = statement.executeUpdate();
+                if (numDeleted > 0)
+                    LOGGER.info("Removed {} superseded versions before creating index", numDeleted);
+            }
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "CREATE UNIQUE INDEX " + tablename + "_arxiv_id_idx ON " + tablename + " (arxiv_id)");) {
+                statement.executeUpdate();
+            }
+        }
+        if (!indexExists(tablename + "_uri_idx")) {
+            // Tables created before the index may hold duplicate uris; keep the first copy of each
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "DELETE FROM " + tablename + " WHERE rowid NOT IN (SELECT MIN(rowid) FROM " + tablename + " GROUP BY uri)");) {
+                int numDeleted = statement.executeUpdate();
+                if (numDeleted > 0)
+                    LOGGER.info("Removed {} duplicate uris before creating index", numDeleted);
+            }
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "CREATE UNIQUE INDEX " + tablename + "_uri_idx ON " + tablename + " (uri)");) {
+                statement.executeUpdate();
+            }
+        }
+        try (PreparedStatement statement = connection.prepareStatement(
+                "CREATE TABLE IF NOT EXISTS " + tablename + "_cursor (name TEXT PRIMARY KEY, position INTEGER)");) {
             statement.executeUpdate();
         }
+        try (PreparedStatement statement = connection.prepareStatement(
+                "CREATE TABLE IF NOT EXISTS " + tablename + "_category (code INTEGER PRIMARY KEY, name TEXT UNIQUE NOT NULL)");) {
+            statement.executeUpdate();
+        }
+        loadCategoryDictionary();
+        if (!columnExists("category_bits")) {
+            migrateCategoryBits();
+        }
+        if (!columnExists("received_at")) {
+            migrateTimeColumns();
+        }
+        if (!columnExists("fingerprint")) {
+            migrateFingerprints();
+        }
+        try (Statement statement = connection.createStatement();) {
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS " + tablename + "_received_at_idx ON "
+                    + tablename + " (received_at)");
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS " + tablename + "_updated_at_idx ON "
+                    + tablename + " (updated_at)");
+        }
+        if (isSearchIndexEnabled) {
+            searchIndex = new ArxivSearchIndex(connection, tablename);
+            if (searchIndex.create())
+                rebuildSearchIndex(1000);
+        }
+    }
+
+    private void migrateArxivIdColumns() throws SQLException {
+        try (Statement statement = connection.createStatement();) {
+            statement.executeUpdate("ALTER TABLE " + tablename + " ADD COLUMN arxiv_id TEXT");
+            statement.executeUpdate("ALTER TABLE " + tablename + " ADD COLUMN version INTEGER");
+        }
+
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (PreparedStatement select = connection.prepareStatement(
+                "SELECT rowid, uri FROM " + tablename);
+             PreparedStatement update = connection.prepareStatement(
+                     "UPDATE " + tablename + " SET arxiv_id=?, version=? WHERE rowid=?");) {
+            ResultSet results = select.executeQuery();
+            int numMigrated = 0;
+            while (results.next()) {
+                ArxivId arxivId = ArxivId.parse(results.getString(2));
+                update.setString(1, arxivId.getBaseId());
+                update.setInt(2, arxivId.getVersion());
+                update.setLong(3, results.getLong(1));
+                update.addBatch();
+                numMigrated++;
+            }
+            update.executeBatch();
+            connection.commit();
+            LOGGER.info("Added arxiv_id and version to {} existing rows", numMigrated);
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    private void loadCategoryDictionary() throws SQLException {
+        categoryDictionary = new CategoryDictionary();
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT code, name FROM " + tablename + "_category ORDER BY code");) {
+            ResultSet results = statement.executeQuery();
+            while (results.next()) {
+                categoryDictionary.put(results.getInt(1), results.getString(2));
+            }
+        }
+        codec.setCategoryDictionary(categoryDictionary);
+    }
+
+    // Gives codes to new taxonomy categories, committed ahead of the entries that will be encoded with them.
+    // Codes left unused by a failed batch are harmless.
+    private void addCategoryCodes(List<ArxivEntry> arxivEntries) throws SQLException {
+        List<String> unknown = new ArrayList<>();
+        for (ArxivEntry arxivEntry : arxivEntries) {
+            for (String category : categoryDictionary.findUnknown(arxivEntry.getCategories())) {
+                if (!unknown.contains(category))
+                    unknown.add(category);
+            }
+        }
+        if (unknown.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT INTO " + tablename + "_category (code, name) VALUES (?, ?)");) {
+            for (String category : unknown) {
+                int code = categoryDictionary.size();
+                statement.setInt(1, code);
+                statement.setString(2, category);
+                statement.executeUpdate();
+                categoryDictionary.put(code, category);
+                LOGGER.info("Added category {} with code {}", category, code);
+            }
+        }
+    }
+
+    private void migrateCategoryBits() throws SQLException {
+        try (Statement statement = connection.createStatement();) {
+            statement.executeUpdate("ALTER TABLE " + tablename + " ADD COLUMN category_bits BLOB");
+        }
+
+        int numMigrated = 0;
+        long lastRowid = -1;
+        boolean autoCommit = connection.getAutoCommit();
+        try (PreparedStatement select = connection.prepareStatement(
+                "SELECT rowid, raw FROM " + tablename + " WHERE rowid > ? ORDER BY rowid LIMIT 1000");
+             PreparedStatement update = connection.prepareStatement(
+                     "UPDATE " + tablename + " SET category_bits=? WHERE rowid=?");) {
+            while (true) {
+                List<Long> rowids = new ArrayList<>();
+                List<ArxivEntry> arxivEntries = new ArrayList<>();
+                int numChunk = 0;
+                select.setLong(1, lastRowid);
+                try (ResultSet results = select.executeQuery();) {
+                    while (results.next()) {
+                        numChunk++;
+                        lastRowid = results.getLong(1);
+                        byte[] raw = results.getBytes(2);
+                        // Rows of other objects stored through defaultInsert have no categories
+                        if (ArxivEntryCodec.isLegacySerialized(raw) && !(SerializationUtils.deserialize(raw) instanceof ArxivEntry))
+                            continue;
+                        rowids.add(lastRowid);
+                        arxivEntries.add(codec.decode(raw));
+                    }
+                }
+                if (numChunk == 0)
+                    break;
+                addCategoryCodes(arxivEntries);
+                connection.setAutoCommit(false);
+                try {
+                    for (int i = 0; i < rowids.size(); i++) {
+                        update.setBytes(1, categoryDictionary.toBits(arxivEntries.get(i).getCategories()));
+                        update.setLong(2, rowids.get(i));
+                        update.addBatch();
+                    }
+                    update.executeBatch();
+                    connection.commit();
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(autoCommit);
+                }
+                numMigrated += rowids.size();
+            }
+        }
+        LOGGER.info("Added category_bits to {} existing rows", numMigrated);
+    }
+
+    // Fills received_at from the ISO-8601 ts and updated_at from the entry
+    private void migrateTimeColumns() throws SQLException {
+        try (Statement statement = connection.createStatement();) {
+            statement.executeUpdate("ALTER TABLE " + tablename + " ADD COLUMN received_at INTEGER");
+            statement.executeUpdate("ALTER TABLE " + tablename + " ADD COLUMN updated_at INTEGER");
+        }
+
+        int numMigrated = 0;
+        long lastRowid = -1;
+        boolean autoCommit = connection.getAutoCommit();
+        try (PreparedStatement select = connection.prepareStatement(
+                "SELECT rowid, ts, raw FROM " + tablename + " WHERE rowid > ? ORDER BY rowid LIMIT 1000");
+             PreparedStatement update = connection.prepareStatement(
+                     "UPDATE " + tablename + " SET received_at=?, updated_at=? WHERE rowid=?");) {
+            while (true) {
+                int numChunk = 0;
+                connection.setAutoCommit(false);
+                try {
+                    select.setLong(1, lastRowid);
+                    try (ResultSet results = select.executeQuery();) {
+                        while (results.next()) {
+                            numChunk++;
+                            lastRowid = results.getLong(1);
+                            String ts = results.getString(2);
+                            byte[] raw = results.getBytes(3);
+                            Date received = ts != null ? DateTimeUtil.tryParseISO8601(ts).orNull() : null;
+                            Date updated = null;
+                            // Rows of other objects stored through defaultInsert have no updated time
+                            if (!ArxivEntryCodec.isLegacySerialized(raw) || SerializationUtils.deserialize(raw) instanceof ArxivEntry)
+                                updated = codec.decode(raw).getUpdated();
+                            update.setObject(1, received != null ? received.getTime() : null);
+                            update.setObject(2, updated != null ? updated.getTime() : null);
+                            update.setLong(3, lastRowid);
+                            update.addBatch();
+                        }
+                    }
+                    if (numChunk > 0)
+                        update.executeBatch();
+                    connection.commit();
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(autoCommit);
+                }
+                if (numChunk == 0)
+                    break;
+                numMigrated += numChunk;
+            }
+        }
+        LOGGER.info("Added received_at and updated_at to {} existing rows", numMigrated);
+    }
+
+    private void migrateFingerprints() throws SQLException {
+        try (Statement statement = connection.createStatement();) {
+            statement.executeUpdate("ALTER TABLE " + tablename + " ADD COLUMN fingerprint INTEGER");
+        }
+
+        int numMigrated = 0;
+        long lastRowid = -1;
+        boolean autoCommit = connection.getAutoCommit();
+        try (PreparedStatement select = connection.prepareStatement(
+                "SELECT rowid, raw FROM " + tablename + " WHERE rowid > ? ORDER BY rowid LIMIT 1000");
+             PreparedStatement update = connection.prepareStatement(
+                     "UPDATE " + tablename + " SET fingerprint=? WHERE rowid=?");) {
+            while (true) {
+                int numChunk = 0;
+                int numUpdated = 0;
+                connection.setAutoCommit(false);
+                try {
+                    select.setLong(1, lastRowid);
+                    try (ResultSet results = select.executeQuery();) {
+                        while (results.next()) {
+                            numChunk++;
+                            lastRowid = results.getLong(1);
+                            byte[] raw = results.getBytes(2);
+                            // Rows of other objects stored through defaultInsert keep a null fingerprint
+                            if (ArxivEntryCodec.isLegacySerialized(raw) && !(SerializationUtils.deserialize(raw) instanceof ArxivEntry))
+                                continue;
+                            update.setLong(1, ArxivEntryFingerprint.of(codec.decode(raw)));
+                            update.setLong(2, lastRowid);
+                            update.addBatch();
+                            numUpdated++;
+                        }
+                    }
+                    if (numUpdated > 0)
+                        update.executeBatch();
+                    connection.commit();
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(autoCommit);
+                }
+                if (numChunk == 0)
+                    break;
+                numMigrated += numUpdated;
+            }
+        }
+        LOGGER.info("Added fingerprint to {} existing rows", numMigrated);
+    }
+
+    private void loadCategoryPostings() throws SQLException {
+        synchronized (categoryPostings) {
+            categoryPostings.clear();
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT rowid, category_bits FROM " + tablename + " WHERE category_bits IS NOT NULL");) {
+                ResultSet results = statement.executeQuery();
+                while (results.next()) {
+                    addPostings(results.getLong(1), results.getBytes(2));
+                }
+            }
+            for (RoaringBitmap postings : categoryPostings.values()) {
+                postings.runOptimize();
+            }
+            LOGGER.info("Loaded postings of {} categories", categoryPostings.size());
+        }
+    }
+
+    private void addPostings(long rowid, byte[] categoryBits) {
+        if (rowid > Integer.MAX_VALUE)
+            throw new IllegalStateException("Rowid " + rowid + " is out of range of the category postings");
+        for (int code = 0; code < categoryBits.length * 8; code++) {
+            if (CategoryDictionary.hasBit(categoryBits, code))
+                categoryPostings.computeIfAbsent(code, key -> new RoaringBitmap()).add((int) rowid);
+        }
+    }
+
+    // Moves a row to the postings of its current categories, after its transaction has committed
+    private void updatePostings(long rowid, byte[] categoryBits) {
+        synchronized (categoryPostings) {
+            for (RoaringBitmap postings : categoryPostings.values()) {
+                postings.remove((int) rowid);
+            }
+            addPostings(rowid, categoryBits);
+        }
     }
 
+    private long getRowid(String baseId) throws SQLException {
+        if (rowidStatement == null)
+            rowidStatement = connection.prepareStatement("SELECT rowid FROM " + tablename + " WHERE arxiv_id=?");
+        rowidStatement.setString(1, baseId);
+        try (ResultSet results = rowidStatement.executeQuery();) {
+            return results.next() ? results.getLong(1) : -1;
+        }
+    }
+
+    // Rowids of the entries in a taxonomy category, for combining with and, or and andNot before streamArxivEntries
+    public RoaringBitmap getCategoryRowids(String category) {
+        synchronized (categoryPostings) {
+            RoaringBitmap postings = categoryPostings.get(categoryDictionary.getCode(category));
+            return postings != null ? postings.clone() : new RoaringBitmap();
+        }
+    }
+
+    private boolean columnExists(String columnName) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "PRAGMA table_info(" + tablename + ")");) {
+            ResultSet results = statement.executeQuery();
+            while (results.next()) {
+                if (results.getString("name").equals(columnName))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    private boolean indexExists(String indexName) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT 1 FROM sqlite_master WHERE type='index' AND name=?");) {
+            statement.setString(1, indexName);
+            ResultSet results = statement.executeQuery();
+            return results.next();
+        }
+    }
+
+    private void loadIdFilter() throws SQLException {
+        idFilter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), bloomExpectedInsertions, bloomFpp);
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT arxiv_id FROM " + tablename);) {
+            ResultSet results = statement.executeQuery();
+            int numLoaded = 0;
+            while (results.next()) {
+                idFilter.put(results.getString(1));
+                numLoaded++;
+            }
+            LOGGER.info("Loaded {} arxiv ids into Bloom filter, expected false positive rate {}",
+                    numLoaded, idFilter.expectedFpp());
+        }
+    }
+
+    @Override
     public void close() {
+        isClosed = true;
+        if (retention != null) {
+            retention.shutdown();
+            try {
+                retention.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
         try {
+            if (retentionConnection != null)
+                retentionConnection.close();
+            if (isExtractedStatement != null)
+                isExtractedStatement.close();
+            if (versionStatement != null)
+                versionStatement.close();
+            if (storedRowStatement != null)
+                storedRowStatement.close();
+            if (insertStatement != null)
+                insertStatement.close();
+            if (updateStatement != null)
+                updateStatement.close();
+            if (rowidStatement != null)
+                rowidStatement.close();
+            if (searchIndex != null)
+                searchIndex.close();
             if (connection != null)
                 connection.close();
         } catch (SQLException e) {
@@ -60,42 +591,646 @@ public class ArxivDbWrapper implements AutoCloseable {
     }
 
     public boolean isExtracted(String uri) throws SQLException {
-        try (PreparedStatement statement = connection.prepareStatement(
-                "SELECT 1 FROM " + tablename + " WHERE uri=?");) {
-            statement.setString(1, uri);
-            ResultSet results = statement.executeQuery();
+        if (idFilter != null && !idFilter.mightContain(ArxivId.parse(uri).getBaseId()))
+            return false;
+        if (isExtractedStatement == null)
+            isExtractedStatement = connection.prepareStatement("SELECT 1 FROM " + tablename + " WHERE uri=?");
+        isExtractedStatement.setString(1, uri);
+        try (ResultSet results = isExtractedStatement.executeQuery();) {
             return results.next();
         }
     }
 
+    @Override
+    public int getStoredVersion(String baseId) throws SQLException {
+        if (idFilter != null && !idFilter.mightContain(baseId))
+            return -1;
+        if (versionStatement == null)
+            versionStatement = connection.prepareStatement("SELECT version FROM " + tablename + " WHERE arxiv_id=?");
+        versionStatement.setString(1, baseId);
+        try (ResultSet results = versionStatement.executeQuery();) {
+            return results.next() ? results.getInt(1) : -1;
+        }
+    }
+
+    // Version, content fingerprint and updated time of the stored entry, or null if there is none
+    private StoredRow getStoredRow(String baseId) throws SQLException {
+        if (idFilter != null && !idFilter.mightContain(baseId))
+            return null;
+        if (storedRowStatement == null)
+            storedRowStatement = connection.prepareStatement(
+                    "SELECT version, fingerprint, updated_at FROM " + tablename + " WHERE arxiv_id=?");
+        storedRowStatement.setString(1, baseId);
+        try (ResultSet results = storedRowStatement.executeQuery();) {
+            if (!results.next())
+                return null;
+            long fingerprint = results.getLong(2);
+            boolean hasFingerprint = !results.wasNull();
+            long updatedAt = results.getLong(3);
+            return new StoredRow(results.getInt(1), hasFingerprint ? fingerprint : null,
+                    results.wasNull() ? null : new Date(updatedAt));
+        }
+    }
+
+    private static class StoredRow {
+        private final int version;
+        private final Long fingerprint;
+        private final Date updatedAt;
+
+        private StoredRow(int version, Long fingerprint, Date updatedAt) {
+            this.version = version;
+            this.fingerprint = fingerprint;
+            this.updatedAt = updatedAt;
+        }
+    }
+
+    private ArxivEntry getStoredEntry(String baseId) throws SQLException {
+        try (PreparedStatement select = connection.prepareStatement(
+                "SELECT raw FROM " + tablename + " WHERE arxiv_id=?");) {
+            select.setString(1, baseId);
+            try (ResultSet results = select.executeQuery();) {
+                return results.next() ? codec.decode(results.getBytes(1)) : null;
+            }
+        }
+    }
+
     public int insert(String id, String ts, String url, byte[] raw) throws SQLException {
-        try (PreparedStatement statement = connection.prepareStatement(
-                "INSERT INTO " + tablename + " VALUES (?, ?, ?, ?)");) {
-            statement.setString(1, id);
-            statement.setString(2, ts);
-            statement.setString(3, url);
-            statement.setBytes(4, raw);
-            return statement.executeUpdate();
+        Date received = DateTimeUtil.tryParseISO8601(ts).or(new Date());
+        return insert(id, received.getTime(), url, raw, null, null, null);
+    }
+
+    private int insert(String id, long receivedAt, String url, byte[] raw, byte[] categoryBits, Date updated,
+                       Long fingerprint) throws SQLException {
+        ArxivId arxivId = ArxivId.parse(url);
+        // sqlite-jdbc keeps the batch's parameter array after executeBatch, which breaks a following executeUpdate
+        if (insertStatement != null)
+            insertStatement.clearParameters();
+        setInsertParameters(id, receivedAt, url, raw, categoryBits, updated, fingerprint, arxivId);
+        int numInserted = insertStatement.executeUpdate();
+        if (idFilter != null)
+            idFilter.put(arxivId.getBaseId());
+        return numInserted;
+    }
+
+    // ts is kept alongside received_at for existing queries and scripts
+    private void setInsertParameters(String id, long receivedAt, String url, byte[] raw, byte[] categoryBits,
+                                     Date updated, Long fingerprint, ArxivId arxivId) throws SQLException {
+        if (insertStatement == null)
+            insertStatement = connection.prepareStatement("INSERT INTO " + tablename
+                    + " (id, ts, uri, raw, arxiv_id, version, category_bits, received_at, updated_at, fingerprint)"
+                    + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        insertStatement.setString(1, id);
+        insertStatement.setString(2, DateTimeUtil.formatISO8601(new Date(receivedAt)));
+        insertStatement.setString(3, url);
+        insertStatement.setBytes(4, raw);
+        insertStatement.setString(5, arxivId.getBaseId());
+        insertStatement.setInt(6, arxivId.getVersion());
+        insertStatement.setBytes(7, categoryBits);
+        insertStatement.setLong(8, receivedAt);
+        insertStatement.setObject(9, updated != null ? updated.getTime() : null);
+        insertStatement.setObject(10, fingerprint);
+    }
+
+    private void setUpdateParameters(long receivedAt, String url, byte[] raw, byte[] categoryBits, Date updated,
+                                     long fingerprint, ArxivId arxivId) throws SQLException {
+        if (updateStatement == null)
+            updateStatement = connection.prepareStatement("UPDATE " + tablename + " SET ts=?, uri=?, raw=?, version=?,"
+                    + " category_bits=?, received_at=?, updated_at=?, fingerprint=? WHERE arxiv_id=?");
+        updateStatement.setString(1, DateTimeUtil.formatISO8601(new Date(receivedAt)));
+        updateStatement.setString(2, url);
+        updateStatement.setBytes(3, raw);
+        updateStatement.setInt(4, arxivId.getVersion());
+        updateStatement.setBytes(5, categoryBits);
+        updateStatement.setLong(6, receivedAt);
+        updateStatement.setObject(7, updated != null ? updated.getTime() : null);
+        updateStatement.setLong(8, fingerprint);
+        updateStatement.setString(9, arxivId.getBaseId());
+    }
+
+    // Inserts unseen papers and replaces stored ones with newer versions, or with the same version when the
+    // content fingerprint differs and the entry is strictly newer by updated time, in a single transaction.
+    // Returns only the entries that were written; older versions, stale snapshots and unchanged content are
+    // skipped. Of several copies of a paper in one call, the newest version with the newest updated time wins.
+    @Override
+    public List<ArxivEntry> upsertEntries(List<ArxivEntry> arxivEntries) throws SQLException {
+        return upsertEntries(arxivEntries, Collections.emptyMap());
+    }
+
+    // As above, also moving the given cursors in the same transaction so they never run ahead of the data
+    @Override
+    public List<ArxivEntry> upsertEntries(List<ArxivEntry> arxivEntries, Map<String, Long> cursors)
+            throws SQLException {
+        Map<String, ArxivEntry> latestEntries = new LinkedHashMap<>();
+        Map<String, ArxivId> latestIds = new HashMap<>();
+        for (ArxivEntry arxivEntry : arxivEntries) {
+            ArxivId arxivId = ArxivId.parse(arxivEntry.getId());
+            ArxivId seenId = latestIds.get(arxivId.getBaseId());
+            boolean isNewer = seenId == null || arxivId.getVersion() > seenId.getVersion();
+            if (!isNewer && arxivId.getVersion() == seenId.getVersion()) {
+                isNewer = ArxivEntryFingerprint.isNewerSnapshot(arxivEntry.getUpdated(),
+                        latestEntries.get(arxivId.getBaseId()).getUpdated());
+            }
+            if (isNewer) {
+                latestIds.put(arxivId.getBaseId(), arxivId);
+                latestEntries.put(arxivId.getBaseId(), arxivEntry);
+            }
         }
+
+        addCategoryCodes(arxivEntries);
+
+        List<ArxivEntry> changedArxivEntries = new ArrayList<>();
+        List<String> changedBaseIds = new ArrayList<>();
+        List<byte[]> changedCategoryBits = new ArrayList<>();
+        long[] changedRowids;
+        long receivedAt = System.currentTimeMillis();
+        int numInserted = 0;
+        int numUpdated = 0;
+        int numRevised = 0;
+        replacedEntries = new IdentityHashMap<>();
+
+        long startNanos = System.nanoTime();
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            for (Map.Entry<String, ArxivEntry> latestEntry : latestEntries.entrySet()) {
+                ArxivEntry arxivEntry = latestEntry.getValue();
+                ArxivId arxivId = latestIds.get(latestEntry.getKey());
+                StoredRow storedRow = getStoredRow(arxivId.getBaseId());
+                long fingerprint = ArxivEntryFingerprint.of(arxivEntry);
+                byte[] categoryBits = categoryDictionary.toBits(arxivEntry.getCategories());
+                if (storedRow == null) {
+                    setInsertParameters(UUID.randomUUID().toString(), receivedAt, arxivEntry.getId(),
+                            codec.encode(arxivEntry), categoryBits, arxivEntry.getUpdated(), fingerprint, arxivId);
+                    insertStatement.addBatch();
+                    numInserted++;
+                } else if (arxivId.getVersion() > storedRow.version || (arxivId.getVersion() == storedRow.version
+                        && storedRow.fingerprint != null && storedRow.fingerprint != fingerprint
+                        && ArxivEntryFingerprint.isNewerSnapshot(arxivEntry.getUpdated(), storedRow.updatedAt))) {
+                    if (arxivId.getVersion() == storedRow.version) {
+                        // Same version with new content, e.g. a journal ref or DOI added after publication.
+                        // A replayed or redelivered snapshot that is not newer must not undo such a revision.
+                        replacedEntries.put(arxivEntry, getStoredEntry(arxivId.getBaseId()));
+                        numRevised++;
+                    }
+                    setUpdateParameters(receivedAt, arxivEntry.getId(), codec.encode(arxivEntry), categoryBits,
+                            arxivEntry.getUpdated(), fingerprint, arxivId);
+                    updateStatement.addBatch();
+                    numUpdated++;
+                } else {
+                    continue;
+                }
+                changedArxivEntries.add(arxivEntry);
+                changedBaseIds.add(arxivId.getBaseId());
+                changedCategoryBits.add(categoryBits);
+                // An id rolled back but left in the filter only costs an extra DB lookup later
+                if (idFilter != null)
+                    idFilter.put(arxivId.getBaseId());
+            }
+            if (numInserted > 0)
+                insertStatement.executeBatch();
+            if (numUpdated > 0)
+                updateStatement.executeBatch();
+            if (searchIndex != null && !changedArxivEntries.isEmpty()) {
+                for (int i = 0; i < changedArxivEntries.size(); i++) {
+                    searchIndex.addBatch(changedArxivEntries.get(i), changedBaseIds.get(i));
+                }
+                searchIndex.executeBatch();
+            }
+            changedRowids = new long[changedBaseIds.size()];
+            for (int i = 0; i < changedRowids.length; i++) {
+                changedRowids[i] = getRowid(changedBaseIds.get(i));
+            }
+            for (Map.Entry<String, Long> cursor : cursors.entrySet()) {
+                setCursor(cursor.getKey(), cursor.getValue());
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+        for (int i = 0; i < changedRowids.length; i++) {
+            updatePostings(changedRowids[i], changedCategoryBits.get(i));
+        }
+        TRANSACTION_SECONDS.observeSince(startNanos);
+        UNCHANGED_ENTRIES.add(arxivEntries.size() - changedArxivEntries.size());
+        REVISED_ENTRIES.add(numRevised);
+        LOGGER.debug("Inserted {} and updated {} of {} entries, {} with the same version",
+                numInserted, numUpdated, arxivEntries.size(), numRevised);
+        return changedArxivEntries;
+    }
+
+    @Override
+    public Map<ArxivEntry, ArxivEntry> getReplacedEntries() {
+        return replacedEntries;
     }
 
     public int defaultInsert(String url, Serializable obj) throws SQLException {
-        byte[] raw = SerializationUtils.serialize(obj);
-        return insert(UUID.randomUUID().toString(), DateTimeUtil.currentDateTimeISO8601(), url, raw);
+        if (!(obj instanceof ArxivEntry))
+            return insert(UUID.randomUUID().toString(), System.currentTimeMillis(), url,
+                    SerializationUtils.serialize(obj), null, null, null);
+
+        ArxivEntry arxivEntry = (ArxivEntry) obj;
+        addCategoryCodes(Collections.singletonList(arxivEntry));
+        byte[] raw = codec.encode(arxivEntry);
+        byte[] categoryBits = categoryDictionary.toBits(arxivEntry.getCategories());
+        String baseId = ArxivId.parse(url).getBaseId();
+        int numInserted;
+        long rowid;
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            numInserted = insert(UUID.randomUUID().toString(), System.currentTimeMillis(), url, raw,
+                    categoryBits, arxivEntry.getUpdated(), ArxivEntryFingerprint.of(arxivEntry));
+            if (searchIndex != null) {
+                searchIndex.addBatch(arxivEntry, baseId);
+                searchIndex.executeBatch();
+            }
+            rowid = getRowid(baseId);
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+        updatePostings(rowid, categoryBits);
+        return numInserted;
     }
 
-    public List<ArxivEntry> getAllArxivEntries() throws SQLException, InvocationTargetException, IllegalAccessException {
-        List<ArxivEntry> arxivEntries = new ArrayList<>();
+    // Ranked full-text search; see ArxivSearchIndex for the query syntax
+    public List<ArxivSearchHit> search(String query, int limit) throws SQLException {
+        if (searchIndex == null)
+            throw new IllegalStateException("Search index is not enabled");
+        return searchIndex.search(query, limit, codec);
+    }
+
+    // Re-indexes every stored entry, committing every chunkSize rows.
+    // Needed after a full VACUUM, which may renumber the rowids the index is keyed by.
+    public int rebuildSearchIndex(int chunkSize) throws SQLException {
+        if (searchIndex == null)
+            throw new IllegalStateException("Search index is not enabled");
+        int numIndexed = 0;
+        long lastRowid = -1;
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (PreparedStatement select = connection.prepareStatement(
+                "SELECT rowid, arxiv_id, raw FROM " + tablename + " WHERE rowid > ? ORDER BY rowid LIMIT ?");) {
+            searchIndex.clear();
+            while (true) {
+                select.setLong(1, lastRowid);
+                select.setInt(2, chunkSize);
+                int numChunk = 0;
+                try (ResultSet results = select.executeQuery();) {
+                    while (results.next()) {
+                        lastRowid = results.getLong(1);
+                        searchIndex.addBatch(codec.decode(results.getBytes(3)), results.getString(2));
+                        numChunk++;
+                    }
+                }
+                if (numChunk == 0)
+                    break;
+                searchIndex.executeBatch();
+                connection.commit();
+                numIndexed += numChunk;
+                LOGGER.info("Indexed {} entries for search", numIndexed);
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+        return numIndexed;
+    }
+
+    // Re-encodes rows still stored with Java serialization, committing every chunkSize rows
+    public int migrateLegacyEntries(int chunkSize) throws SQLException {
+        int numMigrated = 0;
+        long lastRowid = -1;
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (PreparedStatement select = connection.prepareStatement(
+                "SELECT rowid, raw FROM " + tablename + " WHERE substr(raw, 1, 2) = x'ACED' AND rowid > ?"
+                        + " ORDER BY rowid LIMIT ?");
+             PreparedStatement update = connection.prepareStatement(
+                     "UPDATE " + tablename + " SET raw=? WHERE rowid=?");) {
+            while (true) {
+                select.setLong(1, lastRowid);
+                select.setInt(2, chunkSize);
+                int numChunk = 0;
+                int numUpdated = 0;
+                try (ResultSet results = select.executeQuery();) {
+                    while (results.next()) {
+                        numChunk++;
+                        lastRowid = results.getLong(1);
+                        // Rows of other objects stored through defaultInsert stay serialized
+                        Object object = SerializationUtils.deserialize(results.getBytes(2));
+                        if (!(object instanceof ArxivEntry))
+                            continue;
+                        update.setBytes(1, codec.encode((ArxivEntry) object));
+                        update.setLong(2, lastRowid);
+                        update.addBatch();
+                        numUpdated++;
+                    }
+                }
+                if (numChunk == 0)
+                    break;
+                if (numUpdated > 0)
+                    update.executeBatch();
+                connection.commit();
+                numMigrated += numUpdated;
+                if (numUpdated > 0)
+                    LOGGER.info("Re-encoded {} legacy entries", numMigrated);
+            }
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+        return numMigrated;
+    }
+
+    private void startRetention() throws SQLException {
+        try (Statement statement = connection.createStatement();) {
+            ResultSet results = statement.executeQuery("PRAGMA auto_vacuum");
+            // 2 is incremental; databases created before it was set need a one off VACUUM to switch over
+            if (!results.next() || results.getInt(1) != 2)
+                LOGGER.warn("auto_vacuum is not incremental, space freed by retention will only be reused, not returned");
+        }
+        retention = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("db-retention").setDaemon(true).build());
+        retention.scheduleWithFixedDelay(this::pruneExpired, 0, retentionIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    // Runs on the retention thread. Each chunk is its own short IMMEDIATE transaction, so ingest waits at most
+    // one chunk for the write lock. Search index rows are deleted with their entries.
+    private void pruneExpired() {
+        try {
+            if (retentionConnection == null) {
+                SQLiteConfig config = new SQLiteConfig();
+                config.setTransactionMode(SQLiteConfig.TransactionMode.IMMEDIATE);
+                config.setBusyTimeout("10000");
+                retentionConnection = config.createConnection("jdbc:sqlite:" + dbFile);
+            }
+            boolean hasSearchIndex;
+            try (PreparedStatement statement = retentionConnection.prepareStatement(
+                    "SELECT 1 FROM sqlite_master WHERE type='table' AND name=?");) {
+                statement.setString(1, tablename + "_fts");
+                hasSearchIndex = statement.executeQuery().next();
+            }
+
+            long cutoff = System.currentTimeMillis() - retentionMillis;
+            String column = isRetentionByUpdated ? "updated_at" : "received_at";
+            int numDeleted = 0;
+            try (PreparedStatement select = retentionConnection.prepareStatement(
+                    "SELECT rowid FROM " + tablename + " WHERE " + column + " < ? LIMIT ?");
+                 PreparedStatement delete = retentionConnection.prepareStatement(
+                         "DELETE FROM " + tablename + " WHERE rowid=?");
+                 PreparedStatement deleteSearch = hasSearchIndex ? retentionConnection.prepareStatement(
+                         "DELETE FROM " + tablename + "_fts WHERE rowid=?") : null;) {
+                while (!isClosed) {
+                    RoaringBitmap deleted = new RoaringBitmap();
+                    retentionConnection.setAutoCommit(false);
+                    try {
+                        select.setLong(1, cutoff);
+                        select.setInt(2, retentionChunkSize);
+                        try (ResultSet results = select.executeQuery();) {
+                            while (results.next()) {
+                                long rowid = results.getLong(1);
+                                deleted.add((int) rowid);
+                                delete.setLong(1, rowid);
+                                delete.addBatch();
+                                if (deleteSearch != null) {
+                                    deleteSearch.setLong(1, rowid);
+                                    deleteSearch.addBatch();
+                                }
+                            }
+                        }
+                        if (!deleted.isEmpty()) {
+                            delete.executeBatch();
+                            if (deleteSearch != null)
+                                deleteSearch.executeBatch();
+                        }
+                        // Held across the commit so that a rowid reused by a concurrent insert is never dropped
+                        synchronized (categoryPostings) {
+                            retentionConnection.commit();
+                            for (RoaringBitmap postings : categoryPostings.values()) {
+                                postings.andNot(deleted);
+                            }
+                        }
+                    } catch (SQLException e) {
+                        retentionConnection.rollback();
+                        throw e;
+                    } finally {
+                        retentionConnection.setAutoCommit(true);
+                    }
+                    if (deleted.isEmpty())
+                        break;
+                    numDeleted += deleted.getCardinality();
+                    RETENTION_DELETED.add(deleted.getCardinality());
+                    Thread.sleep(RETENTION_PAUSE_MILLIS);
+                }
+            }
+            if (numDeleted > 0) {
+                LOGGER.info("Retention deleted {} entries with {} before {}", numDeleted, column,
+                        DateTimeUtil.formatISO8601(new Date(cutoff)));
+                vacuumFreePages();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOGGER.error("Retention failed", e);
+        }
+    }
+
+    // Returns free pages to the file system a few at a time; a no-op unless auto_vacuum is incremental
+    private void vacuumFreePages() throws SQLException, InterruptedException {
+        int numFreed = 0;
+        try (Statement statement = retentionConnection.createStatement();) {
+            int freePages = freelistCount(statement);
+            while (!isClosed && freePages > 0) {
+                // execute() would only step once, freeing a single page
+                statement.executeUpdate("PRAGMA incremental_vacuum(" + INCREMENTAL_VACUUM_PAGES + ")");
+                int numLeft = freelistCount(statement);
+                if (numLeft >= freePages)
+                    break;
+                numFreed += freePages - numLeft;
+                freePages = numLeft;
+                Thread.sleep(RETENTION_PAUSE_MILLIS);
+            }
+        }
+        if (numFreed > 0)
+            LOGGER.info("Incremental vacuum freed {} pages", numFreed);
+    }
+
+    private static int freelistCount(Statement statement) throws SQLException {
+        try (ResultSet results = statement.executeQuery("PRAGMA freelist_count");) {
+            return results.next() ? results.getInt(1) : 0;
+        }
+    }
+
+    // Smallest and largest rowid, or null if the table is empty
+    public long[] getRowidRange() throws SQLException {
         try (PreparedStatement statement = connection.prepareStatement(
-                "SELECT raw FROM " + tablename + " WHERE 1=1");) {
+                "SELECT MIN(rowid), MAX(rowid) FROM " + tablename);) {
             ResultSet results = statement.executeQuery();
-            while (results.next()) {
-                byte[] raw = results.getBytes(1);
-                ArxivEntry arxivEntry = (ArxivEntry) SerializationUtils.deserialize(raw);
-                arxivEntries.add(arxivEntry);
+            if (!results.next() || results.getObject(1) == null)
+                return null;
+            return new long[]{results.getLong(1), results.getLong(2)};
+        }
+    }
+
+    @Override
+    public long getCursor(String name, long defaultValue) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT position FROM " + tablename + "_cursor WHERE name=?");) {
+            statement.setString(1, name);
+            ResultSet results = statement.executeQuery();
+            return results.next() ? results.getLong(1) : defaultValue;
+        }
+    }
+
+    public int setCursor(String name, long position) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT OR REPLACE INTO " + tablename + "_cursor VALUES (?, ?)");) {
+            statement.setString(1, name);
+            statement.setLong(2, position);
+            return statement.executeUpdate();
+        }
+    }
+
+    public List<ArxivEntry> getAllArxivEntries() throws SQLException, InvocationTargetException, IllegalAccessException {
+        try (Stream<ArxivEntry> arxivEntries = streamArxivEntries(new ArxivEntryQuery());) {
+            return arxivEntries.collect(Collectors.toList());
+        }
+    }
+
+    // Lazily reads matching entries, decoding each row only when it is consumed.
+    // The stream holds an open statement and must be closed.
+    @Override
+    public Stream<ArxivEntry> streamArxivEntries(ArxivEntryQuery query) throws SQLException {
+        String category = query.getCategory();
+        // Taxonomy categories are answered from the postings instead of decoding every row
+        if (CategoryDictionary.isTaxonomyCode(category))
+            return streamArxivEntries(getCategoryRowids(category), query);
+
+        StringBuilder sql = new StringBuilder("SELECT raw FROM " + tablename + " WHERE 1=1");
+        List<Long> params = new ArrayList<>();
+        appendReceivedFilter(query, sql, params);
+
+        PreparedStatement statement = connection.prepareStatement(sql.toString());
+        ResultSet results;
+        try {
+            for (int i = 0; i < params.size(); i++) {
+                statement.setLong(i + 1, params.get(i));
             }
+            statement.setFetchSize(query.getFetchSize());
+            results = statement.executeQuery();
+        } catch (SQLException e) {
+            statement.close();
+            throw e;
+        }
+
+        ArxivEntryCodec rowCodec = codec;
+        Spliterator<ArxivEntry> spliterator = new Spliterators.AbstractSpliterator<ArxivEntry>(
+                Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super ArxivEntry> action) {
+                try {
+                    if (!results.next())
+                        return false;
+                    action.accept(rowCodec.decode(results.getBytes(1)));
+                    return true;
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+
+        Stream<ArxivEntry> arxivEntries = StreamSupport.stream(spliterator, false).onClose(() -> {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                LOGGER.warn(e);
+            }
+        });
+        if (category != null) {
+            arxivEntries = arxivEntries.filter(arxivEntry ->
+                    arxivEntry.getCategories() != null && arxivEntry.getCategories().contains(category));
         }
         return arxivEntries;
     }
 
+    // Lazily reads the given rows in rowid order, a chunk at a time, applying the received time range of the query.
+    // The stream holds an open statement and must be closed.
+    public Stream<ArxivEntry> streamArxivEntries(RoaringBitmap rowids, ArxivEntryQuery query) throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT raw FROM " + tablename + " WHERE rowid IN (?");
+        for (int i = 1; i < ROWID_CHUNK_SIZE; i++) {
+            sql.append(", ?");
+        }
+        sql.append(")");
+        List<Long> params = new ArrayList<>();
+        appendReceivedFilter(query, sql, params);
+        sql.append(" ORDER BY rowid");
+
+        PreparedStatement statement = connection.prepareStatement(sql.toString());
+        try {
+            for (int i = 0; i < params.size(); i++) {
+                statement.setLong(ROWID_CHUNK_SIZE + i + 1, params.get(i));
+            }
+        } catch (SQLException e) {
+            statement.close();
+            throw e;
+        }
+
+        ArxivEntryCodec rowCodec = codec;
+        IntIterator rowidIterator = rowids.getIntIterator();
+        Spliterator<ArxivEntry> spliterator = new Spliterators.AbstractSpliterator<ArxivEntry>(
+                rowids.getLongCardinality(), Spliterator.ORDERED | Spliterator.NONNULL) {
+            private ResultSet results = null;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super ArxivEntry> action) {
+                try {
+                    while (results == null || !results.next()) {
+                        if (!rowidIterator.hasNext())
+                            return false;
+                        // Unused slots of the last chunk match no row
+                        for (int i = 0; i < ROWID_CHUNK_SIZE; i++) {
+                            statement.setLong(i + 1, rowidIterator.hasNext() ? rowidIterator.next() : -1);
+                        }
+                        results = statement.executeQuery();
+                    }
+                    action.accept(rowCodec.decode(results.getBytes(1)));
+                    return true;
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+
+        return StreamSupport.stream(spliterator, false).onClose(() -> {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                LOGGER.warn(e);
+            }
+        });
+    }
+
+    private static void appendReceivedFilter(ArxivEntryQuery query, StringBuilder sql, List<Long> params) {
+        if (query.getReceivedFrom() != null) {
+            sql.append(" AND received_at >= ?");
+            params.add(query.getReceivedFrom().getTime());
+        }
+        if (query.getReceivedTo() != null) {
+            sql.append(" AND received_at < ?");
+            params.add(query.getReceivedTo().getTime());
+        }
+    }
+
 }
@@ -0,0 +1,213 @@
+package edu.soton.ecs.arxivscraper;
+
+import org.apache.commons.lang3.SerializationUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Compact binary encoding of ArxivEntry.
+// Layout: format byte, flags byte, then each field in declaration order, in the EntryWireFormat encoding.
+// With a CategoryDictionary, V2 stores each category as a varint tag: 0 for null, 1 followed by a string
+// for categories without a code, or code + 2. Decoding shares the dictionary's category instances.
+// Instances reuse their buffers and (de)compressors, so they are not thread safe.
+public class ArxivEntryCodec {
+
+    public static final byte FORMAT_V1 = 1;
+    public static final byte FORMAT_V2 = 2;
+
+    private static final int FLAG_SUMMARY_DEFLATED = 1;
+
+    // Java serialization stream magic, for rows written before this codec
+    private static final byte SERIALIZATION_MAGIC_0 = (byte) 0xAC;
+    private static final byte SERIALIZATION_MAGIC_1 = (byte) 0xED;
+
+    private final boolean compressSummary;
+    private final int compressThreshold;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private CategoryDictionary dictionary = null;
+
+    private final EntryWireFormat.Writer out = new EntryWireFormat.Writer(4096);
+    private byte[] scratch = new byte[4096];
+
+    public ArxivEntryCodec() {
+        this(false, 256);
+    }
+
+    public ArxivEntryCodec(boolean compressSummary, int compressThreshold) {
+        this.compressSummary = compressSummary;
+        this.compressThreshold = compressThreshold;
+    }
+
+    // Every code in the dictionary must be persisted before entries encoded with it
+    public void setCategoryDictionary(CategoryDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    public static boolean isLegacySerialized(byte[] raw) {
+        return raw.length >= 2 && raw[0] == SERIALIZATION_MAGIC_0 && raw[1] == SERIALIZATION_MAGIC_1;
+    }
+
+    public byte[] encode(ArxivEntry arxivEntry) {
+        out.reset();
+        out.writeByte(dictionary != null ? FORMAT_V2 : FORMAT_V1);
+        int flagsPos = out.size();
+        out.writeByte(0);
+
+        out.writeString(arxivEntry.getId());
+        out.writeString(arxivEntry.getTitle());
+        out.writeDate(arxivEntry.getPublished());
+        out.writeDate(arxivEntry.getUpdated());
+        if (writeSummary(arxivEntry.getSummary()))
+            out.array()[flagsPos] |= FLAG_SUMMARY_DEFLATED;
+        out.writeStringList(arxivEntry.getAuthors());
+        out.writeLinks(arxivEntry.getLinks());
+        if (dictionary != null) {
+            writeCategoryList(arxivEntry.getCategories());
+            writeCategory(arxivEntry.getPrimaryCategory());
+        } else {
+            out.writeStringList(arxivEntry.getCategories());
+            out.writeString(arxivEntry.getPrimaryCategory());
+        }
+        out.writeString(arxivEntry.getComment());
+        out.writeString(arxivEntry.getDoi());
+        out.writeString(arxivEntry.getJournalRef());
+        return out.toByteArray();
+    }
+
+    public ArxivEntry decode(byte[] raw) {
+        if (isLegacySerialized(raw)) {
+            return (ArxivEntry) SerializationUtils.deserialize(raw);
+        }
+        if (raw.length < 2 || (raw[0] != FORMAT_V1 && raw[0] != FORMAT_V2)) {
+            throw new IllegalArgumentException("Unknown entry encoding " + (raw.length > 0 ? raw[0] : -1));
+        }
+        boolean isCategoryCoded = raw[0] == FORMAT_V2;
+        if (isCategoryCoded && dictionary == null) {
+            throw new IllegalStateException("Category dictionary required to decode entry");
+        }
+
+        EntryWireFormat.Reader reader = new EntryWireFormat.Reader(raw, 2);
+        boolean summaryDeflated = (raw[1] & FLAG_SUMMARY_DEFLATED) != 0;
+
+        ArxivEntry arxivEntry = new ArxivEntry();
+        arxivEntry.setId(reader.readString());
+        arxivEntry.setTitle(reader.readString());
+        arxivEntry.setPublished(reader.readDate());
+        arxivEntry.setUpdated(reader.readDate());
+        arxivEntry.setSummary(summaryDeflated ? readDeflatedString(reader) : reader.readString());
+        arxivEntry.setAuthors(reader.readStringList());
+        arxivEntry.setLinks(reader.readLinks());
+        if (isCategoryCoded) {
+            arxivEntry.setCategories(readCategoryList(reader));
+            arxivEntry.setPrimaryCategory(readCategory(reader));
+        } else {
+            List<String> categories = reader.readStringList();
+            String primaryCategory = reader.readString();
+            if (dictionary != null) {
+                if (categories != null)
+                    categories.replaceAll(dictionary::intern);
+                primaryCategory = dictionary.intern(primaryCategory);
+            }
+            arxivEntry.setCategories(categories);
+            arxivEntry.setPrimaryCategory(primaryCategory);
+        }
+        arxivEntry.setComment(reader.readString());
+        arxivEntry.setDoi(reader.readString());
+        arxivEntry.setJournalRef(reader.readString());
+        return arxivEntry;
+    }
+
+    private void writeCategory(String category) {
+        if (category == null) {
+            out.writeVarLong(0);
+            return;
+        }
+        int code = dictionary.getCode(category);
+        if (code >= 0) {
+            out.writeVarLong(code + 2);
+        } else {
+            out.writeVarLong(1);
+            out.writeString(category);
+        }
+    }
+
+    private void writeCategoryList(List<String> categories) {
+        if (categories == null) {
+            out.writeVarLong(0);
+            return;
+        }
+        out.writeVarLong(categories.size() + 1);
+        for (String category : categories) {
+            writeCategory(category);
+        }
+    }
+
+    private String readCategory(EntryWireFormat.Reader reader) {
+        long tag = reader.readVarLong();
+        if (tag == 0)
+            return null;
+        if (tag == 1)
+            return reader.readString();
+        return dictionary.getName((int) (tag - 2));
+    }
+
+    private List<String> readCategoryList(EntryWireFormat.Reader reader) {
+        int size = (int) reader.readVarLong() - 1;
+        if (size < 0)
+            return null;
+        List<String> categories = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            categories.add(readCategory(reader));
+        }
+        return categories;
+    }
+
+    private boolean writeSummary(String summary) {
+        if (!compressSummary || summary == null || summary.length() < compressThreshold) {
+            out.writeString(summary);
+            return false;
+        }
+        byte[] bytes = summary.getBytes(StandardCharsets.UTF_8);
+        deflater.reset();
+        deflater.setInput(bytes);
+        deflater.finish();
+        ensureScratch(bytes.length + 64);
+        int compressedLength = deflater.deflate(scratch);
+        if (!deflater.finished() || compressedLength >= bytes.length) {
+            out.writeString(summary);
+            return false;
+        }
+        out.writeVarLong(bytes.length);
+        out.writeVarLong(compressedLength);
+        out.writeBytes(scratch, 0, compressedLength);
+        return true;
+    }
+
+    private String readDeflatedString(EntryWireFormat.Reader reader) {
+        int length = (int) reader.readVarLong();
+        int compressedLength = (int) reader.readVarLong();
+        ensureScratch(length);
+        inflater.reset();
+        inflater.setInput(reader.raw, reader.pos, compressedLength);
+        try {
+            int inflated = inflater.inflate(scratch, 0, length);
+            if (inflated != length)
+                throw new IllegalArgumentException("Truncated summary, expected " + length + " bytes but got " + inflated);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt summary", e);
+        }
+        reader.pos += compressedLength;
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private void ensureScratch(int size) {
+        if (scratch.length < size)
+            scratch = new byte[Math.max(size, scratch.length * 2)];
+    }
+
+}
@@ -0,0 +1,134 @@
+package edu.soton.ecs.arxivscraper;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+// 64-bit hash of what a reader sees of an entry, stored with each row so that a re-harvested entry is only
+// written and output again when its content changed.
+// updated is left out, as arXiv moves it without any visible change, and runs of whitespace hash as a
+// single space, so re-wrapped titles and abstracts are not changes. Each field is streamed into one hasher
+// char by char without building strings. Changing what is hashed makes every stored entry look changed once.
+public class ArxivEntryFingerprint {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    // Named as in the JSON output
+    public enum Field {
+        ID("id", (hasher, arxivEntry) -> putString(hasher, arxivEntry.getId())),
+        TITLE("title", (hasher, arxivEntry) -> putString(hasher, arxivEntry.getTitle())),
+        PUBLISHED("published", (hasher, arxivEntry) -> putDate(hasher, arxivEntry.getPublished())),
+        SUMMARY("summary", (hasher, arxivEntry) -> putString(hasher, arxivEntry.getSummary())),
+        AUTHORS("authors", (hasher, arxivEntry) -> putStringList(hasher, arxivEntry.getAuthors())),
+        LINKS("links", (hasher, arxivEntry) -> putLinks(hasher, arxivEntry.getLinks())),
+        CATEGORIES("categories", (hasher, arxivEntry) -> putStringList(hasher, arxivEntry.getCategories())),
+        PRIMARY_CATEGORY("primaryCategory", (hasher, arxivEntry) -> putString(hasher, arxivEntry.getPrimaryCategory())),
+        COMMENT("comment", (hasher, arxivEntry) -> putString(hasher, arxivEntry.getComment())),
+        DOI("doi", (hasher, arxivEntry) -> putString(hasher, arxivEntry.getDoi())),
+        JOURNAL_REF("journalRef", (hasher, arxivEntry) -> putString(hasher, arxivEntry.getJournalRef()));
+
+        private final String name;
+        private final BiConsumer<Hasher, ArxivEntry> funnel;
+
+        Field(String name, BiConsumer<Hasher, ArxivEntry> funnel) {
+            this.name = name;
+            this.funnel = funnel;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    public static long of(ArxivEntry arxivEntry) {
+        Hasher hasher = HASH.newHasher();
+        for (Field field : Field.values()) {
+            field.funnel.accept(hasher, arxivEntry);
+        }
+        return hasher.hash().asLong();
+    }
+
+    // Whether a copy updated at updated is a later snapshot of the same version than one updated at
+    // otherUpdated, so that a stale copy, e.g. replayed or redelivered, never replaces a newer revision.
+    // A missing date counts as the oldest.
+    public static boolean isNewerSnapshot(Date updated, Date otherUpdated) {
+        return updated != null && (otherUpdated == null || updated.after(otherUpdated));
+    }
+
+    // Names of the fields whose content differs, compared the same way as the fingerprint
+    public static Set<String> changedFields(ArxivEntry previous, ArxivEntry current) {
+        Set<String> changed = new LinkedHashSet<>();
+        for (Field field : Field.values()) {
+            Hasher previousHasher = HASH.newHasher();
+            field.funnel.accept(previousHasher, previous);
+            Hasher currentHasher = HASH.newHasher();
+            field.funnel.accept(currentHasher, current);
+            if (!previousHasher.hash().equals(currentHasher.hash()))
+                changed.add(field.name);
+        }
+        return changed;
+    }
+
+    // Every value ends with its length, so adjacent fields cannot run into each other
+    private static void putString(Hasher hasher, String value) {
+        if (value == null) {
+            hasher.putInt(-1);
+            return;
+        }
+        int length = 0;
+        boolean isSpace = false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (Character.isWhitespace(c)) {
+                isSpace = length > 0;
+                continue;
+            }
+            if (isSpace) {
+                hasher.putChar(' ');
+                length++;
+                isSpace = false;
+            }
+            hasher.putChar(c);
+            length++;
+        }
+        hasher.putInt(length);
+    }
+
+    private static void putStringList(Hasher hasher, List<String> values) {
+        if (values == null) {
+            hasher.putInt(-1);
+            return;
+        }
+        for (String value : values) {
+            putString(hasher, value);
+        }
+        hasher.putInt(values.size());
+    }
+
+    private static void putDate(Hasher hasher, Date date) {
+        hasher.putBoolean(date != null);
+        if (date != null)
+            hasher.putLong(date.getTime());
+    }
+
+    private static void putLinks(Hasher hasher, List<ArxivEntry.Link> links) {
+        if (links == null) {
+            hasher.putInt(-1);
+            return;
+        }
+        for (ArxivEntry.Link link : links) {
+            putString(hasher, link.getTitle());
+            putString(hasher, link.getHref());
+            putString(hasher, link.getRel());
+            putString(hasher, link.getType());
+        }
+        hasher.putInt(links.size());
+    }
+
+}
@@ -0,0 +1,56 @@
+package edu.soton.ecs.arxivscraper;
+
+import com.google.common.base.MoreObjects;
+
+import java.util.Date;
+
+public class ArxivEntryQuery {
+
+    private Date receivedFrom;
+    private Date receivedTo;
+    private String category;
+    private int fetchSize = 1000;
+
+    public Date getReceivedFrom() {
+        return receivedFrom;
+    }
+
+    public void setReceivedFrom(Date receivedFrom) {
+        this.receivedFrom = receivedFrom;
+    }
+
+    public Date getReceivedTo() {
+        return receivedTo;
+    }
+
+    public void setReceivedTo(Date receivedTo) {
+        this.receivedTo = receivedTo;
+    }
+
+    public String getCategory() {
+        return category;
+    }
+
+    public void setCategory(String category) {
+        this.category = category;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("receivedFrom", receivedFrom)
+                .add("receivedTo", receivedTo)
+                .add("category", category)
+                .add("fetchSize", fetchSize)
+                .toString();
+    }
+
+}
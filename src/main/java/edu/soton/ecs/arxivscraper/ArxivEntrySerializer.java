@@ -0,0 +1,66 @@
+package edu.soton.ecs.arxivscraper;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
+import edu.soton.ecs.arxivscraper.util.ByteArrayBuffer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+// Streams entries as UTF-8 JSON through a single JsonWriter into a reusable buffer.
+// Instances keep writer state between calls, so they are not thread safe.
+public class ArxivEntrySerializer {
+
+    // For callers that only need the occasional conversion
+    public static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(ArxivEntry.class, new ArxivEntryTypeAdapter())
+            .create();
+
+    private final ArxivEntryTypeAdapter adapter = new ArxivEntryTypeAdapter();
+    private final ByteArrayBuffer buffer = new ByteArrayBuffer(8192);
+    private final JsonWriter jsonWriter;
+
+    public ArxivEntrySerializer() {
+        // Buffered so that JsonWriter's many small writes reach the encoder as one char array per entry
+        jsonWriter = new JsonWriter(new BufferedWriter(new OutputStreamWriter(buffer, StandardCharsets.UTF_8), 8192));
+        // Lenient so that one writer can emit a top level value per entry
+        jsonWriter.setLenient(true);
+    }
+
+    // Replaces the contents of target with the JSON of the entry
+    public void serialize(ArxivEntry arxivEntry, ByteArrayBuffer target) throws IOException {
+        write(arxivEntry);
+        target.reset();
+        buffer.writeTo(target);
+    }
+
+    // Appends the JSON of the entry to target, e.g. to build a chunk of JSON lines
+    public void append(ArxivEntry arxivEntry, ByteArrayBuffer target) throws IOException {
+        write(arxivEntry);
+        buffer.writeTo(target);
+    }
+
+    // Replaces the contents of target with a delta message of the fields current changed from previous
+    public void serializeDelta(ArxivEntry previous, ArxivEntry current, ByteArrayBuffer target) throws IOException {
+        buffer.reset();
+        adapter.writeDelta(jsonWriter, current, ArxivEntryFingerprint.changedFields(previous, current));
+        jsonWriter.flush();
+        target.reset();
+        buffer.writeTo(target);
+    }
+
+    public String toJson(ArxivEntry arxivEntry) throws IOException {
+        write(arxivEntry);
+        return buffer.toUtf8String();
+    }
+
+    private void write(ArxivEntry arxivEntry) throws IOException {
+        buffer.reset();
+        adapter.write(jsonWriter, arxivEntry);
+        jsonWriter.flush();
+    }
+
+}
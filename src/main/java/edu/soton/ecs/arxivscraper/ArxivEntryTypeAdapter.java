@@ -0,0 +1,245 @@
+package edu.soton.ecs.arxivscraper;
+
+import com.google.common.base.Optional;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import edu.soton.ecs.arxivscraper.util.DateTimeUtil;
+
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+// Field by field JSON mapping of ArxivEntry, without reflection.
+// Field names match Gson's reflective output; nulls are omitted and dates are ISO-8601 in UTC.
+public class ArxivEntryTypeAdapter extends TypeAdapter<ArxivEntry> {
+
+    // Top level field of a delta message, which only carries the fields that changed
+    public static final String CHANGED = "changed";
+
+    @Override
+    public void write(JsonWriter out, ArxivEntry arxivEntry) throws IOException {
+        if (arxivEntry == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        writeFields(out, arxivEntry, null);
+        out.endObject();
+    }
+
+    // Writes the id and updated time of an entry whose content changed at the same version, and under
+    // "changed" the new value of each changed field, null where the field was removed
+    public void writeDelta(JsonWriter out, ArxivEntry arxivEntry, Set<String> changedFields) throws IOException {
+        out.beginObject();
+        writeString(out, "id", arxivEntry.getId(), null);
+        writeDate(out, "updated", arxivEntry.getUpdated(), null);
+        out.name(CHANGED).beginObject();
+        writeFields(out, arxivEntry, changedFields);
+        out.endObject();
+        out.endObject();
+    }
+
+    // Every non-null field, or with fields given, only those fields including nulls
+    private static void writeFields(JsonWriter out, ArxivEntry arxivEntry, Set<String> fields) throws IOException {
+        writeString(out, "id", arxivEntry.getId(), fields);
+        writeString(out, "title", arxivEntry.getTitle(), fields);
+        writeDate(out, "published", arxivEntry.getPublished(), fields);
+        writeDate(out, "updated", arxivEntry.getUpdated(), fields);
+        writeString(out, "summary", arxivEntry.getSummary(), fields);
+        writeStringList(out, "authors", arxivEntry.getAuthors(), fields);
+        if (fields == null || fields.contains("links")) {
+            if (arxivEntry.getLinks() != null) {
+                out.name("links").beginArray();
+                for (ArxivEntry.Link link : arxivEntry.getLinks()) {
+                    out.beginObject();
+                    writeString(out, "title", link.getTitle(), null);
+                    writeString(out, "href", link.getHref(), null);
+                    writeString(out, "rel", link.getRel(), null);
+                    writeString(out, "type", link.getType(), null);
+                    out.endObject();
+                }
+                out.endArray();
+            } else if (fields != null) {
+                out.name("links").nullValue();
+            }
+        }
+        writeStringList(out, "categories", arxivEntry.getCategories(), fields);
+        writeString(out, "primaryCategory", arxivEntry.getPrimaryCategory(), fields);
+        writeString(out, "comment", arxivEntry.getComment(), fields);
+        writeString(out, "doi", arxivEntry.getDoi(), fields);
+        writeString(out, "journalRef", arxivEntry.getJournalRef(), fields);
+    }
+
+    @Override
+    public ArxivEntry read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        ArxivEntry arxivEntry = new ArxivEntry();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "id":
+                    arxivEntry.setId(in.nextString());
+                    break;
+                case "title":
+                    arxivEntry.setTitle(in.nextString());
+                    break;
+                case "published":
+                    arxivEntry.setPublished(readDate(in));
+                    break;
+                case "updated":
+                    arxivEntry.setUpdated(readDate(in));
+                    break;
+                case "summary":
+                    arxivEntry.setSummary(in.nextString());
+                    break;
+                case "authors":
+                    arxivEntry.setAuthors(readStringList(in));
+                    break;
+                case "links":
+                    arxivEntry.setLinks(readLinks(in));
+                    break;
+                case "categories":
+                    arxivEntry.setCategories(readStringList(in));
+                    break;
+                case "primaryCategory":
+                    arxivEntry.setPrimaryCategory(in.nextString());
+                    break;
+                case "comment":
+                    arxivEntry.setComment(in.nextString());
+                    break;
+                case "doi":
+                    arxivEntry.setDoi(in.nextString());
+                    break;
+                case "journalRef":
+                    arxivEntry.setJournalRef(in.nextString());
+                    break;
+                case CHANGED:
+                    // Reading only the unchanged id and updated time would lose the rest of the entry
+                    throw new JsonParseException("Delta message of " + arxivEntry.getId() + " is not a full entry");
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return arxivEntry;
+    }
+
+    private static void writeString(JsonWriter out, String name, String value, Set<String> fields)
+            throws IOException {
+        if (fields != null && !fields.contains(name))
+            return;
+        if (value != null) {
+            out.name(name).value(value);
+        } else if (fields != null) {
+            out.name(name).nullValue();
+        }
+    }
+
+    private static void writeDate(JsonWriter out, String name, Date value, Set<String> fields) throws IOException {
+        if (fields != null && !fields.contains(name))
+            return;
+        if (value != null) {
+            out.name(name).value(DateTimeUtil.formatISO8601(value));
+        } else if (fields != null) {
+            out.name(name).nullValue();
+        }
+    }
+
+    private static void writeStringList(JsonWriter out, String name, List<String> values, Set<String> fields)
+            throws IOException {
+        if (fields != null && !fields.contains(name))
+            return;
+        if (values == null) {
+            if (fields != null)
+                out.name(name).nullValue();
+            return;
+        }
+        out.name(name).beginArray();
+        for (String value : values) {
+            out.value(value);
+        }
+        out.endArray();
+    }
+
+    private static Date readDate(JsonReader in) throws IOException {
+        String value = in.nextString();
+        Optional<Date> date = DateTimeUtil.tryParseISO8601(value);
+        if (date.isPresent()) {
+            return date.get();
+        }
+        // Output written before dates were ISO-8601 used Gson's default US locale format
+        try {
+            return DateFormat.getDateTimeInstance(DateFormat.DEFAULT, DateFormat.DEFAULT, Locale.US).parse(value);
+        } catch (ParseException e) {
+            throw new JsonParseException("Unparseable date " + value, e);
+        }
+    }
+
+    private static List<String> readStringList(JsonReader in) throws IOException {
+        List<String> values = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext()) {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                values.add(null);
+            } else {
+                values.add(in.nextString());
+            }
+        }
+        in.endArray();
+        return values;
+    }
+
+    private static List<ArxivEntry.Link> readLinks(JsonReader in) throws IOException {
+        List<ArxivEntry.Link> links = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext()) {
+            ArxivEntry.Link link = new ArxivEntry.Link();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "title":
+                        link.setTitle(in.nextString());
+                        break;
+                    case "href":
+                        link.setHref(in.nextString());
+                        break;
+                    case "rel":
+                        link.setRel(in.nextString());
+                        break;
+                    case "type":
+                        link.setType(in.nextString());
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            links.add(link);
+        }
+        in.endArray();
+        return links;
+    }
+
+}
@@ -0,0 +1,74 @@
+package edu.soton.ecs.arxivscraper;
+
+import edu.soton.ecs.arxivscraper.util.IniWrapper;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+
+// Command line bulk export of the SQLite archive.
+// Usage: arxivexport [-f jsonl|columnar] [-t threads] [-c chunkRows] output
+// A jsonl output path ending in .gz is gzip compressed.
+public class ArxivExport {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    public static void main(String[] args) throws Exception {
+        String configLocation = System.getProperty("app.configurationFile");
+        if (StringUtils.isBlank(configLocation)) {
+            configLocation = "./config/config.ini";
+        }
+
+        File configFile = new File(configLocation);
+        if (!configFile.exists()) {
+            LOGGER.error("Unable to find config file at {}", configLocation);
+            System.exit(1);
+        }
+
+        ArxivExporter.Format format = ArxivExporter.Format.JSONL;
+        int threads = 0;
+        int chunkRows = 0;
+        String output = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-f") && i + 1 < args.length) {
+                format = ArxivExporter.Format.valueOf(args[++i].toUpperCase());
+            } else if (args[i].equals("-t") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-c") && i + 1 < args.length) {
+                chunkRows = Integer.parseInt(args[++i]);
+            } else {
+                output = args[i];
+            }
+        }
+        if (output == null) {
+            System.err.println("Usage: arxivexport [-f jsonl|columnar] [-t threads] [-c chunkRows] output");
+            System.exit(2);
+        }
+
+        IniWrapper.load(configFile);
+        if (!IniWrapper.optString("DB", "backend", "sqlite").equals("sqlite")) {
+            LOGGER.error("Export reads rowid ranges and is only supported by the sqlite backend");
+            System.exit(1);
+        }
+        String dbFile = IniWrapper.optString("DB", "db_file", "db/db.sqlite");
+
+        ArxivDbWrapper dbwrapper = new ArxivDbWrapper(dbFile, "arxiv_raw");
+        try {
+            dbwrapper.initalize();
+            ArxivExporter exporter = new ArxivExporter(dbwrapper);
+            if (threads > 0)
+                exporter.setThreads(threads);
+            if (chunkRows > 0)
+                exporter.setChunkRows(chunkRows);
+            long start = System.currentTimeMillis();
+            long numEntries = exporter.export(new File(output), format);
+            LOGGER.info("Export took {} ms", System.currentTimeMillis() - start);
+            if (numEntries == 0)
+                LOGGER.warn("No entries exported");
+        } finally {
+            dbwrapper.close();
+        }
+    }
+
+}
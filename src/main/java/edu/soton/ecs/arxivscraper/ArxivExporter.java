@@ -0,0 +1,247 @@
+package edu.soton.ecs.arxivscraper;
+
+import edu.soton.ecs.arxivscraper.util.ByteArrayBuffer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// Exports the whole table by splitting it into rowid ranges that are read, decoded and serialized in parallel.
+// Each worker thread has its own read connection. Chunks are written in rowid order, and at most
+// maxInFlightChunks are held in memory at once.
+// A JSONL export to a .gz file compresses each chunk on its worker as a separate gzip member; concatenated
+// members are a valid gzip file.
+public class ArxivExporter {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    public enum Format {
+        JSONL, COLUMNAR
+    }
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private ArxivDbWrapper dbwrapper;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int chunkRows = 5000;
+    private int maxInFlightChunks = 0;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    public ArxivExporter(ArxivDbWrapper dbwrapper) {
+        this.dbwrapper = dbwrapper;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    // Rows per rowid range; also the rows of each columnar row group, less any gaps in the rowids
+    public void setChunkRows(int chunkRows) {
+        this.chunkRows = chunkRows;
+    }
+
+    // 0 is twice the number of threads
+    public void setMaxInFlightChunks(int maxInFlightChunks) {
+        this.maxInFlightChunks = maxInFlightChunks;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    // Returns the number of entries written
+    public long export(File out, Format format) throws Exception {
+        boolean isGzip = format == Format.JSONL && out.getName().endsWith(".gz");
+        int maxInFlight = maxInFlightChunks > 0 ? maxInFlightChunks : threads * 2;
+        long[] range = dbwrapper.getRowidRange();
+
+        List<ExportWorker> workers = Collections.synchronizedList(new ArrayList<>());
+        ThreadLocal<ExportWorker> worker = ThreadLocal.withInitial(() -> {
+            try {
+                ExportWorker exportWorker = new ExportWorker(format, isGzip);
+                workers.add(exportWorker);
+                return exportWorker;
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        ForkJoinPool pool = new ForkJoinPool(threads, forkJoinPool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName("export-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+
+        long numEntries = 0;
+        long position = 0;
+        List<Long> rowGroupOffsets = new ArrayList<>();
+        Deque<ForkJoinTask<Chunk>> inFlight = new ArrayDeque<>();
+        try (OutputStream output = new BufferedOutputStream(new FileOutputStream(out), 1 << 16);) {
+            if (format == Format.COLUMNAR) {
+                ArxivColumnarFile.writeHeader(output);
+                position += ArxivColumnarFile.headerSize();
+            }
+            long nextRowid = range != null ? range[0] : 0;
+            long lastRowid = range != null ? range[1] : -1;
+            while (nextRowid <= lastRowid || !inFlight.isEmpty()) {
+                while (nextRowid <= lastRowid && inFlight.size() < maxInFlight) {
+                    long from = nextRowid;
+                    long to = Math.min(lastRowid, from + chunkRows - 1) + 1;
+                    inFlight.addLast(pool.submit(() -> worker.get().export(from, to)));
+                    nextRowid = to;
+                }
+                Chunk chunk = inFlight.removeFirst().join();
+                if (chunk.numEntries == 0)
+                    continue;
+                if (format == Format.COLUMNAR)
+                    rowGroupOffsets.add(position);
+                output.write(chunk.bytes);
+                position += chunk.bytes.length;
+                numEntries += chunk.numEntries;
+            }
+            if (format == Format.COLUMNAR)
+                ArxivColumnarFile.writeFooter(output, rowGroupOffsets, numEntries);
+        } finally {
+            for (ForkJoinTask<Chunk> task : inFlight) {
+                task.cancel(false);
+            }
+            pool.shutdown();
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+            for (ExportWorker exportWorker : workers) {
+                exportWorker.close();
+            }
+        }
+        LOGGER.info("Exported {} entries to {}", numEntries, out);
+        return numEntries;
+    }
+
+    private static class Chunk {
+        private final byte[] bytes;
+        private final int numEntries;
+
+        private Chunk(byte[] bytes, int numEntries) {
+            this.bytes = bytes;
+            this.numEntries = numEntries;
+        }
+    }
+
+    // Per thread state, reused for every chunk the thread exports
+    private class ExportWorker {
+        private final Format format;
+        private final boolean isGzip;
+        private final Connection connection;
+        private final PreparedStatement select;
+        private final ArxivEntryCodec codec = new ArxivEntryCodec();
+        private final ArxivEntrySerializer serializer = new ArxivEntrySerializer();
+        private final ArxivColumnarFile.RowGroupWriter rowGroupWriter;
+        private final ByteArrayBuffer buffer = new ByteArrayBuffer(1 << 20);
+        private final Deflater deflater;
+        private final CRC32 crc = new CRC32();
+        private byte[] compressed = new byte[1 << 16];
+
+        private ExportWorker(Format format, boolean isGzip) throws SQLException {
+            this.format = format;
+            this.isGzip = isGzip;
+            codec.setCategoryDictionary(dbwrapper.getCategoryDictionary());
+            connection = dbwrapper.openReadConnection();
+            select = connection.prepareStatement("SELECT raw FROM " + dbwrapper.getTablename()
+                    + " WHERE rowid >= ? AND rowid < ? ORDER BY rowid");
+            select.setFetchSize(chunkRows);
+            rowGroupWriter = format == Format.COLUMNAR ? new ArxivColumnarFile.RowGroupWriter(compressionLevel) : null;
+            deflater = isGzip ? new Deflater(compressionLevel, true) : null;
+        }
+
+        private Chunk export(long fromRowid, long toRowid) throws SQLException, IOException {
+            buffer.reset();
+            int numEntries = 0;
+            select.setLong(1, fromRowid);
+            select.setLong(2, toRowid);
+            try (ResultSet results = select.executeQuery();) {
+                while (results.next()) {
+                    byte[] raw = results.getBytes(1);
+                    ArxivEntry arxivEntry;
+                    try {
+                        arxivEntry = codec.decode(raw);
+                    } catch (ClassCastException e) {
+                        // Legacy rows of other objects stored through defaultInsert
+                        continue;
+                    }
+                    if (format == Format.COLUMNAR) {
+                        rowGroupWriter.add(arxivEntry);
+                    } else {
+                        serializer.append(arxivEntry, buffer);
+                        buffer.write('\n');
+                    }
+                    numEntries++;
+                }
+            }
+            if (numEntries == 0)
+                return new Chunk(new byte[0], 0);
+            if (format == Format.COLUMNAR) {
+                rowGroupWriter.writeTo(buffer);
+                return new Chunk(buffer.toByteArray(), numEntries);
+            }
+            return new Chunk(isGzip ? gzipMember() : buffer.toByteArray(), numEntries);
+        }
+
+        private byte[] gzipMember() {
+            crc.reset();
+            crc.update(buffer.array(), 0, buffer.size());
+            deflater.reset();
+            deflater.setInput(buffer.array(), 0, buffer.size());
+            deflater.finish();
+            int length = GZIP_HEADER.length;
+            System.arraycopy(GZIP_HEADER, 0, compressed, 0, length);
+            while (!deflater.finished()) {
+                if (length == compressed.length)
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            byte[] member = Arrays.copyOf(compressed, length + 8);
+            writeIntLE(member, length, (int) crc.getValue());
+            writeIntLE(member, length + 4, buffer.size());
+            return member;
+        }
+
+        private void close() {
+            try {
+                select.close();
+                connection.close();
+            } catch (SQLException e) {
+                LOGGER.warn(e);
+            }
+            if (rowGroupWriter != null)
+                rowGroupWriter.close();
+            if (deflater != null)
+                deflater.end();
+        }
+    }
+
+    private static void writeIntLE(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+        bytes[offset + 2] = (byte) (value >>> 16);
+        bytes[offset + 3] = (byte) (value >>> 24);
+    }
+
+}
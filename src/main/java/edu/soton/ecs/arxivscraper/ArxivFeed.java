@@ -0,0 +1,69 @@
+package edu.soton.ecs.arxivscraper;
+
+import com.google.common.base.MoreObjects;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ArxivFeed {
+
+    private List<ArxivEntry> entries = new ArrayList<>();
+    private int numEntries = 0;
+    private int totalResults = -1;
+    private int startIndex = -1;
+    private boolean isMarkReached = true;
+
+    public List<ArxivEntry> getEntries() {
+        return entries;
+    }
+
+    public void setEntries(List<ArxivEntry> entries) {
+        this.entries = entries;
+    }
+
+    // Number of entries read from the page, including those streamed to a consumer rather than kept in entries
+    public int getNumEntries() {
+        return numEntries;
+    }
+
+    public void setNumEntries(int numEntries) {
+        this.numEntries = numEntries;
+    }
+
+    public int getTotalResults() {
+        return totalResults;
+    }
+
+    public void setTotalResults(int totalResults) {
+        this.totalResults = totalResults;
+    }
+
+    public int getStartIndex() {
+        return startIndex;
+    }
+
+    public void setStartIndex(int startIndex) {
+        this.startIndex = startIndex;
+    }
+
+    // False when a poll stopped paging before reaching the previous poll's mark, leaving entries unread
+    public boolean isMarkReached() {
+        return isMarkReached;
+    }
+
+    public void setMarkReached(boolean isMarkReached) {
+        this.isMarkReached = isMarkReached;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("entries", entries.size())
+                .add("numEntries", numEntries)
+                .add("totalResults", totalResults)
+                .add("startIndex", startIndex)
+                .add("isMarkReached", isMarkReached)
+                .toString();
+    }
+
+}
@@ -0,0 +1,200 @@
+package edu.soton.ecs.arxivscraper;
+
+import edu.soton.ecs.arxivscraper.util.DateTimeUtil;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Consumer;
+
+public class ArxivFeedParser {
+
+    private static final String ATOM_NS = "http://www.w3.org/2005/Atom";
+    private static final String ARXIV_NS = "http://arxiv.org/schemas/atom";
+    private static final String OPENSEARCH_NS = "http://a9.com/-/spec/opensearch/1.1/";
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
+
+    private static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    public ArxivFeed parse(InputStream is) throws XMLStreamException {
+        List<ArxivEntry> entries = new ArrayList<>();
+        ArxivFeed arxivFeed = parse(is, entries::add);
+        arxivFeed.setEntries(entries);
+        return arxivFeed;
+    }
+
+    // Entries are handed to the consumer as soon as they are read; the returned feed only carries paging metadata
+    public ArxivFeed parse(InputStream is, Consumer<ArxivEntry> consumer) throws XMLStreamException {
+        ArxivFeed arxivFeed = new ArxivFeed();
+        int numEntries = 0;
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(is);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                String ns = reader.getNamespaceURI();
+                String name = reader.getLocalName();
+                if (ATOM_NS.equals(ns) && name.equals("entry")) {
+                    consumer.accept(parseEntry(reader));
+                    numEntries++;
+                } else if (OPENSEARCH_NS.equals(ns) && name.equals("totalResults")) {
+                    arxivFeed.setTotalResults(Integer.parseInt(reader.getElementText().trim()));
+                } else if (OPENSEARCH_NS.equals(ns) && name.equals("startIndex")) {
+                    arxivFeed.setStartIndex(Integer.parseInt(reader.getElementText().trim()));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        arxivFeed.setNumEntries(numEntries);
+        return arxivFeed;
+    }
+
+    private ArxivEntry parseEntry(XMLStreamReader reader) throws XMLStreamException {
+        ArxivEntry arxivEntry = new ArxivEntry();
+        List<String> authors = new ArrayList<>();
+        List<ArxivEntry.Link> links = new ArrayList<>();
+        List<ArxivEntry.Link> otherLinks = new ArrayList<>();
+        List<String> categories = new ArrayList<>();
+
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+                continue;
+            } else if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+
+            String ns = reader.getNamespaceURI();
+            String name = reader.getLocalName();
+            if (ATOM_NS.equals(ns)) {
+                switch (name) {
+                    case "id":
+                        arxivEntry.setId(reader.getElementText());
+                        break;
+                    case "title":
+                        arxivEntry.setTitle(reader.getElementText());
+                        break;
+                    case "published":
+                        arxivEntry.setPublished(parseDate(reader.getElementText()));
+                        break;
+                    case "updated":
+                        arxivEntry.setUpdated(parseDate(reader.getElementText()));
+                        break;
+                    case "summary":
+                        arxivEntry.setSummary(reader.getElementText());
+                        break;
+                    case "author":
+                        String author = parseAuthor(reader);
+                        if (author != null)
+                            authors.add(author);
+                        break;
+                    case "link":
+                        // Same ordering as ROME: alternate links first, then the rest in document order
+                        ArxivEntry.Link link = parseLink(reader);
+                        if (link.getRel().equals("alternate")) {
+                            links.add(link);
+                        } else {
+                            otherLinks.add(link);
+                        }
+                        skipElement(reader);
+                        break;
+                    case "category":
+                        categories.add(reader.getAttributeValue(null, "term"));
+                        skipElement(reader);
+                        break;
+                    default:
+                        skipElement(reader);
+                }
+            } else if (ARXIV_NS.equals(ns)) {
+                switch (name) {
+                    case "primary_category":
+                        arxivEntry.setPrimaryCategory(reader.getAttributeValue(null, "term"));
+                        skipElement(reader);
+                        break;
+                    case "comment":
+                        arxivEntry.setComment(reader.getElementText());
+                        break;
+                    case "doi":
+                        arxivEntry.setDoi(reader.getElementText());
+                        break;
+                    case "journal_ref":
+                        arxivEntry.setJournalRef(reader.getElementText());
+                        break;
+                    default:
+                        skipElement(reader);
+                }
+            } else {
+                skipElement(reader);
+            }
+        }
+
+        links.addAll(otherLinks);
+        arxivEntry.setAuthors(authors);
+        arxivEntry.setLinks(links);
+        arxivEntry.setCategories(categories);
+        return arxivEntry;
+    }
+
+    private String parseAuthor(XMLStreamReader reader) throws XMLStreamException {
+        String author = null;
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                if (ATOM_NS.equals(reader.getNamespaceURI()) && reader.getLocalName().equals("name")) {
+                    author = reader.getElementText();
+                } else {
+                    // arxiv:affiliation is not mapped
+                    skipElement(reader);
+                }
+            }
+        }
+        return author;
+    }
+
+    private ArxivEntry.Link parseLink(XMLStreamReader reader) {
+        ArxivEntry.Link link = new ArxivEntry.Link();
+        link.setTitle(reader.getAttributeValue(null, "title"));
+        link.setHref(reader.getAttributeValue(null, "href"));
+        String rel = reader.getAttributeValue(null, "rel");
+        link.setRel(rel != null ? rel : "alternate");
+        link.setType(reader.getAttributeValue(null, "type"));
+        return link;
+    }
+
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static Date parseDate(String text) {
+        return DateTimeUtil.tryParseISO8601(text.trim()).orNull();
+    }
+
+}
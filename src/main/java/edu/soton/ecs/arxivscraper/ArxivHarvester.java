@@ -0,0 +1,176 @@
+package edu.soton.ecs.arxivscraper;
+
+import edu.soton.ecs.arxivscraper.util.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+// Owns the long lived scraper, DB and ingest pipeline shared by every poll and backfill page
+public class ArxivHarvester implements AutoCloseable {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    // Shared with ArxivCoordinator, so a backfill or poll resumes when switching between the two
+    static final String BACKFILL_CURSOR_PREFIX = "backfill:";
+    static final String HWM_CURSOR_PREFIX = "hwm:";
+
+    private ArxivScraper scraper;
+    private ArxivStore store;
+    private IngestPipeline pipeline;
+
+    private int pollPageSize = 50;
+    private int pollMaxResults = 50;
+    private int backfillPageSize = 200;
+    private int backfillMaxEmptyPages = 3;
+    private Map<String, BackfillShard> backfillShards;
+
+    private boolean isClosed = false;
+
+    private volatile long lastSuccessMillis = 0;
+    private volatile long newestEntryMillis = 0;
+
+    public ArxivHarvester(ArxivScraper scraper, ArxivStore store, IngestPipeline pipeline) {
+        this.scraper = scraper;
+        this.store = store;
+        this.pipeline = pipeline;
+        // Alert on time() minus either of these to catch a stalled scraper or a stalled feed
+        Metrics.gauge("arxiv_last_success_timestamp_seconds",
+                "When the last poll or backfill page was fully stored and output", () -> lastSuccessMillis / 1000.0);
+        Metrics.gauge("arxiv_newest_entry_timestamp_seconds",
+                "Newest updated time of any polled entry", () -> newestEntryMillis / 1000.0);
+    }
+
+    public void setPoll(int pageSize, int maxResults) {
+        this.pollPageSize = pageSize;
+        this.pollMaxResults = maxResults;
+    }
+
+    public void setBackfill(int pageSize, int maxEmptyPages) {
+        this.backfillPageSize = pageSize;
+        this.backfillMaxEmptyPages = maxEmptyPages;
+    }
+
+    // Fetches each shard newest first down to the newest updated time seen by the previous poll, paging past
+    // max_results when needed to reach it (see ArxivScraper.scrapeSince).
+    // Cursors are only read between flushes, while the pipeline is not using the DB connection.
+    public synchronized void poll() throws Exception {
+        List<String> shards = scraper.getShards();
+        Map<String, Long> marks = new HashMap<>();
+        for (String shard : shards) {
+            marks.put(shard, store.getCursor(HWM_CURSOR_PREFIX + shard, 0L));
+        }
+
+        List<Long> newMarks;
+        try {
+            newMarks = scraper.forEachShard(shards, shard -> {
+                long[] mark = {marks.get(shard)};
+                scraper.scrapeSince(shard, marks.get(shard), pollPageSize, pollMaxResults, arxivEntry -> {
+                    if (arxivEntry.getUpdated() != null)
+                        mark[0] = Math.max(mark[0], arxivEntry.getUpdated().getTime());
+                    pipeline.publish(arxivEntry);
+                });
+                return mark[0];
+            });
+        } catch (Exception e) {
+            // Entries already published are still stored and sent, but no cursor moves
+            pipeline.flush(Collections.emptyMap());
+            throw e;
+        }
+
+        Map<String, Long> cursors = new HashMap<>();
+        for (int i = 0; i < shards.size(); i++) {
+            String shard = shards.get(i);
+            if (newMarks.get(i) > marks.get(shard))
+                cursors.put(HWM_CURSOR_PREFIX + shard, newMarks.get(i));
+            newestEntryMillis = Math.max(newestEntryMillis, newMarks.get(i));
+        }
+        pipeline.flush(cursors);
+        lastSuccessMillis = System.currentTimeMillis();
+    }
+
+    // Fetches the next backfill page of every unfinished shard; returns false once all shards are complete
+    public synchronized boolean backfillPage() throws Exception {
+        if (backfillShards == null) {
+            backfillShards = new LinkedHashMap<>();
+            for (String shard : scraper.getShards()) {
+                BackfillShard backfillShard = new BackfillShard();
+                backfillShard.start = (int) store.getCursor(BACKFILL_CURSOR_PREFIX + shard, 0L);
+                backfillShards.put(shard, backfillShard);
+                LOGGER.info("Resuming backfill of [{}] from offset {}", shard, backfillShard.start);
+            }
+        }
+        List<String> shards = backfillShards.entrySet().stream()
+                .filter(entry -> !entry.getValue().isComplete)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+        if (shards.isEmpty()) {
+            return false;
+        }
+
+        // Offsets are only stable when new submissions are appended to the end of the result set
+        List<ArxivFeed> feeds;
+        try {
+            feeds = scraper.forEachShard(shards, shard -> scraper.scrape(
+                    shard, backfillShards.get(shard).start, backfillPageSize, "submittedDate", "ascending",
+                    pipeline::publish));
+        } catch (Exception e) {
+            pipeline.flush(Collections.emptyMap());
+            throw e;
+        }
+
+        Map<String, Long> cursors = new HashMap<>();
+        for (int i = 0; i < shards.size(); i++) {
+            String shard = shards.get(i);
+            int numEntries = feeds.get(i).getNumEntries();
+            if (numEntries > 0)
+                cursors.put(BACKFILL_CURSOR_PREFIX + shard, (long) backfillShards.get(shard).start + numEntries);
+        }
+        pipeline.flush(cursors);
+        lastSuccessMillis = System.currentTimeMillis();
+
+        for (int i = 0; i < shards.size(); i++) {
+            String shard = shards.get(i);
+            BackfillShard backfillShard = backfillShards.get(shard);
+            ArxivFeed feed = feeds.get(i);
+            int numEntries = feed.getNumEntries();
+            if (numEntries > 0) {
+                backfillShard.emptyPages = 0;
+                backfillShard.start += numEntries;
+                LOGGER.info("Backfill of [{}] at offset {} of {}", shard, backfillShard.start, feed.getTotalResults());
+            } else if (feed.getTotalResults() >= 0 && backfillShard.start >= feed.getTotalResults()) {
+                LOGGER.info("Backfill of [{}] complete at offset {}", shard, backfillShard.start);
+                backfillShard.isComplete = true;
+            } else if (++backfillShard.emptyPages >= backfillMaxEmptyPages) {
+                // Arxiv occasionally returns empty pages mid result set; retry before giving up
+                LOGGER.warn("Backfill of [{}] stopped at offset {} after {} empty pages",
+                        shard, backfillShard.start, backfillShard.emptyPages);
+                backfillShard.isComplete = true;
+            }
+        }
+        return backfillShards.values().stream().anyMatch(backfillShard -> !backfillShard.isComplete);
+    }
+
+    private static class BackfillShard {
+        private int start;
+        private int emptyPages;
+        private boolean isComplete;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        pipeline.close();
+        store.close();
+        scraper.close();
+    }
+
+}
@@ -0,0 +1,50 @@
+package edu.soton.ecs.arxivscraper;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+
+import javax.validation.constraints.NotNull;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class ArxivId {
+
+    // e.g. http://arxiv.org/abs/1505.02114v2 or http://arxiv.org/abs/math/0601001v1
+    private static final Pattern ID_PATTERN = Pattern.compile("^(?:.*/abs/)?(.+?)(?:v(\\d+))?$");
+
+    private final String baseId;
+    private final int version;
+
+    public ArxivId(String baseId, int version) {
+        this.baseId = baseId;
+        this.version = version;
+    }
+
+    public static ArxivId parse(@NotNull String uri) {
+        Preconditions.checkNotNull(uri);
+
+        Matcher matcher = ID_PATTERN.matcher(uri.trim());
+        if (!matcher.matches()) {
+            return new ArxivId(uri, 0);
+        }
+        String version = matcher.group(2);
+        return new ArxivId(matcher.group(1), version != null ? Integer.parseInt(version) : 0);
+    }
+
+    public String getBaseId() {
+        return baseId;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("baseId", baseId)
+                .add("version", version)
+                .toString();
+    }
+
+}
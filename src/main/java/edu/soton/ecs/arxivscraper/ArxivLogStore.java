@@ -0,0 +1,554 @@
+package edu.soton.ecs.arxivscraper;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import edu.soton.ecs.arxivscraper.util.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// Append-only alternative to ArxivDbWrapper for high write rates.
+// Entries and cursors are appended to fixed size, memory mapped segment files; an off-heap hash index maps
+// each arxiv id to its latest record. Superseded records are dropped by background compaction, which
+// copies the live records of mostly dead segments to the end of the log and deletes the old files.
+// The index is checkpointed on close and after compaction, so startup only scans records appended since.
+// Records of a batch are appended in order and recovery stops at the first torn record, so a crash
+// keeps a prefix of the batch and cursors, which are appended last, never run ahead of the data.
+public class ArxivLogStore implements ArxivStore {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final Metrics.Histogram APPEND_SECONDS = Metrics.timer("arxiv_log_append_seconds",
+            "Time to append and sync one batch of entries to the log store");
+    private static final Metrics.Counter COMPACTED_BYTES = Metrics.counter("arxiv_log_compacted_bytes_total",
+            "Bytes of segment files deleted by log compaction, after their live records were copied");
+
+    private static final String CHECKPOINT_FILE = "index.checkpoint";
+    private static final int CHECKPOINT_MAGIC = 0x41584C31;
+    private static final byte[] EMPTY = new byte[0];
+    private static final HashFunction KEY_HASH = Hashing.farmHashFingerprint64();
+
+    private File dir;
+    private int segmentSize = 64 << 20;
+    private int expectedEntries = 1 << 20;
+    private boolean isSync = true;
+    private double compactionThreshold = 0.5;
+    private long compactionIntervalSeconds = 300;
+    private ArxivEntryCodec codec = new ArxivEntryCodec();
+
+    private final TreeMap<Integer, LogSegment> segments = new TreeMap<>();
+    private LogSegment active;
+    private LogIndex index;
+    private final Map<String, Long> cursors = new HashMap<>();
+    private final Map<String, Long> cursorLocations = new HashMap<>();
+    private ScheduledExecutorService compactor;
+    private int openStreams = 0;
+    private boolean isCheckpointDirty = false;
+    private boolean isClosed = false;
+
+    public ArxivLogStore(String dir) {
+        this.dir = new File(dir);
+        Metrics.gauge("arxiv_log_index_entries", "Arxiv ids in the log store index", () -> {
+            synchronized (this) {
+                return index != null ? index.size() : 0;
+            }
+        });
+        Metrics.gauge("arxiv_log_live_ratio", "Fraction of log store bytes held by live records", () -> {
+            synchronized (this) {
+                long live = 0;
+                long total = 0;
+                for (LogSegment segment : segments.values()) {
+                    live += segment.getLiveBytes();
+                    total += segment.getSize();
+                }
+                return total > 0 ? live / (double) total : 1;
+            }
+        });
+    }
+
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    // Initial index sizing; the index doubles when it fills up
+    public void setExpectedEntries(int expectedEntries) {
+        this.expectedEntries = expectedEntries;
+    }
+
+    // Forces each batch to disk before returning; without it a crash may lose the last few batches
+    public void setSync(boolean isSync) {
+        this.isSync = isSync;
+    }
+
+    // Compacts sealed segments whose live records make up less than threshold of their size
+    public void setCompaction(double threshold, long intervalSeconds) {
+        this.compactionThreshold = threshold;
+        this.compactionIntervalSeconds = intervalSeconds;
+    }
+
+    public void setCodec(ArxivEntryCodec codec) {
+        this.codec = codec;
+    }
+
+    @Override
+    public synchronized void initalize() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create log directory " + dir);
+
+        TreeMap<Integer, File> files = new TreeMap<>();
+        File[] listing = dir.listFiles();
+        if (listing != null) {
+            for (File file : listing) {
+                int id = LogSegment.parseId(file.getName());
+                if (id >= 0)
+                    files.put(id, file);
+            }
+        }
+
+        index = new LogIndex(expectedEntries);
+        int scanFromId = 0;
+        int scanFromOffset = 0;
+        if (loadCheckpoint(files)) {
+            LogSegment last = segments.lastEntry().getValue();
+            scanFromId = last.getId();
+            scanFromOffset = last.getSize();
+            // Segments compacted away after the checkpoint was written, but not yet deleted
+            for (Integer id : new ArrayList<>(files.headMap(scanFromId).keySet())) {
+                if (!segments.containsKey(id) && files.remove(id).delete())
+                    LOGGER.info("Deleted compacted segment {}", LogSegment.file(dir, id).getName());
+            }
+        }
+
+        long startNanos = System.nanoTime();
+        int numScanned = 0;
+        for (Map.Entry<Integer, File> file : files.tailMap(scanFromId).entrySet()) {
+            LogSegment segment = segments.get(file.getKey());
+            if (segment == null) {
+                segment = LogSegment.open(file.getValue(), file.getKey());
+                segments.put(segment.getId(), segment);
+            }
+            LogSegment scanned = segment;
+            int from = segment.getId() == scanFromId ? scanFromOffset : 0;
+            int[] count = {0};
+            scanned.recover(from, offset -> {
+                applyRecord(scanned, offset);
+                count[0]++;
+            });
+            numScanned += count[0];
+        }
+        if (numScanned > 0)
+            isCheckpointDirty = true;
+        LOGGER.info("Opened log store with {} segments and {} entries, scanned {} records in {}ms",
+                segments.size(), index.size(), numScanned,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+
+        if (segments.isEmpty()) {
+            active = LogSegment.create(dir, 0, segmentSize);
+            segments.put(active.getId(), active);
+        } else {
+            active = segments.lastEntry().getValue();
+        }
+
+        if (compactionIntervalSeconds > 0) {
+            compactor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("log-compaction").setDaemon(true).build());
+            compactor.scheduleWithFixedDelay(this::compact,
+                    compactionIntervalSeconds, compactionIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public synchronized int getStoredVersion(String baseId) {
+        byte[] key = baseId.getBytes(StandardCharsets.UTF_8);
+        int slot = findSlot(key);
+        return slot >= 0 ? index.getVersion(slot) : -1;
+    }
+
+    // Returns the latest stored version of the paper, or null if it has not been extracted
+    public ArxivEntry getArxivEntry(String baseId) {
+        long location;
+        LogSegment segment;
+        synchronized (this) {
+            int slot = findSlot(baseId.getBytes(StandardCharsets.UTF_8));
+            if (slot < 0)
+                return null;
+            location = index.getLocation(slot);
+            segment = segments.get(LogIndex.segmentId(location));
+        }
+        return new ArxivEntryCodec().decode(segment.getValue(LogIndex.offset(location)));
+    }
+
+    @Override
+    public List<ArxivEntry> upsertEntries(List<ArxivEntry> arxivEntries) throws IOException {
+        return upsertEntries(arxivEntries, Collections.emptyMap());
+    }
+
+    @Override
+    public synchronized List<ArxivEntry> upsertEntries(List<ArxivEntry> arxivEntries, Map<String, Long> cursors)
+            throws IOException {
+        Preconditions.checkState(!isClosed, "Log store is closed");
+
+        Map<String, ArxivEntry> latestEntries = new LinkedHashMap<>();
+        Map<String, ArxivId> latestIds = new HashMap<>();
+        for (ArxivEntry arxivEntry : arxivEntries) {
+            ArxivId arxivId = ArxivId.parse(arxivEntry.getId());
+            ArxivId seenId = latestIds.get(arxivId.getBaseId());
+            if (seenId == null || arxivId.getVersion() > seenId.getVersion()) {
+                latestIds.put(arxivId.getBaseId(), arxivId);
+                latestEntries.put(arxivId.getBaseId(), arxivEntry);
+            }
+        }
+
+        long startNanos = System.nanoTime();
+        long receivedMillis = System.currentTimeMillis();
+        List<ArxivEntry> changedArxivEntries = new ArrayList<>();
+        for (Map.Entry<String, ArxivEntry> latestEntry : latestEntries.entrySet()) {
+            ArxivId arxivId = latestIds.get(latestEntry.getKey());
+            if (arxivId.getVersion() <= getStoredVersion(arxivId.getBaseId()))
+                continue;
+            append(LogSegment.TYPE_ENTRY, arxivId.getVersion(), receivedMillis,
+                    arxivId.getBaseId().getBytes(StandardCharsets.UTF_8), codec.encode(latestEntry.getValue()));
+            changedArxivEntries.add(latestEntry.getValue());
+        }
+        for (Map.Entry<String, Long> cursor : cursors.entrySet()) {
+            append(LogSegment.TYPE_CURSOR, 0, cursor.getValue(), cursor.getKey().getBytes(StandardCharsets.UTF_8), EMPTY);
+        }
+        if (isSync && (!changedArxivEntries.isEmpty() || !cursors.isEmpty()))
+            active.force();
+        APPEND_SECONDS.observeSince(startNanos);
+        LOGGER.debug("Appended {} of {} entries", changedArxivEntries.size(), arxivEntries.size());
+        return changedArxivEntries;
+    }
+
+    @Override
+    public synchronized long getCursor(String name, long defaultValue) {
+        return cursors.getOrDefault(name, defaultValue);
+    }
+
+    public void setCursor(String name, long position) throws IOException {
+        Map<String, Long> cursor = new HashMap<>();
+        cursor.put(name, position);
+        upsertEntries(new ArrayList<>(), cursor);
+    }
+
+    // Reads live entries in log order, decoding each only when it is consumed.
+    // Compaction is held off while any stream is open, so streams must be closed.
+    @Override
+    public Stream<ArxivEntry> streamArxivEntries(ArxivEntryQuery query) {
+        List<LogSegment> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(segments.values());
+            openStreams++;
+        }
+        long receivedFrom = query.getReceivedFrom() != null ? query.getReceivedFrom().getTime() : Long.MIN_VALUE;
+        long receivedTo = query.getReceivedTo() != null ? query.getReceivedTo().getTime() : Long.MAX_VALUE;
+        ArxivEntryCodec streamCodec = new ArxivEntryCodec();
+
+        Spliterator<ArxivEntry> spliterator = new Spliterators.AbstractSpliterator<ArxivEntry>(
+                Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            private int segmentIndex = 0;
+            private int offset = 0;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super ArxivEntry> action) {
+                while (segmentIndex < snapshot.size()) {
+                    LogSegment segment = snapshot.get(segmentIndex);
+                    if (offset >= segment.getSize()) {
+                        segmentIndex++;
+                        offset = 0;
+                        continue;
+                    }
+                    int recordOffset = offset;
+                    offset += segment.recordSize(recordOffset);
+                    if (segment.getType(recordOffset) != LogSegment.TYPE_ENTRY)
+                        continue;
+                    long timestamp = segment.getTimestamp(recordOffset);
+                    if (timestamp < receivedFrom || timestamp >= receivedTo)
+                        continue;
+                    if (!isLive(segment, recordOffset))
+                        continue;
+                    action.accept(streamCodec.decode(segment.getValue(recordOffset)));
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        Stream<ArxivEntry> arxivEntries = StreamSupport.stream(spliterator, false).onClose(() -> {
+            synchronized (this) {
+                openStreams--;
+            }
+        });
+        String category = query.getCategory();
+        if (category != null) {
+            arxivEntries = arxivEntries.filter(arxivEntry ->
+                    arxivEntry.getCategories() != null && arxivEntry.getCategories().contains(category));
+        }
+        return arxivEntries;
+    }
+
+    private synchronized boolean isLive(LogSegment segment, int offset) {
+        long location = LogIndex.location(segment.getId(), offset);
+        if (segment.getType(offset) == LogSegment.TYPE_CURSOR)
+            return Long.valueOf(location).equals(cursorLocations.get(segment.getKeyString(offset)));
+        int slot = findSlot(segment.getKey(offset));
+        return slot >= 0 && index.getLocation(slot) == location;
+    }
+
+    private int findSlot(byte[] key) {
+        return index.find(KEY_HASH.hashBytes(key).asLong(), location -> {
+            LogSegment segment = segments.get(LogIndex.segmentId(location));
+            return segment != null && segment.keyEquals(LogIndex.offset(location), key);
+        });
+    }
+
+    private void append(byte type, int version, long timestamp, byte[] key, byte[] value) throws IOException {
+        int recordSize = LogSegment.recordSize(key.length, value.length);
+        Preconditions.checkArgument(recordSize <= segmentSize, "Record of %s bytes exceeds the segment size", recordSize);
+        Preconditions.checkArgument(key.length <= Short.MAX_VALUE, "Key is too long");
+        if (!active.hasRoom(recordSize))
+            roll();
+        applyRecord(active, active.append(type, version, timestamp, key, value));
+    }
+
+    private void roll() throws IOException {
+        active.force();
+        LogSegment segment = LogSegment.create(dir, active.getId() + 1, segmentSize);
+        segments.put(segment.getId(), segment);
+        LOGGER.debug("Sealed segment {} at {} bytes, {} live", active, active.getSize(), active.getLiveBytes());
+        active = segment;
+    }
+
+    // Points the index or cursor at the record, marking whatever it replaces as dead
+    private void applyRecord(LogSegment segment, int offset) {
+        long location = LogIndex.location(segment.getId(), offset);
+        segment.addLiveBytes(segment.recordSize(offset));
+        isCheckpointDirty = true;
+        if (segment.getType(offset) == LogSegment.TYPE_CURSOR) {
+            String name = segment.getKeyString(offset);
+            cursors.put(name, segment.getTimestamp(offset));
+            Long previous = cursorLocations.put(name, location);
+            if (previous != null)
+                release(previous);
+            return;
+        }
+        byte[] key = segment.getKey(offset);
+        int slot = findSlot(key);
+        if (slot >= 0) {
+            release(index.getLocation(slot));
+            index.set(slot, location, segment.getVersion(offset));
+        } else {
+            index.add(KEY_HASH.hashBytes(key).asLong(), location, segment.getVersion(offset));
+        }
+    }
+
+    private void release(long location) {
+        LogSegment segment = segments.get(LogIndex.segmentId(location));
+        if (segment != null)
+            segment.addLiveBytes(-segment.recordSize(LogIndex.offset(location)));
+    }
+
+    // Runs on the compaction thread, taking the lock a chunk of records at a time so ingest is not stalled.
+    // A stream opened between chunks may already have read a record that a later chunk would copy ahead of it,
+    // so copying stops there; the candidates keep their remaining live records until the next run.
+    void compact() {
+        try {
+            List<LogSegment> candidates = new ArrayList<>();
+            synchronized (this) {
+                if (isClosed || openStreams > 0)
+                    return;
+                for (LogSegment segment : segments.values()) {
+                    if (segment != active && segment.getLiveBytes() < compactionThreshold * segment.getSize())
+                        candidates.add(segment);
+                }
+                if (candidates.isEmpty()) {
+                    if (isCheckpointDirty)
+                        writeCheckpoint();
+                    return;
+                }
+            }
+
+            for (LogSegment segment : candidates) {
+                int offset = 0;
+                while (offset < segment.getSize()) {
+                    synchronized (this) {
+                        if (isClosed)
+                            return;
+                        if (openStreams > 0) {
+                            LOGGER.debug("Stopped compaction of {} for an open stream", segment);
+                            return;
+                        }
+                        for (int i = 0; i < 1000 && offset < segment.getSize(); i++) {
+                            if (isLive(segment, offset)) {
+                                int recordSize = segment.recordSize(offset);
+                                if (!active.hasRoom(recordSize))
+                                    roll();
+                                applyRecord(active, active.appendCopy(segment, offset));
+                            }
+                            offset += segment.recordSize(offset);
+                        }
+                    }
+                }
+            }
+
+            synchronized (this) {
+                if (isClosed || openStreams > 0)
+                    return;
+                // Copies must be durable and indexed by a checkpoint before the originals go
+                active.force();
+                writeCheckpoint();
+                for (LogSegment segment : candidates) {
+                    segments.remove(segment.getId());
+                    COMPACTED_BYTES.add(segment.getSize());
+                    if (!segment.delete())
+                        LOGGER.warn("Unable to delete compacted segment {}", segment);
+                }
+                LOGGER.info("Compacted {} segments", candidates.size());
+            }
+        } catch (Exception e) {
+            LOGGER.error("Log compaction failed", e);
+        }
+    }
+
+    // Written to a temporary file and renamed, so a crash leaves either the old or the new checkpoint
+    private void writeCheckpoint() throws IOException {
+        active.force();
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(header);
+        out.writeInt(CHECKPOINT_MAGIC);
+        out.writeInt(segments.size());
+        for (LogSegment segment : segments.values()) {
+            out.writeInt(segment.getId());
+            out.writeInt(segment.getSize());
+            out.writeLong(segment.getLiveBytes());
+        }
+        out.writeInt(cursors.size());
+        for (Map.Entry<String, Long> cursor : cursors.entrySet()) {
+            out.writeUTF(cursor.getKey());
+            out.writeLong(cursor.getValue());
+            out.writeLong(cursorLocations.get(cursor.getKey()));
+        }
+        out.writeInt(index.capacity());
+        out.writeInt(index.size());
+        out.flush();
+
+        File tmpFile = new File(dir, CHECKPOINT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmpFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);) {
+            writeFully(channel, ByteBuffer.wrap(header.toByteArray()));
+            index.writeTo(channel);
+            ByteBuffer trailer = ByteBuffer.allocate(4);
+            trailer.putInt(0, CHECKPOINT_MAGIC);
+            writeFully(channel, trailer);
+            channel.force(true);
+        }
+        Files.move(tmpFile.toPath(), new File(dir, CHECKPOINT_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        isCheckpointDirty = false;
+        LOGGER.debug("Checkpointed index of {} entries", index.size());
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            channel.write(source);
+        }
+    }
+
+    // Returns false, leaving the store empty, if there is no usable checkpoint
+    private boolean loadCheckpoint(Map<Integer, File> files) {
+        File checkpointFile = new File(dir, CHECKPOINT_FILE);
+        if (!checkpointFile.exists())
+            return false;
+        try (FileChannel channel = FileChannel.open(checkpointFile.toPath(), StandardOpenOption.READ);) {
+            // Unbuffered, so the channel is positioned right after the header for the index slots
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+            if (in.readInt() != CHECKPOINT_MAGIC)
+                throw new IOException("Bad checkpoint header");
+            int numSegments = in.readInt();
+            if (numSegments == 0)
+                throw new IOException("Checkpoint has no segments");
+            for (int i = 0; i < numSegments; i++) {
+                int id = in.readInt();
+                File file = files.get(id);
+                if (file == null)
+                    throw new IOException("Checkpointed segment " + id + " is missing");
+                LogSegment segment = LogSegment.open(file, id);
+                segment.setSize(in.readInt());
+                segment.setLiveBytes(in.readLong());
+                segments.put(id, segment);
+            }
+            int numCursors = in.readInt();
+            for (int i = 0; i < numCursors; i++) {
+                String name = in.readUTF();
+                cursors.put(name, in.readLong());
+                cursorLocations.put(name, in.readLong());
+            }
+            int capacity = in.readInt();
+            int size = in.readInt();
+            index.readFrom(channel, capacity, size);
+            if (in.readInt() != CHECKPOINT_MAGIC)
+                throw new IOException("Bad checkpoint trailer");
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.warn("Ignoring unusable index checkpoint, scanning all segments", e);
+            segments.clear();
+            cursors.clear();
+            cursorLocations.clear();
+            index.clear();
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (compactor != null) {
+            compactor.shutdown();
+            try {
+                compactor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (isClosed || active == null) {
+                return;
+            }
+            isClosed = true;
+            try {
+                writeCheckpoint();
+            } catch (IOException e) {
+                LOGGER.warn("Unable to checkpoint the log store index; the next start will scan all segments", e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+package edu.soton.ecs.arxivscraper;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import edu.soton.ecs.arxivscraper.util.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Feeds saved responses through the same parser, ingest pipeline, DB and outputs as a live scrape, without
+// touching the network. Responses are parsed on several threads at once, but their entries are published in
+// the order of the responses, so a later snapshot of an entry always follows an earlier one, as when fetched.
+// At most twice as many responses as threads are held parsed in memory. No harvest cursors are moved.
+public class ArxivReplayer {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final Metrics.Counter RESPONSES_REPLAYED = Metrics.counter("arxiv_replay_responses_total",
+            "Saved responses parsed by a replay");
+    private static final Metrics.Counter REPLAY_FAILURES = Metrics.counter("arxiv_replay_failures_total",
+            "Saved responses that could not be read or parsed during a replay");
+
+    private ArxivScraper scraper;
+    private IngestPipeline pipeline;
+
+    private int threads = 1;
+    private int repeat = 1;
+
+    public ArxivReplayer(ArxivScraper scraper, IngestPipeline pipeline) {
+        this.scraper = scraper;
+        this.pipeline = pipeline;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    // Passes over the responses this many times, e.g. to run a throughput test over etc/sample.xml.
+    // Every pass after the first only finds entries already stored, so it measures parse and dedup speed.
+    public void setRepeat(int repeat) {
+        this.repeat = Math.max(1, repeat);
+    }
+
+    // A response archive directory, a directory of .xml or .xml.gz files, or a single file
+    public static List<File> findResponses(File source) throws IOException {
+        if (!source.isDirectory())
+            return Collections.singletonList(source);
+        if (new File(source, "index.tsv").exists())
+            return new ArxivResponseArchive(source.getPath()).listResponses();
+        try (Stream<Path> paths = Files.walk(source.toPath());) {
+            return paths.map(Path::toFile)
+                    .filter(file -> file.getName().endsWith(".xml") || file.getName().endsWith(".xml.gz"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    // Returns the number of entries parsed
+    public long replay(List<File> responses) throws Exception {
+        long numEntries = 0;
+        AtomicInteger numFailed = new AtomicInteger();
+        long startNanos = System.nanoTime();
+        int maxInFlight = threads * 2;
+        long numResponses = (long) responses.size() * repeat;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("replay-%d").setDaemon(true).build());
+        Deque<Future<List<ArxivEntry>>> inFlight = new ArrayDeque<>();
+        try {
+            long nextResponse = 0;
+            while (nextResponse < numResponses || !inFlight.isEmpty()) {
+                while (nextResponse < numResponses && inFlight.size() < maxInFlight) {
+                    File response = responses.get((int) (nextResponse++ % responses.size()));
+                    inFlight.addLast(executor.submit(() -> parse(response, numFailed)));
+                }
+                for (ArxivEntry arxivEntry : inFlight.removeFirst().get()) {
+                    pipeline.publish(arxivEntry);
+                    numEntries++;
+                }
+            }
+        } finally {
+            for (Future<List<ArxivEntry>> future : inFlight) {
+                future.cancel(false);
+            }
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        pipeline.flush(Collections.emptyMap());
+
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        LOGGER.info("Replayed {} entries from {} responses in {}s, {} entries/s, {} responses failed",
+                numEntries, numResponses, String.format("%.1f", seconds),
+                String.format("%.0f", numEntries / seconds), numFailed.get());
+        return numEntries;
+    }
+
+    // Returns no entries for a response that cannot be read or parsed
+    private List<ArxivEntry> parse(File response, AtomicInteger numFailed) {
+        List<ArxivEntry> arxivEntries = new ArrayList<>();
+        try (InputStream is = ArxivResponseArchive.openResponse(response);) {
+            scraper.parse(is, arxivEntries::add);
+            RESPONSES_REPLAYED.increment();
+            return arxivEntries;
+        } catch (Exception e) {
+            // One bad response does not stop a reprocessing run
+            LOGGER.error("Unable to replay {}", response, e);
+            REPLAY_FAILURES.increment();
+            numFailed.incrementAndGet();
+            return Collections.emptyList();
+        }
+    }
+
+}
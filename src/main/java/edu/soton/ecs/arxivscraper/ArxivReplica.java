@@ -0,0 +1,222 @@
+package edu.soton.ecs.arxivscraper;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import edu.soton.ecs.arxivscraper.util.Metrics;
+import edu.soton.ecs.arxivscraper.util.MqWrapper;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.jms.ConnectionFactory;
+import javax.jms.TextMessage;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Keeps a local store in step with a harvester by consuming the entries it outputs over AMQP.
+// Messages are taken in batches of up to batchSize, or whatever arrives within batchTimeoutMillis, decoded
+// on decodeThreads and upserted in one transaction. The batch is acknowledged, or its transaction
+// committed, only after the store commits, so a crash redelivers it; entries already stored at the same
+// version are skipped, which makes redelivery harmless.
+public class ArxivReplica implements AutoCloseable {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final Metrics.Counter MESSAGES_CONSUMED = Metrics.counter("arxiv_replica_messages_total",
+            "Messages stored and acknowledged by the replica");
+    private static final Metrics.Counter ENTRIES_CONSUMED = Metrics.counter("arxiv_replica_entries_total",
+            "Entries decoded from consumed messages");
+    private static final Metrics.Counter DECODE_FAILURES = Metrics.counter("arxiv_replica_decode_failures_total",
+            "Messages dropped because they are not entry JSON");
+    private static final Metrics.Counter STORE_FAILURES = Metrics.counter("arxiv_replica_store_failures_total",
+            "Batches released for redelivery because the store failed");
+    private static final Metrics.Histogram BATCH_SECONDS = Metrics.timer("arxiv_replica_batch_seconds",
+            "Time to decode, store and acknowledge one batch, excluding waiting for messages");
+
+    private static final long RETRY_DELAY_MILLIS = 5000;
+
+    private ConnectionFactory factory;
+    private ArxivStore store;
+
+    private String destinationName = "arxiv.data.queue";
+    private boolean isTopic = false;
+    private String clientId = null;
+    private String subscriptionName = null;
+    private boolean isTransacted = false;
+    private int batchSize = 500;
+    private long batchTimeoutMillis = 200;
+    private int decodeThreads = 1;
+
+    private MqWrapper mqWrapper;
+    private ExecutorService decodeExecutor;
+    private volatile boolean isStopped = false;
+
+    public ArxivReplica(ConnectionFactory factory, ArxivStore store) {
+        this.factory = factory;
+        this.store = store;
+    }
+
+    // A queue shares its messages between consumers; every replica needs its own queue, or a durable
+    // subscription to a topic under its own clientId
+    public void setSource(String destinationName, boolean isTopic, String clientId, String subscriptionName) {
+        this.destinationName = destinationName;
+        this.isTopic = isTopic;
+        this.clientId = clientId;
+        this.subscriptionName = subscriptionName;
+    }
+
+    // Acknowledges through a transacted session instead of client acknowledge
+    public void setTransacted(boolean isTransacted) {
+        this.isTransacted = isTransacted;
+    }
+
+    public void setBatch(int batchSize, long batchTimeoutMillis) {
+        this.batchSize = Math.max(1, batchSize);
+        this.batchTimeoutMillis = Math.max(1, batchTimeoutMillis);
+    }
+
+    public void setDecodeThreads(int decodeThreads) {
+        this.decodeThreads = Math.max(1, decodeThreads);
+    }
+
+    // Consumes until stop() is called
+    public void run() throws Exception {
+        mqWrapper = new MqWrapper(factory, clientId, destinationName, isTopic);
+        mqWrapper.setDurableSubscription(subscriptionName);
+        if (isTransacted) {
+            mqWrapper.setTransacted(true, Integer.MAX_VALUE);
+        } else {
+            mqWrapper.setClientAcknowledge(true);
+        }
+        if (decodeThreads > 1) {
+            decodeExecutor = Executors.newFixedThreadPool(decodeThreads,
+                    new ThreadFactoryBuilder().setNameFormat("replica-decode-%d").setDaemon(true).build());
+        }
+        LOGGER.info("Replicating from {} {}", isTopic ? "topic" : "queue", destinationName);
+
+        List<TextMessage> batch = new ArrayList<>(batchSize);
+        while (!isStopped) {
+            batch.clear();
+            TextMessage message = mqWrapper.receive(1000);
+            if (message == null)
+                continue;
+            batch.add(message);
+            // Waits at most batchTimeoutMillis for the batch to fill, so a quiet feed is stored promptly
+            long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchTimeoutMillis);
+            while (batch.size() < batchSize) {
+                long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+                if (remainingMillis <= 0)
+                    break;
+                message = mqWrapper.receive(remainingMillis);
+                if (message == null)
+                    break;
+                batch.add(message);
+            }
+
+            long startNanos = System.nanoTime();
+            List<ArxivEntry> arxivEntries = decodeAll(batch);
+            try {
+                store.upsertEntries(arxivEntries);
+            } catch (Exception e) {
+                STORE_FAILURES.increment();
+                LOGGER.error("Unable to store a batch of {} messages, releasing it for redelivery", batch.size(), e);
+                mqWrapper.recover();
+                Thread.sleep(RETRY_DELAY_MILLIS);
+                continue;
+            }
+            if (isTransacted) {
+                mqWrapper.commit();
+            } else {
+                // Acknowledges every earlier message of the session as well
+                mqWrapper.acknowledge(batch.get(batch.size() - 1));
+            }
+            MESSAGES_CONSUMED.add(batch.size());
+            ENTRIES_CONSUMED.add(arxivEntries.size());
+            BATCH_SECONDS.observeSince(startNanos);
+            LOGGER.debug("Replicated {} entries from {} messages", arxivEntries.size(), batch.size());
+        }
+    }
+
+    public void stop() {
+        isStopped = true;
+    }
+
+    // Decodes slices of the batch concurrently, keeping message order
+    private List<ArxivEntry> decodeAll(List<TextMessage> batch) throws Exception {
+        if (decodeExecutor == null || batch.size() < decodeThreads * 2)
+            return decodeSlice(batch);
+        List<Future<List<ArxivEntry>>> futures = new ArrayList<>();
+        for (List<TextMessage> slice : Lists.partition(batch, (batch.size() + decodeThreads - 1) / decodeThreads)) {
+            futures.add(decodeExecutor.submit(() -> decodeSlice(slice)));
+        }
+        List<ArxivEntry> arxivEntries = new ArrayList<>();
+        for (Future<List<ArxivEntry>> future : futures) {
+            arxivEntries.addAll(future.get());
+        }
+        return arxivEntries;
+    }
+
+    private static List<ArxivEntry> decodeSlice(List<TextMessage> messages) throws Exception {
+        List<ArxivEntry> arxivEntries = new ArrayList<>(messages.size());
+        for (TextMessage message : messages) {
+            try {
+                decode(message.getText(), arxivEntries);
+            } catch (IOException | RuntimeException e) {
+                // Redelivering a message that can never be decoded would stall the replica
+                DECODE_FAILURES.increment();
+                LOGGER.error("Dropping undecodable message {}", message.getJMSMessageID(), e);
+            }
+        }
+        return arxivEntries;
+    }
+
+    // A message holds one entry, or a JSON array of entries when the harvester sets entries_per_message
+    static void decode(String text, List<ArxivEntry> arxivEntries) throws IOException {
+        ArxivEntryTypeAdapter adapter = new ArxivEntryTypeAdapter();
+        int numDecoded = arxivEntries.size();
+        try (JsonReader in = new JsonReader(new StringReader(text));) {
+            if (in.peek() == JsonToken.BEGIN_ARRAY) {
+                in.beginArray();
+                while (in.hasNext()) {
+                    arxivEntries.add(readEntry(adapter, in));
+                }
+                in.endArray();
+            } else {
+                arxivEntries.add(readEntry(adapter, in));
+            }
+        } catch (IOException | RuntimeException e) {
+            // A message is stored whole or not at all
+            arxivEntries.subList(numDecoded, arxivEntries.size()).clear();
+            throw e;
+        }
+    }
+
+    private static ArxivEntry readEntry(ArxivEntryTypeAdapter adapter, JsonReader in) throws IOException {
+        ArxivEntry arxivEntry = adapter.read(in);
+        // The store keys entries by id, so one without would fail every batch it is in
+        if (arxivEntry == null || arxivEntry.getId() == null)
+            throw new IOException("Entry without an id");
+        return arxivEntry;
+    }
+
+    @Override
+    public void close() {
+        if (decodeExecutor != null)
+            decodeExecutor.shutdownNow();
+        if (mqWrapper != null) {
+            try {
+                mqWrapper.close();
+            } catch (Exception e) {
+                LOGGER.warn(e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,204 @@
+package edu.soton.ecs.arxivscraper;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import edu.soton.ecs.arxivscraper.util.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Content-addressed store of raw API responses. Each body is gzipped to <dir>/<first 2 hex>/<sha256>.xml.gz,
+// named by the SHA-256 of the uncompressed body, so identical responses are kept once.
+// index.tsv lists every fetch in order as epoch millis, sha256 and request uri.
+public class ArxivResponseArchive {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final Metrics.Counter ARCHIVED_BYTES = Metrics.counter("arxiv_archive_bytes_total",
+            "Compressed bytes of new responses written to the archive");
+
+    private static final String SUFFIX = ".xml.gz";
+
+    private final File dir;
+    private final File indexFile;
+
+    public ArxivResponseArchive(String dir) {
+        this.dir = new File(dir);
+        this.indexFile = new File(dir, "index.tsv");
+    }
+
+    // Copies everything read through the returned stream into the archive. The response is archived when
+    // the stream is closed, after reading whatever the parser left unread, unless the body could not be read.
+    public InputStream archive(InputStream body, String uri) throws IOException {
+        Files.createDirectories(dir.toPath());
+        return new ArchivingInputStream(body, uri);
+    }
+
+    // Archived responses in the order they were first fetched; files missing from the index come last
+    public List<File> listResponses() throws IOException {
+        Set<File> responses = new LinkedHashSet<>();
+        if (indexFile.exists()) {
+            try (Stream<String> lines = Files.lines(indexFile.toPath(), StandardCharsets.UTF_8);) {
+                lines.map(line -> line.split("\t"))
+                        .filter(fields -> fields.length >= 2)
+                        .map(fields -> getFile(fields[1]))
+                        .filter(File::exists)
+                        .forEach(responses::add);
+            }
+        }
+        if (dir.isDirectory()) {
+            try (Stream<Path> paths = Files.walk(dir.toPath(), 2);) {
+                responses.addAll(paths.map(Path::toFile)
+                        .filter(file -> file.getName().endsWith(SUFFIX))
+                        .sorted()
+                        .collect(Collectors.toList()));
+            }
+        }
+        return new ArrayList<>(responses);
+    }
+
+    // Opens a saved response, gunzipping .gz files
+    public static InputStream openResponse(File file) throws IOException {
+        InputStream is = new BufferedInputStream(new FileInputStream(file), 65536);
+        return file.getName().endsWith(".gz") ? new GZIPInputStream(is, 65536) : is;
+    }
+
+    private File getFile(String sha256) {
+        return new File(new File(dir, sha256.substring(0, 2)), sha256 + SUFFIX);
+    }
+
+    private synchronized void commit(File tmpFile, String sha256, String uri) throws IOException {
+        File file = getFile(sha256);
+        if (file.exists()) {
+            Files.delete(tmpFile.toPath());
+        } else {
+            Files.createDirectories(file.getParentFile().toPath());
+            ARCHIVED_BYTES.add(tmpFile.length());
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(indexFile, true), StandardCharsets.UTF_8);) {
+            writer.write(System.currentTimeMillis() + "\t" + sha256 + "\t" + uri + "\n");
+        }
+    }
+
+    private class ArchivingInputStream extends FilterInputStream {
+        private final String uri;
+        private final File tmpFile;
+        private final OutputStream out;
+        private final Hasher hasher = Hashing.sha256().newHasher();
+        private boolean isFailed = false;
+        private boolean isClosed = false;
+
+        private ArchivingInputStream(InputStream in, String uri) throws IOException {
+            super(in);
+            this.uri = uri;
+            tmpFile = new File(dir, UUID.randomUUID() + ".tmp");
+            out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 65536), 65536);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b;
+            try {
+                b = super.read();
+            } catch (IOException e) {
+                isFailed = true;
+                throw e;
+            }
+            if (b >= 0) {
+                out.write(b);
+                hasher.putByte((byte) b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int numRead;
+            try {
+                numRead = super.read(b, off, len);
+            } catch (IOException e) {
+                isFailed = true;
+                throw e;
+            }
+            if (numRead > 0) {
+                out.write(b, off, numRead);
+                hasher.putBytes(b, off, numRead);
+            }
+            return numRead;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes must still reach the archive
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            long numSkipped = 0;
+            while (numSkipped < n) {
+                int numRead = read(buffer, 0, (int) Math.min(n - numSkipped, buffer.length));
+                if (numRead < 0)
+                    break;
+                numSkipped += numRead;
+            }
+            return numSkipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            try {
+                if (!isFailed)
+                    ByteStreams.exhaust(this);
+            } catch (IOException e) {
+                LOGGER.warn("Response from {} was not fully read and is not archived", uri, e);
+            }
+            try {
+                out.close();
+                if (isFailed) {
+                    Files.deleteIfExists(tmpFile.toPath());
+                } else {
+                    commit(tmpFile, hasher.hash().toString(), uri);
+                }
+            } catch (IOException e) {
+                // A failed archive write never fails the scrape
+                LOGGER.error("Unable to archive response from {}", uri, e);
+                Files.deleteIfExists(tmpFile.toPath());
+            } finally {
+                super.close();
+            }
+        }
+    }
+
+}
@@ -1,6 +1,9 @@
 package edu.soton.ecs.arxivscraper;
 
-import com.google.gson.Gson;
+import com.google.common.collect.Lists;
+import com.google.common.io.CountingInputStream;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.rometools.rome.feed.synd.SyndCategory;
 import com.rometools.rome.feed.synd.SyndEntry;
 import com.rometools.rome.feed.synd.SyndFeed;
@@ -9,10 +12,13 @@ import com.rometools.rome.feed.synd.SyndPerson;
 import com.rometools.rome.io.FeedException;
 import com.rometools.rome.io.SyndFeedInput;
 import com.rometools.rome.io.XmlReader;
+import edu.soton.ecs.arxivscraper.util.DateTimeUtil;
 import edu.soton.ecs.arxivscraper.util.IniWrapper;
+import edu.soton.ecs.arxivscraper.util.Metrics;
+import edu.soton.ecs.arxivscraper.util.MetricsHttpServer;
 import edu.soton.ecs.arxivscraper.util.MqWrapper;
+import edu.soton.ecs.arxivscraper.util.RotatingFileWriter;
 import org.apache.commons.beanutils.BeanUtils;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
@@ -25,6 +31,7 @@ import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jdom2.Element;
@@ -32,7 +39,9 @@ import org.jdom2.Element;
 import javax.jms.ConnectionFactory;
 import javax.naming.Context;
 import javax.naming.InitialContext;
+import javax.naming.NamingException;
 import javax.net.ssl.SSLException;
+import javax.xml.stream.XMLStreamException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -41,13 +50,25 @@ import java.lang.reflect.InvocationTargetException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
-public class ArxivScraper {
+public class ArxivScraper implements AutoCloseable {
 
     public static void main(String[] args) throws Exception {
         String configLocation = System.getProperty("app.configurationFile");
@@ -62,113 +83,666 @@ public class ArxivScraper {
         }
 
         IniWrapper.load(configFile);
+        String dbBackend = IniWrapper.optString("DB", "backend", "sqlite");
         String dbFile = IniWrapper.optString("DB", "db_file", "db/db.sqlite");
+        String dbJournalMode = IniWrapper.optString("DB", "journal_mode", "");
+        String dbSynchronous = IniWrapper.optString("DB", "synchronous", "");
+        long dbBloomExpectedInsertions = IniWrapper.optLong("DB", "bloom_expected_insertions", 0L);
+        double dbBloomFpp = IniWrapper.optDouble("DB", "bloom_fpp", 0.01);
+        boolean dbCompressSummary = IniWrapper.optBoolean("DB", "compress_summary", false);
+        boolean dbMigrateLegacyEntries = IniWrapper.optBoolean("DB", "migrate_legacy_entries", false);
+        boolean dbSearchIndex = IniWrapper.optBoolean("DB", "search_index", false);
+        int dbRetentionDays = IniWrapper.optInt("DB", "retention_days", 0);
+        String dbRetentionBasis = IniWrapper.optString("DB", "retention_basis", "received");
+        int dbRetentionChunkSize = IniWrapper.optInt("DB", "retention_chunk_size", 500);
+        long dbRetentionIntervalSeconds = IniWrapper.optLong("DB", "retention_interval_seconds", 3600L);
+        String logDir = IniWrapper.optString("DB", "log_dir", "db/log");
+        int logSegmentSizeMb = IniWrapper.optInt("DB", "log_segment_size_mb", 64);
+        int logExpectedEntries = IniWrapper.optInt("DB", "log_expected_entries", 1 << 20);
+        boolean isLogSync = IniWrapper.optBoolean("DB", "log_sync", true);
+        double logCompactionThreshold = IniWrapper.optDouble("DB", "log_compaction_threshold", 0.5);
+        long logCompactionIntervalSeconds = IniWrapper.optLong("DB", "log_compaction_interval_seconds", 300L);
 
         String url = IniWrapper.optString("Arxiv", "url", "http://export.arxiv.org/api/query");
         String maxResults = IniWrapper.optString("Arxiv", "max_results", "10");
         String categories = IniWrapper.optString("Arxiv", "categories", "");
+        String parser = IniWrapper.optString("Arxiv", "parser", "stax");
+        int shardSize = IniWrapper.optInt("Arxiv", "shard_size", 0);
+        int fetchThreads = IniWrapper.optInt("Arxiv", "fetch_threads", 1);
+        long requestDelayMs = IniWrapper.optLong("Arxiv", "request_delay_ms", 3000L);
+        int pollPageSize = IniWrapper.optInt("Arxiv", "poll_page_size", 20);
+        int pollCatchUpMaxResults = IniWrapper.optInt("Arxiv", "poll_catch_up_max_results", 2000);
+
+        boolean isArchiveEnabled = IniWrapper.optBoolean("Archive", "enabled", false);
+        String archiveDir = IniWrapper.optString("Archive", "dir", "archive");
+
+        boolean isReplayEnabled = IniWrapper.optBoolean("Replay", "enabled", false);
+        String replaySource = IniWrapper.optString("Replay", "source", "");
+        int replayThreads = IniWrapper.optInt("Replay", "threads", 1);
+        int replayRepeat = IniWrapper.optInt("Replay", "repeat", 1);
 
         boolean isOutFileEnabled = IniWrapper.optBoolean("Output_File", "enabled", false);
         String outFile = IniWrapper.optString("Output_File", "out_file", "output");
+        long outFileRotateMb = IniWrapper.optLong("Output_File", "rotate_size_mb", 0L);
+        long outFileRotateMinutes = IniWrapper.optLong("Output_File", "rotate_interval_minutes", 0L);
+        boolean isOutFileGzipRotated = IniWrapper.optBoolean("Output_File", "gzip_rotated", false);
 
         boolean isAmqpEnabled = IniWrapper.optBoolean("Output_AMQP", "enabled", false);
         String amqpConnectionUrl = IniWrapper.getString("Output_AMQP", "connection_url");
         String amqpQueueName = IniWrapper.getString("Output_AMQP", "queue_name");
+        boolean isAmqpTopic = IniWrapper.optBoolean("Output_AMQP", "topic", false);
         String amqpClientId = IniWrapper.getString("Output_AMQP", "client_id");
+        int amqpEntriesPerMessage = IniWrapper.optInt("Output_AMQP", "entries_per_message", 1);
+        boolean isAmqpTransacted = IniWrapper.optBoolean("Output_AMQP", "transacted", false);
+        int amqpCommitBatchSize = IniWrapper.optInt("Output_AMQP", "commit_batch_size", 100);
+        int amqpMaxInFlight = IniWrapper.optInt("Output_AMQP", "max_in_flight", 0);
+        boolean isAmqpPersistent = IniWrapper.optBoolean("Output_AMQP", "persistent", false);
+
+        boolean isReplicaEnabled = IniWrapper.optBoolean("Replica", "enabled", false);
+        String replicaConnectionUrl = IniWrapper.optString("Replica", "connection_url", "failover:(amqp://127.0.0.1:5672)");
+        int replicaPrefetch = IniWrapper.optInt("Replica", "prefetch", 1000);
+        String replicaSource = IniWrapper.optString("Replica", "source", "arxiv.data.queue");
+        boolean isReplicaTopic = IniWrapper.optBoolean("Replica", "topic", false);
+        String replicaClientId = IniWrapper.optString("Replica", "client_id", "");
+        String replicaSubscription = IniWrapper.optString("Replica", "subscription", "arxiv-replica");
+        int replicaBatchSize = IniWrapper.optInt("Replica", "batch_size", 500);
+        long replicaBatchTimeoutMs = IniWrapper.optLong("Replica", "batch_timeout_ms", 200L);
+        int replicaDecodeThreads = IniWrapper.optInt("Replica", "decode_threads", 2);
+        boolean isReplicaTransacted = IniWrapper.optBoolean("Replica", "transacted", false);
+
+        String distributedMode = IniWrapper.optString("Distributed", "mode", "standalone");
+        String distributedConnectionUrl = IniWrapper.optString("Distributed", "connection_url",
+                "failover:(amqp://127.0.0.1:5672)?jms.prefetchPolicy.all=1");
+        String jobsQueue = IniWrapper.optString("Distributed", "jobs_queue", "arxiv.jobs.queue");
+        String resultsQueue = IniWrapper.optString("Distributed", "results_queue", "arxiv.jobs.results");
+        String tokensQueue = IniWrapper.optString("Distributed", "tokens_queue", "");
+        long tokenTtlMs = IniWrapper.optLong("Distributed", "token_ttl_ms", 6000L);
+        int maxOutstandingJobs = IniWrapper.optInt("Distributed", "max_outstanding_jobs", 8);
+        long jobTimeoutSeconds = IniWrapper.optLong("Distributed", "job_timeout_seconds", 600L);
+        int maxDeliveries = IniWrapper.optInt("Distributed", "max_deliveries", 5);
+
+        boolean isBackfillEnabled = IniWrapper.optBoolean("Backfill", "enabled", false);
+        int backfillPageSize = IniWrapper.optInt("Backfill", "page_size", 200);
+        long backfillDelayMs = IniWrapper.optLong("Backfill", "delay_ms", 3000L);
+        int backfillMaxEmptyPages = IniWrapper.optInt("Backfill", "max_empty_pages", 3);
+
+        int pipelineRingSize = IniWrapper.optInt("Pipeline", "ring_size", 1024);
+        int pipelineBatchSize = IniWrapper.optInt("Pipeline", "batch_size", 500);
+        int pipelineSerializeThreads = IniWrapper.optInt("Pipeline", "serialize_threads", 1);
+        boolean pipelineDeltaMessages = IniWrapper.optBoolean("Pipeline", "delta_messages", false);
+
+        boolean isMetricsJmxEnabled = IniWrapper.optBoolean("Metrics", "jmx_enabled", false);
+        boolean isMetricsHttpEnabled = IniWrapper.optBoolean("Metrics", "http_enabled", false);
+        String metricsHttpHost = IniWrapper.optString("Metrics", "http_host", "127.0.0.1");
+        int metricsHttpPort = IniWrapper.optInt("Metrics", "http_port", 9404);
+
+        boolean isDaemonEnabled = IniWrapper.optBoolean("Daemon", "enabled", false);
+        long pollIntervalSeconds = IniWrapper.optLong("Daemon", "poll_interval_seconds", 30L);
+        long shutdownTimeoutSeconds = IniWrapper.optLong("Daemon", "shutdown_timeout_seconds", 60L);
+
+        if (isMetricsJmxEnabled)
+            Metrics.enableJmx();
+        MetricsHttpServer metricsHttpServer = null;
+        if (isMetricsHttpEnabled) {
+            metricsHttpServer = new MetricsHttpServer(metricsHttpHost, metricsHttpPort);
+            metricsHttpServer.start();
+        }
+
+        MqWrapper mqWrapper = null;
+        if (isAmqpEnabled) {
+            ConnectionFactory factory = lookupConnectionFactory(amqpConnectionUrl);
+            mqWrapper = new MqWrapper(factory, amqpClientId, amqpQueueName, isAmqpTopic);
+            mqWrapper.setTransacted(isAmqpTransacted, amqpCommitBatchSize);
+            mqWrapper.setMaxInFlight(amqpMaxInFlight);
+            mqWrapper.setPersistent(isAmqpPersistent);
+        }
 
         ArxivScraper scraper = new ArxivScraper(url, maxResults, categories);
-        List<ArxivEntry> arxivEntries = scraper.scrape();
-
-        List<String> newArxivEntriesJson = new ArrayList<>();
-        try (ArxivDbWrapper dbwrapper = new ArxivDbWrapper(dbFile, "arxiv_raw");) {
-            dbwrapper.initalize();
-            int numInserted = 0;
-            for (ArxivEntry arxivEntry : arxivEntries) {
-                String id = arxivEntry.getId();
-                if (!dbwrapper.isExtracted(id)) {
-                    LOGGER.debug("Inserting {}", id);
-                    newArxivEntriesJson.add(new Gson().toJson(arxivEntry));
-                    numInserted += dbwrapper.defaultInsert(id, arxivEntry);
-                }
-            }
-            LOGGER.info("Inserted {} new entries", numInserted);
+        scraper.setParser(parser);
+        scraper.setSharding(shardSize, fetchThreads, requestDelayMs);
+        scraper.setPollCatchUp(pollCatchUpMaxResults);
+        if (isArchiveEnabled)
+            scraper.setArchive(new ArxivResponseArchive(archiveDir));
+
+        ArxivStore store;
+        ArxivDbWrapper dbwrapper = null;
+        if (dbBackend.equalsIgnoreCase("log")) {
+            ArxivLogStore logStore = new ArxivLogStore(logDir);
+            logStore.setSegmentSize(logSegmentSizeMb * 1024 * 1024);
+            logStore.setExpectedEntries(logExpectedEntries);
+            logStore.setSync(isLogSync);
+            logStore.setCompaction(logCompactionThreshold, logCompactionIntervalSeconds);
+            logStore.setCodec(new ArxivEntryCodec(dbCompressSummary, 256));
+            if (dbRetentionDays > 0)
+                LOGGER.warn("retention_days is ignored by the log backend");
+            store = logStore;
+        } else {
+            dbwrapper = new ArxivDbWrapper(dbFile, "arxiv_raw", dbJournalMode, dbSynchronous);
+            dbwrapper.setBloomFilter(dbBloomExpectedInsertions, dbBloomFpp);
+            dbwrapper.setCodec(new ArxivEntryCodec(dbCompressSummary, 256));
+            dbwrapper.setSearchIndex(dbSearchIndex);
+            dbwrapper.setRetention(TimeUnit.DAYS.toMillis(dbRetentionDays), dbRetentionBasis.equalsIgnoreCase("updated"),
+                    dbRetentionChunkSize, dbRetentionIntervalSeconds);
+            store = dbwrapper;
         }
 
+        RotatingFileWriter fileWriter = null;
         if (isOutFileEnabled) {
-            for (String json : newArxivEntriesJson) {
-                FileUtils.writeStringToFile(new File(outFile), json + System.lineSeparator(), StandardCharsets.UTF_8, true);
+            fileWriter = new RotatingFileWriter(outFile, outFileRotateMb * 1024 * 1024,
+                    TimeUnit.MINUTES.toMillis(outFileRotateMinutes), isOutFileGzipRotated);
+        }
+
+        IngestPipeline pipeline = new IngestPipeline(store, fileWriter, mqWrapper);
+        pipeline.setRingSize(pipelineRingSize);
+        pipeline.setBatchSize(pipelineBatchSize);
+        pipeline.setSerializeThreads(pipelineSerializeThreads);
+        pipeline.setEntriesPerMessage(amqpEntriesPerMessage);
+        pipeline.setDeltaMessages(pipelineDeltaMessages);
+
+        ArxivHarvester harvester = new ArxivHarvester(scraper, store, pipeline);
+        harvester.setPoll(pollPageSize > 0 ? pollPageSize : Integer.parseInt(maxResults), Integer.parseInt(maxResults));
+        harvester.setBackfill(backfillPageSize, backfillMaxEmptyPages);
+
+        // Every mode below but the daemon runs to completion on this thread, then closes the harvester, which
+        // closes the pipeline, store and scraper
+        if (isReplayEnabled) {
+            try {
+                store.initalize();
+                ArxivReplayer replayer = new ArxivReplayer(scraper, pipeline);
+                replayer.setThreads(replayThreads);
+                replayer.setRepeat(replayRepeat);
+                File source = new File(StringUtils.isNotBlank(replaySource) ? replaySource : archiveDir);
+                replayer.replay(ArxivReplayer.findResponses(source));
+            } finally {
+                harvester.close();
+                if (metricsHttpServer != null)
+                    metricsHttpServer.close();
             }
+            return;
         }
 
-        if (isAmqpEnabled) {
-            Hashtable<Object, Object> env = new Hashtable<>();
-            env.put(Context.INITIAL_CONTEXT_FACTORY, "org.apache.qpid.jms.jndi.JmsInitialContextFactory");
-            env.put("connectionfactory.activemqFactory", amqpConnectionUrl);
-            Context context = new InitialContext(env);
-
-            ConnectionFactory factory = (ConnectionFactory) context.lookup("activemqFactory");
-            try (MqWrapper mqWrapper = new MqWrapper(factory, amqpClientId, amqpQueueName, false);) {
-                for (String json : newArxivEntriesJson) {
-                    mqWrapper.sendTextMessage(json);
+        if (isReplicaEnabled) {
+            if (replicaPrefetch > 0) {
+                replicaConnectionUrl += (replicaConnectionUrl.contains("?") ? "&" : "?")
+                        + "jms.prefetchPolicy.all=" + replicaPrefetch;
+            }
+            try (ArxivReplica replica = new ArxivReplica(lookupConnectionFactory(replicaConnectionUrl), store);) {
+                replica.setSource(replicaSource, isReplicaTopic, StringUtils.trimToNull(replicaClientId),
+                        isReplicaTopic ? replicaSubscription : null);
+                replica.setBatch(replicaBatchSize, replicaBatchTimeoutMs);
+                replica.setDecodeThreads(replicaDecodeThreads);
+                replica.setTransacted(isReplicaTransacted);
+                stopOnShutdown(replica::stop, shutdownTimeoutSeconds);
+                store.initalize();
+                replica.run();
+            } finally {
+                harvester.close();
+                if (metricsHttpServer != null)
+                    metricsHttpServer.close();
+            }
+            return;
+        }
+
+        if (distributedMode.equalsIgnoreCase("coordinator")) {
+            try (ArxivCoordinator coordinator = new ArxivCoordinator(lookupConnectionFactory(distributedConnectionUrl),
+                    store, pipeline, scraper.getShards());) {
+                coordinator.setQueues(jobsQueue, resultsQueue, StringUtils.trimToNull(tokensQueue));
+                coordinator.setRateBudget(requestDelayMs, tokenTtlMs);
+                coordinator.setLeases(maxOutstandingJobs, jobTimeoutSeconds);
+                coordinator.setPoll(pollPageSize > 0 ? pollPageSize : Integer.parseInt(maxResults), Integer.parseInt(maxResults));
+                coordinator.setBackfill(backfillPageSize, backfillMaxEmptyPages);
+                stopOnShutdown(coordinator::stop, shutdownTimeoutSeconds);
+                store.initalize();
+                // Without the daemon a coordinator runs one backfill or one round of polls, like standalone
+                coordinator.run(isDaemonEnabled ? TimeUnit.SECONDS.toMillis(pollIntervalSeconds) : 0,
+                        isDaemonEnabled || !isBackfillEnabled, isBackfillEnabled);
+            } finally {
+                harvester.close();
+                if (metricsHttpServer != null)
+                    metricsHttpServer.close();
+            }
+            return;
+        }
+
+        if (distributedMode.equalsIgnoreCase("worker")) {
+            // Workers only fetch; the store and outputs configured here are left unused
+            try (ArxivWorker worker = new ArxivWorker(lookupConnectionFactory(distributedConnectionUrl), scraper);) {
+                worker.setQueues(jobsQueue, resultsQueue, StringUtils.trimToNull(tokensQueue));
+                worker.setMaxDeliveries(maxDeliveries);
+                stopOnShutdown(worker::stop, shutdownTimeoutSeconds);
+                worker.run();
+            } finally {
+                harvester.close();
+                if (metricsHttpServer != null)
+                    metricsHttpServer.close();
+            }
+            return;
+        }
+
+        if (!isDaemonEnabled) {
+            try {
+                store.initalize();
+                if (dbwrapper != null && dbMigrateLegacyEntries)
+                    dbwrapper.migrateLegacyEntries(1000);
+
+                if (isBackfillEnabled) {
+                    while (harvester.backfillPage()) {
+                        Thread.sleep(backfillDelayMs);
+                    }
+                } else {
+                    harvester.poll();
                 }
+            } finally {
+                harvester.close();
+                if (metricsHttpServer != null)
+                    metricsHttpServer.close();
+            }
+            return;
+        }
+
+        store.initalize();
+        if (dbwrapper != null && dbMigrateLegacyEntries)
+            dbwrapper.migrateLegacyEntries(1000);
+
+        MetricsHttpServer httpServer = metricsHttpServer;
+        // A single thread serialises polls and backfill pages over the shared DB connection
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            LOGGER.info("Shutting down, waiting up to {}s for in-flight work", shutdownTimeoutSeconds);
+            scheduler.shutdown();
+            try {
+                if (!scheduler.awaitTermination(shutdownTimeoutSeconds, TimeUnit.SECONDS))
+                    LOGGER.warn("In-flight work did not finish before shutdown");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            harvester.close();
+            if (httpServer != null)
+                httpServer.close();
+        }));
+
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                harvester.poll();
             } catch (Exception e) {
-                LOGGER.error(e);
+                LOGGER.error("Poll failed", e);
             }
+        }, 0, pollIntervalSeconds, TimeUnit.SECONDS);
+        if (isBackfillEnabled) {
+            scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    harvester.backfillPage();
+                } catch (Exception e) {
+                    LOGGER.error("Backfill page failed", e);
+                }
+            }, backfillDelayMs, backfillDelayMs, TimeUnit.MILLISECONDS);
         }
+        LOGGER.info("Polling every {}s", pollIntervalSeconds);
+        scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+
+    // Lets the current job finish, and the main thread close the DB and outputs, before the JVM exits
+    private static void stopOnShutdown(Runnable stop, long shutdownTimeoutSeconds) {
+        Thread mainThread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            LOGGER.info("Shutting down, waiting up to {}s for in-flight work", shutdownTimeoutSeconds);
+            stop.run();
+            try {
+                mainThread.join(TimeUnit.SECONDS.toMillis(shutdownTimeoutSeconds));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+    }
+
+    private static ConnectionFactory lookupConnectionFactory(String connectionUrl) throws NamingException {
+        Hashtable<Object, Object> env = new Hashtable<>();
+        env.put(Context.INITIAL_CONTEXT_FACTORY, "org.apache.qpid.jms.jndi.JmsInitialContextFactory");
+        env.put("connectionfactory.activemqFactory", connectionUrl);
+        Context context = new InitialContext(env);
+
+        return (ConnectionFactory) context.lookup("activemqFactory");
     }
 
     private static final Logger LOGGER = LogManager.getLogger();
 
+    private static final Metrics.Histogram FETCH_SECONDS = Metrics.timer("arxiv_fetch_seconds",
+            "Time from sending an Arxiv API request to its response headers");
+    private static final Metrics.Histogram FETCH_BYTES = Metrics.histogram("arxiv_fetch_bytes",
+            "Body size of an Arxiv API response", Metrics.SIZE_BUCKETS);
+    private static final Metrics.Histogram PARSE_SECONDS = Metrics.timer("arxiv_parse_seconds",
+            "Time to read and parse one response page, including time blocked on a full ingest pipeline");
+    private static final Metrics.Counter FETCH_FAILURES = Metrics.counter("arxiv_fetch_failures_total",
+            "Arxiv API requests that failed to fetch or parse");
+    private static final Metrics.Counter ENTRIES_PARSED = Metrics.counter("arxiv_entries_parsed_total",
+            "Entries read from Arxiv API responses");
+    private static final Metrics.Counter POLL_CATCH_UPS = Metrics.counter("arxiv_poll_catch_ups_total",
+            "Polls that read max_results entries without reaching the previous poll's mark and paged on");
+    private static final Metrics.Counter POLL_GAPS = Metrics.counter("arxiv_poll_gaps_total",
+            "Polls that gave up paging before reaching the previous poll's mark, skipping the entries in between");
+
     private String url;
     private String maxResults;
     private String categories;
+    private String sortBy;
+    private String sortOrder;
+    private String parser = "stax";
+    private CloseableHttpClient httpclient;
+    private List<String> shards;
+    private ExecutorService fetchExecutor;
+    private RateLimiter rateLimiter;
+    private ArxivResponseArchive archive;
+    private RateBudget rateBudget;
+    private int pollCatchUpMaxResults = 0;
 
     public ArxivScraper(String url, String maxResults, String categories) {
+        this(url, maxResults, categories, "lastUpdatedDate", "descending");
+    }
+
+    public ArxivScraper(String url, String maxResults, String categories, String sortBy, String sortOrder) {
         this.url = url;
         this.maxResults = maxResults;
         this.categories = categories;
+        this.sortBy = sortBy;
+        this.sortOrder = sortOrder;
+        // Pooled and kept alive across scrapes so that repeated polls reuse the connection
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(20);
+        connectionManager.setDefaultMaxPerRoute(20);
+        this.httpclient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setRetryHandler(getHttpRequestRetryHandler())
+                .build();
+    }
+
+    public void setParser(String parser) {
+        this.parser = parser;
+    }
+
+    // Replaces the local rate limiter, e.g. with a budget shared by several processes
+    public void setRateBudget(RateBudget rateBudget) {
+        this.rateBudget = rateBudget;
+    }
+
+    // Total entries a poll may page through when max_results is not enough to reach the previous poll's mark;
+    // 0 skips the rest after logging it
+    public void setPollCatchUp(int maxResults) {
+        this.pollCatchUpMaxResults = maxResults;
+    }
+
+    // Saves every response body before it is parsed
+    public void setArchive(ArxivResponseArchive archive) {
+        this.archive = archive;
+    }
+
+    // Splits the categories into shards of shardSize (0 for a single shard) fetched concurrently on fetchThreads.
+    // Every request across all shards waits on one rate limiter so requests stay requestDelayMs apart.
+    public void setSharding(int shardSize, int fetchThreads, long requestDelayMs) {
+        List<String> categoryList = Arrays.asList(categories.split(","));
+        if (shardSize <= 0) {
+            shards = Collections.singletonList(categories);
+        } else {
+            shards = Lists.partition(categoryList, shardSize).stream()
+                    .map(shard -> String.join(",", shard))
+                    .collect(Collectors.toList());
+        }
+        if (fetchExecutor != null)
+            fetchExecutor.shutdown();
+        fetchExecutor = Executors.newFixedThreadPool(Math.max(1, fetchThreads),
+                new ThreadFactoryBuilder().setNameFormat("arxiv-fetch-%d").setDaemon(true).build());
+        rateLimiter = requestDelayMs > 0 ? RateLimiter.create(1000.0 / requestDelayMs) : null;
+    }
+
+    public List<String> getShards() {
+        if (shards == null)
+            shards = Collections.singletonList(categories);
+        return shards;
+    }
+
+    // Runs the task once per shard, concurrently when sharding is enabled, and returns results in shard order
+    public <T> List<T> forEachShard(List<String> shards, ShardTask<T> task) throws Exception {
+        if (fetchExecutor == null || shards.size() == 1) {
+            List<T> results = new ArrayList<>();
+            for (String shard : shards) {
+                results.add(task.apply(shard));
+            }
+            return results;
+        }
+
+        List<Future<T>> futures = new ArrayList<>();
+        for (String shard : shards) {
+            futures.add(fetchExecutor.submit(() -> task.apply(shard)));
+        }
+        List<T> results = new ArrayList<>();
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+        return results;
     }
 
-    public List<ArxivEntry> scrape() throws URISyntaxException, IOException, FeedException {
+    public List<ArxivEntry> scrape() throws Exception {
+        int pageSize = Integer.parseInt(maxResults);
+        List<ArxivFeed> feeds = forEachShard(getShards(), shard -> scrape(shard, 0, pageSize, sortBy, sortOrder));
+        return mergeEntries(feeds);
+    }
+
+    // Cross-listed papers appear in several shards; keep one copy of each, preferring the latest version
+    public static List<ArxivEntry> mergeEntries(List<ArxivFeed> feeds) {
+        Map<String, ArxivEntry> entries = new LinkedHashMap<>();
+        Map<String, Integer> versions = new HashMap<>();
+        for (ArxivFeed feed : feeds) {
+            for (ArxivEntry arxivEntry : feed.getEntries()) {
+                ArxivId arxivId = ArxivId.parse(arxivEntry.getId());
+                Integer version = versions.get(arxivId.getBaseId());
+                if (version == null || arxivId.getVersion() > version) {
+                    versions.put(arxivId.getBaseId(), arxivId.getVersion());
+                    entries.put(arxivId.getBaseId(), arxivEntry);
+                }
+            }
+        }
+        return new ArrayList<>(entries.values());
+    }
+
+    // Pages through the shard newest first and stops at the first entry updated before the mark.
+    // Returns the entries updated at or after the mark, up to maxResults, or further when catching up.
+    public ArxivFeed scrapeSince(String shard, long markMillis, int pageSize, int maxResults)
+            throws URISyntaxException, IOException, FeedException {
         List<ArxivEntry> arxivEntries = new ArrayList<>();
+        ArxivFeed arxivFeed = scrapeSince(shard, markMillis, pageSize, maxResults, arxivEntries::add);
+        arxivFeed.setEntries(arxivEntries);
+        return arxivFeed;
+    }
+
+    // As above, but hands each entry to the consumer as it is parsed.
+    // Reading maxResults entries without reaching the mark means more were updated since the previous poll than
+    // one poll takes; paging goes on up to the catch-up limit so that the cursor does not skip them. Entries left
+    // unread past that limit are logged and counted, and the feed reports that the mark was not reached.
+    public ArxivFeed scrapeSince(String shard, long markMillis, int pageSize, int maxResults,
+                                 Consumer<ArxivEntry> consumer)
+            throws URISyntaxException, IOException, FeedException {
+        ArxivFeed arxivFeed = new ArxivFeed();
+        int[] numEntries = {0};
+        boolean[] reachedMark = {false};
+        long[] oldestMillis = {Long.MAX_VALUE};
+        Consumer<ArxivEntry> sinceConsumer = arxivEntry -> {
+            if (reachedMark[0])
+                return;
+            if (arxivEntry.getUpdated() != null && arxivEntry.getUpdated().getTime() < markMillis) {
+                LOGGER.debug("Reached high water mark of [{}] after {} entries", shard, numEntries[0]);
+                reachedMark[0] = true;
+                return;
+            }
+            numEntries[0]++;
+            if (arxivEntry.getUpdated() != null)
+                oldestMillis[0] = Math.min(oldestMillis[0], arxivEntry.getUpdated().getTime());
+            consumer.accept(arxivEntry);
+        };
+        boolean isExhausted = false;
+        int start = 0;
+        int limit = maxResults;
+        while (true) {
+            while (start < limit && !reachedMark[0]) {
+                int size = Math.min(pageSize, limit - start);
+                ArxivFeed page = scrape(shard, start, size, "lastUpdatedDate", "descending", sinceConsumer);
+                arxivFeed.setTotalResults(page.getTotalResults());
+                start += page.getNumEntries();
+                if (page.getNumEntries() < size) {
+                    isExhausted = true;
+                    break;
+                }
+            }
+            // Without a mark, as on the first poll, only the newest maxResults are wanted
+            if (reachedMark[0] || isExhausted || markMillis <= 0)
+                break;
+            // Entries in the gap were updated between the mark and the oldest entry read
+            long oldest = oldestMillis[0] == Long.MAX_VALUE ? System.currentTimeMillis() : oldestMillis[0];
+            long gapSeconds = (oldest - markMillis) / 1000;
+            if (limit < pollCatchUpMaxResults) {
+                POLL_CATCH_UPS.increment();
+                LOGGER.warn("Poll of [{}] read {} entries without reaching its mark, a gap of {}s before the oldest "
+                        + "of them; paging on up to {} entries", shard, numEntries[0], gapSeconds, pollCatchUpMaxResults);
+                limit = pollCatchUpMaxResults;
+                continue;
+            }
+            POLL_GAPS.increment();
+            LOGGER.error("Poll of [{}] read {} entries without reaching its mark; entries updated in the {}s from {} "
+                    + "to {} are skipped", shard, numEntries[0], gapSeconds,
+                    DateTimeUtil.formatISO8601(new Date(markMillis)), DateTimeUtil.formatISO8601(new Date(oldest)));
+            break;
+        }
+        arxivFeed.setNumEntries(numEntries[0]);
+        arxivFeed.setMarkReached(reachedMark[0] || isExhausted || markMillis <= 0);
+        return arxivFeed;
+    }
+
+    public ArxivFeed scrape(int start, int pageSize) throws URISyntaxException, IOException, FeedException {
+        return scrape(categories, start, pageSize, sortBy, sortOrder);
+    }
+
+    public ArxivFeed scrape(String shard, int start, int pageSize, String sortBy, String sortOrder)
+            throws URISyntaxException, IOException, FeedException {
+        List<ArxivEntry> arxivEntries = new ArrayList<>();
+        ArxivFeed arxivFeed = scrape(shard, start, pageSize, sortBy, sortOrder, arxivEntries::add);
+        arxivFeed.setEntries(arxivEntries);
+        return arxivFeed;
+    }
+
+    // Streams entries to the consumer while the response is still being read; the returned feed
+    // only carries paging metadata
+    public ArxivFeed scrape(String shard, int start, int pageSize, String sortBy, String sortOrder,
+                            Consumer<ArxivEntry> consumer)
+            throws URISyntaxException, IOException, FeedException {
+        ArxivFeed arxivFeed = new ArxivFeed();
 
-        CloseableHttpClient httpclient = HttpClients.custom()
-                .setRetryHandler(getHttpRequestRetryHandler())
-                .build();
         URI arxivUri = new URIBuilder(url)
-                .setParameter("sortBy", "lastUpdatedDate")
-                .setParameter("sortOrder", "descending")
-                .setParameter("max_results", maxResults)
-                .setParameter("search_query", buildCategoryQuery(categories))
+                .setParameter("sortBy", sortBy)
+                .setParameter("sortOrder", sortOrder)
+                .setParameter("start", Integer.toString(start))
+                .setParameter("max_results", Integer.toString(pageSize))
+                .setParameter("search_query", buildCategoryQuery(shard))
                 .build();
+        if (rateBudget != null) {
+            rateBudget.acquire();
+        } else if (rateLimiter != null) {
+            rateLimiter.acquire();
+        }
         LOGGER.info("Grabbing feed from URL: {}", arxivUri);
 
         HttpGet httpget = new HttpGet(arxivUri);
-        CloseableHttpResponse response = httpclient.execute(httpget);
         try {
-            HttpEntity entity = response.getEntity();
-            if (entity != null) {
-                InputStream is = entity.getContent();
-                try {
-                    SyndFeedInput input = new SyndFeedInput();
-                    XmlReader xmlReader = new XmlReader(is);
-                    SyndFeed feed = input.build(xmlReader);
-
-                    List<SyndEntry> entries = feed.getEntries();
-                    LOGGER.info("Grabbed {} raw entries", entries.size());
-                    arxivEntries = entries.stream().map(this::syndEntryToArxivEntry).collect(Collectors.toList());
-                } finally {
-                    if (is != null)
+            long startNanos = System.nanoTime();
+            CloseableHttpResponse response = httpclient.execute(httpget);
+            FETCH_SECONDS.observeSince(startNanos);
+            try {
+                HttpEntity entity = response.getEntity();
+                if (entity != null) {
+                    InputStream content = entity.getContent();
+                    if (archive != null)
+                        content = archive.archive(content, arxivUri.toString());
+                    CountingInputStream is = new CountingInputStream(content);
+                    try {
+                        startNanos = System.nanoTime();
+                        arxivFeed = parse(is, consumer);
+                        PARSE_SECONDS.observeSince(startNanos);
+                        FETCH_BYTES.observe(is.getCount());
+                        ENTRIES_PARSED.add(arxivFeed.getNumEntries());
+                        LOGGER.info("Grabbed {} raw entries", arxivFeed.getNumEntries());
+                    } finally {
                         is.close();
+                    }
                 }
+            } finally {
+                response.close();
+            }
+        } catch (IOException | FeedException e) {
+            FETCH_FAILURES.increment();
+            throw e;
+        }
+        return arxivFeed;
+    }
+
+    public ArxivFeed parse(InputStream is) throws IOException, FeedException {
+        List<ArxivEntry> arxivEntries = new ArrayList<>();
+        ArxivFeed arxivFeed = parse(is, arxivEntries::add);
+        arxivFeed.setEntries(arxivEntries);
+        return arxivFeed;
+    }
+
+    public ArxivFeed parse(InputStream is, Consumer<ArxivEntry> consumer) throws IOException, FeedException {
+        if (parser.equals("rome")) {
+            // ROME builds the whole feed before any entry is available
+            ArxivFeed arxivFeed = parseWithRome(is);
+            arxivFeed.getEntries().forEach(consumer);
+            arxivFeed.setNumEntries(arxivFeed.getEntries().size());
+            arxivFeed.setEntries(new ArrayList<>());
+            return arxivFeed;
+        }
+        try {
+            return new ArxivFeedParser().parse(is, consumer);
+        } catch (XMLStreamException e) {
+            throw new FeedException("Unable to parse feed", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (fetchExecutor != null)
+            fetchExecutor.shutdownNow();
+        try {
+            httpclient.close();
+        } catch (IOException e) {
+            LOGGER.warn(e);
+        }
+    }
+
+    private ArxivFeed parseWithRome(InputStream is) throws IOException, FeedException {
+        ArxivFeed arxivFeed = new ArxivFeed();
+        SyndFeedInput input = new SyndFeedInput();
+        XmlReader xmlReader = new XmlReader(is);
+        SyndFeed feed = input.build(xmlReader);
+
+        List<SyndEntry> entries = feed.getEntries();
+        arxivFeed.setEntries(entries.stream().map(ArxivScraper::syndEntryToArxivEntry).collect(Collectors.toList()));
+        for (Element markup : feed.getForeignMarkup()) {
+            if (markup.getName().equals("totalResults")) {
+                arxivFeed.setTotalResults(Integer.parseInt(markup.getTextTrim()));
+            } else if (markup.getName().equals("startIndex")) {
+                arxivFeed.setStartIndex(Integer.parseInt(markup.getTextTrim()));
             }
-        } finally {
-            response.close();
         }
-        return arxivEntries;
+        return arxivFeed;
     }
 
-    private ArxivEntry syndEntryToArxivEntry(SyndEntry syndEntry) {
+    // Package private for the benchmarks
+    static ArxivEntry syndEntryToArxivEntry(SyndEntry syndEntry) {
         ArxivEntry arxivEntry = new ArxivEntry();
 
         arxivEntry.setId(syndEntry.getUri());
@@ -223,6 +797,15 @@ public class ArxivScraper {
         return sb.toString();
     }
 
+    public interface ShardTask<T> {
+        T apply(String shard) throws Exception;
+    }
+
+    // Blocks until one more request may be sent
+    public interface RateBudget {
+        void acquire() throws IOException;
+    }
+
     private static HttpRequestRetryHandler getHttpRequestRetryHandler() {
         HttpRequestRetryHandler retryHandler = (exception, executionCount, context) -> {
             if (executionCount >= 5) {
@@ -0,0 +1,75 @@
+package edu.soton.ecs.arxivscraper;
+
+import edu.soton.ecs.arxivscraper.util.IniWrapper;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+// Command line search over the full-text index.
+// Usage: arxivsearch [-n limit] [--rebuild] query...
+// The query uses the SQLite FTS5 syntax, e.g. spectral clustering, "random forest" NOT survey, authors:hinton
+public class ArxivSearch {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    public static void main(String[] args) throws Exception {
+        String configLocation = System.getProperty("app.configurationFile");
+        if (StringUtils.isBlank(configLocation)) {
+            configLocation = "./config/config.ini";
+        }
+
+        File configFile = new File(configLocation);
+        if (!configFile.exists()) {
+            LOGGER.error("Unable to find config file at {}", configLocation);
+            System.exit(1);
+        }
+
+        int limit = 20;
+        boolean isRebuild = false;
+        List<String> terms = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-n") && i + 1 < args.length) {
+                limit = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--rebuild")) {
+                isRebuild = true;
+            } else {
+                terms.add(args[i]);
+            }
+        }
+        if (terms.isEmpty() && !isRebuild) {
+            System.err.println("Usage: arxivsearch [-n limit] [--rebuild] query...");
+            System.exit(2);
+        }
+
+        IniWrapper.load(configFile);
+        String dbFile = IniWrapper.optString("DB", "db_file", "db/db.sqlite");
+        boolean dbCompressSummary = IniWrapper.optBoolean("DB", "compress_summary", false);
+
+        // The index is created and populated on open if it does not exist yet
+        ArxivDbWrapper dbwrapper = new ArxivDbWrapper(dbFile, "arxiv_raw");
+        dbwrapper.setCodec(new ArxivEntryCodec(dbCompressSummary, 256));
+        dbwrapper.setSearchIndex(true);
+        try {
+            dbwrapper.initalize();
+            if (isRebuild) {
+                int numIndexed = dbwrapper.rebuildSearchIndex(1000);
+                LOGGER.info("Rebuilt search index over {} entries", numIndexed);
+            }
+            if (!terms.isEmpty()) {
+                for (ArxivSearchHit hit : dbwrapper.search(String.join(" ", terms), limit)) {
+                    ArxivEntry arxivEntry = hit.getArxivEntry();
+                    System.out.println(String.format("%.3f\t%s\t%s", hit.getScore(), arxivEntry.getId(),
+                            StringUtils.normalizeSpace(arxivEntry.getTitle())));
+                    System.out.println("\t" + StringUtils.normalizeSpace(hit.getSnippet()));
+                }
+            }
+        } finally {
+            dbwrapper.close();
+        }
+    }
+
+}
@@ -0,0 +1,46 @@
+package edu.soton.ecs.arxivscraper;
+
+import com.google.common.base.MoreObjects;
+
+public class ArxivSearchHit {
+
+    private ArxivEntry arxivEntry;
+    private double score;
+    private String snippet;
+
+    public ArxivEntry getArxivEntry() {
+        return arxivEntry;
+    }
+
+    public void setArxivEntry(ArxivEntry arxivEntry) {
+        this.arxivEntry = arxivEntry;
+    }
+
+    // bm25 relevance; lower is a better match, as SQLite orders it
+    public double getScore() {
+        return score;
+    }
+
+    public void setScore(double score) {
+        this.score = score;
+    }
+
+    // Summary excerpt with the matched terms in [brackets]
+    public String getSnippet() {
+        return snippet;
+    }
+
+    public void setSnippet(String snippet) {
+        this.snippet = snippet;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("id", arxivEntry != null ? arxivEntry.getId() : null)
+                .add("score", score)
+                .add("snippet", snippet)
+                .toString();
+    }
+
+}
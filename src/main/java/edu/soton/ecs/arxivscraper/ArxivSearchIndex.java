@@ -0,0 +1,115 @@
+package edu.soton.ecs.arxivscraper;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+// SQLite FTS5 index over title, summary, authors and categories, keyed by the rowid of the entry's row.
+// Writes go through the owning ArxivDbWrapper's connection so they share its transactions.
+// A full VACUUM may renumber rowids of the entry table, after which the index must be rebuilt.
+class ArxivSearchIndex {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    // bm25 column weights: title, summary, authors, categories
+    private static final String RANK = "bm25(%s, 10.0, 1.0, 5.0, 2.0)";
+
+    private final Connection connection;
+    private final String tablename;
+    private final String indexname;
+
+    private PreparedStatement deleteStatement;
+    private PreparedStatement insertStatement;
+
+    ArxivSearchIndex(Connection connection, String tablename) {
+        this.connection = connection;
+        this.tablename = tablename;
+        this.indexname = tablename + "_fts";
+    }
+
+    // Returns true if the index was created and needs populating from existing rows
+    boolean create() throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT 1 FROM sqlite_master WHERE type='table' AND name=?");) {
+            statement.setString(1, indexname);
+            if (statement.executeQuery().next())
+                return false;
+        }
+        try (Statement statement = connection.createStatement();) {
+            statement.executeUpdate("CREATE VIRTUAL TABLE " + indexname
+                    + " USING fts5(title, summary, authors, categories, tokenize='porter unicode61')");
+        }
+        return true;
+    }
+
+    // Replaces the indexed text of the entry stored under arxivId; executed by executeBatch
+    void addBatch(ArxivEntry arxivEntry, String arxivId) throws SQLException {
+        if (deleteStatement == null)
+            deleteStatement = connection.prepareStatement("DELETE FROM " + indexname
+                    + " WHERE rowid=(SELECT rowid FROM " + tablename + " WHERE arxiv_id=?)");
+        if (insertStatement == null)
+            insertStatement = connection.prepareStatement("INSERT INTO " + indexname
+                    + " (rowid, title, summary, authors, categories) SELECT rowid, ?, ?, ?, ? FROM "
+                    + tablename + " WHERE arxiv_id=?");
+        deleteStatement.setString(1, arxivId);
+        deleteStatement.addBatch();
+        insertStatement.setString(1, arxivEntry.getTitle());
+        insertStatement.setString(2, arxivEntry.getSummary());
+        insertStatement.setString(3, arxivEntry.getAuthors() != null ? String.join("; ", arxivEntry.getAuthors()) : null);
+        insertStatement.setString(4, arxivEntry.getCategories() != null ? String.join(" ", arxivEntry.getCategories()) : null);
+        insertStatement.setString(5, arxivId);
+        insertStatement.addBatch();
+    }
+
+    void executeBatch() throws SQLException {
+        if (deleteStatement != null) {
+            deleteStatement.executeBatch();
+            insertStatement.executeBatch();
+        }
+    }
+
+    void clear() throws SQLException {
+        try (Statement statement = connection.createStatement();) {
+            statement.executeUpdate("DELETE FROM " + indexname);
+        }
+    }
+
+    // query uses the FTS5 syntax, e.g. tensor AND "singular value", title:spectral or authors:hoff
+    List<ArxivSearchHit> search(String query, int limit, ArxivEntryCodec codec) throws SQLException {
+        List<ArxivSearchHit> hits = new ArrayList<>();
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT t.raw, " + String.format(RANK, indexname) + " AS score, snippet(" + indexname
+                        + ", 1, '[', ']', '...', 24) FROM " + indexname + " JOIN " + tablename
+                        + " t ON t.rowid = " + indexname + ".rowid WHERE " + indexname
+                        + " MATCH ? ORDER BY score LIMIT ?");) {
+            statement.setString(1, query);
+            statement.setInt(2, limit);
+            try (ResultSet results = statement.executeQuery();) {
+                while (results.next()) {
+                    ArxivSearchHit hit = new ArxivSearchHit();
+                    hit.setArxivEntry(codec.decode(results.getBytes(1)));
+                    hit.setScore(results.getDouble(2));
+                    hit.setSnippet(results.getString(3));
+                    hits.add(hit);
+                }
+            }
+        }
+        LOGGER.debug("Found {} hits for {}", hits.size(), query);
+        return hits;
+    }
+
+    void close() throws SQLException {
+        if (deleteStatement != null)
+            deleteStatement.close();
+        if (insertStatement != null)
+            insertStatement.close();
+    }
+
+}
@@ -0,0 +1,38 @@
+package edu.soton.ecs.arxivscraper;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+// Storage backend for extracted entries and harvest cursors, selected by backend under [DB].
+// Entries are keyed by arxiv id without version; only newer versions replace a stored entry, or the same
+// version with different content where the backend keeps content fingerprints.
+public interface ArxivStore extends AutoCloseable {
+
+    void initalize() throws Exception;
+
+    // Returns the stored version of the paper, or -1 if it has not been extracted
+    int getStoredVersion(String baseId) throws Exception;
+
+    List<ArxivEntry> upsertEntries(List<ArxivEntry> arxivEntries) throws Exception;
+
+    // Stores unseen papers and newer versions, moving the given cursors atomically with them.
+    // Returns only the entries that were inserted or bumped.
+    List<ArxivEntry> upsertEntries(List<ArxivEntry> arxivEntries, Map<String, Long> cursors) throws Exception;
+
+    // Entries of the last upsertEntries call that replaced a stored entry of the same version, mapped by
+    // identity to the entry they replaced
+    default Map<ArxivEntry, ArxivEntry> getReplacedEntries() {
+        return Collections.emptyMap();
+    }
+
+    long getCursor(String name, long defaultValue) throws Exception;
+
+    // Lazily reads matching entries; the stream must be closed
+    Stream<ArxivEntry> streamArxivEntries(ArxivEntryQuery query) throws Exception;
+
+    @Override
+    void close();
+
+}
@@ -0,0 +1,174 @@
+package edu.soton.ecs.arxivscraper;
+
+import com.google.gson.Gson;
+import edu.soton.ecs.arxivscraper.util.Metrics;
+import edu.soton.ecs.arxivscraper.util.MqWrapper;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.TextMessage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.util.UUID;
+
+// Takes fetch jobs from the jobs queue, fetches them through the scraper and sends the entries back in the
+// job's result. Workers keep no store, so all entries are deduplicated, stored and output once, by the coordinator.
+// A job is acknowledged only after its result is sent, so the broker redelivers it to another worker if this
+// one dies first. A failed job is redelivered until maxDeliveries.
+// With a tokens queue, every request first takes a token released by the coordinator, so all workers
+// together stay within one rate budget.
+public class ArxivWorker implements AutoCloseable {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    // Results carry entries, whose dates need ArxivEntry's type adapter to survive the trip whatever the locale
+    private static final Gson GSON = ArxivEntrySerializer.GSON;
+
+    private static final Metrics.Counter JOBS_PROCESSED = Metrics.counter("arxiv_worker_jobs_total",
+            "Fetch jobs completed and acknowledged by this worker");
+    private static final Metrics.Counter JOB_FAILURES = Metrics.counter("arxiv_worker_job_failures_total",
+            "Fetch job deliveries that failed on this worker");
+    private static final Metrics.Histogram JOB_SECONDS = Metrics.timer("arxiv_worker_job_seconds",
+            "Time to fetch one job, including waiting for rate tokens");
+    private static final Metrics.Histogram TOKEN_WAIT_SECONDS = Metrics.timer("arxiv_worker_token_wait_seconds",
+            "Time waiting for a rate token before a request");
+
+    private ConnectionFactory factory;
+    private ArxivScraper scraper;
+
+    private String jobsQueue = "arxiv.jobs.queue";
+    private String resultsQueue = "arxiv.jobs.results";
+    private String tokensQueue = null;
+    private int maxDeliveries = 5;
+    private String workerId;
+
+    private MqWrapper jobs;
+    private MqWrapper results;
+    private MqWrapper tokens;
+    private volatile boolean isStopped = false;
+
+    public ArxivWorker(ConnectionFactory factory, ArxivScraper scraper) {
+        this.factory = factory;
+        this.scraper = scraper;
+        try {
+            workerId = InetAddress.getLocalHost().getHostName() + "-" + UUID.randomUUID().toString().substring(0, 8);
+        } catch (IOException e) {
+            workerId = UUID.randomUUID().toString();
+        }
+    }
+
+    // tokensQueue may be null to use the scraper's own rate limiter
+    public void setQueues(String jobsQueue, String resultsQueue, String tokensQueue) {
+        this.jobsQueue = jobsQueue;
+        this.resultsQueue = resultsQueue;
+        this.tokensQueue = tokensQueue;
+    }
+
+    public void setMaxDeliveries(int maxDeliveries) {
+        this.maxDeliveries = maxDeliveries;
+    }
+
+    // Processes jobs until stop() is called
+    public void run() throws Exception {
+        jobs = new MqWrapper(factory, null, jobsQueue, false);
+        jobs.setClientAcknowledge(true);
+        results = new MqWrapper(factory, null, resultsQueue, false);
+        results.setPersistent(true);
+        if (tokensQueue != null) {
+            tokens = new MqWrapper(factory, null, tokensQueue, false);
+            scraper.setRateBudget(this::takeToken);
+        }
+        LOGGER.info("Worker {} waiting for jobs on {}", workerId, jobsQueue);
+        while (!isStopped) {
+            TextMessage message = jobs.receive(1000);
+            if (message != null)
+                process(message);
+        }
+    }
+
+    public void stop() {
+        isStopped = true;
+    }
+
+    private void process(TextMessage message) throws JMSException {
+        FetchJob job = GSON.fromJson(message.getText(), FetchJob.class);
+        int numDeliveries = message.propertyExists("JMSXDeliveryCount") ? message.getIntProperty("JMSXDeliveryCount") : 1;
+        FetchJobResult result = new FetchJobResult();
+        result.setJob(job);
+        result.setWorker(workerId);
+
+        long startNanos = System.nanoTime();
+        try {
+            execute(job, result);
+            JOB_SECONDS.observeSince(startNanos);
+        } catch (Exception e) {
+            JOB_FAILURES.increment();
+            if (isStopped || numDeliveries < maxDeliveries) {
+                LOGGER.warn("Job {} failed on delivery {}, releasing it for redelivery", job, numDeliveries, e);
+                jobs.recover();
+                return;
+            }
+            LOGGER.error("Job {} failed on delivery {}, giving up", job, numDeliveries, e);
+            result.setFailed(true);
+            result.getEntries().clear();
+        }
+        // A crash between the two only sends a duplicate result, which the coordinator ignores
+        results.sendTextMessage(GSON.toJson(result));
+        jobs.acknowledge(message);
+        JOBS_PROCESSED.increment();
+        LOGGER.info("Job {} of [{}] done with {} entries", job.getId(), job.getShard(), result.getNumEntries());
+    }
+
+    private void execute(FetchJob job, FetchJobResult result) throws Exception {
+        if (job.getType() == FetchJob.Type.BACKFILL) {
+            // Offsets are only stable when new submissions are appended to the end of the result set
+            ArxivFeed feed = scraper.scrape(job.getShard(), job.getStart(), job.getPageSize(),
+                    "submittedDate", "ascending", result.getEntries()::add);
+            result.setNumEntries(feed.getNumEntries());
+            result.setTotalResults(feed.getTotalResults());
+        } else {
+            long[] mark = {job.getMarkMillis()};
+            ArxivFeed feed = scraper.scrapeSince(job.getShard(), job.getMarkMillis(), job.getPageSize(),
+                    job.getMaxResults(), arxivEntry -> {
+                        if (arxivEntry.getUpdated() != null)
+                            mark[0] = Math.max(mark[0], arxivEntry.getUpdated().getTime());
+                        result.getEntries().add(arxivEntry);
+                    });
+            result.setNumEntries(feed.getNumEntries());
+            result.setTotalResults(feed.getTotalResults());
+            result.setMarkMillis(mark[0]);
+        }
+    }
+
+    private synchronized void takeToken() throws IOException {
+        long startNanos = System.nanoTime();
+        try {
+            while (!isStopped) {
+                if (tokens.receive(1000) != null) {
+                    TOKEN_WAIT_SECONDS.observeSince(startNanos);
+                    return;
+                }
+            }
+        } catch (JMSException e) {
+            throw new IOException("Unable to take a rate token", e);
+        }
+        throw new InterruptedIOException("Worker stopped while waiting for a rate token");
+    }
+
+    @Override
+    public void close() {
+        for (MqWrapper mqWrapper : new MqWrapper[]{jobs, results, tokens}) {
+            if (mqWrapper == null)
+                continue;
+            try {
+                mqWrapper.close();
+            } catch (Exception e) {
+                LOGGER.warn(e);
+            }
+        }
+    }
+
+}
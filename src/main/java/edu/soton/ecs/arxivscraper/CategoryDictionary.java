@@ -0,0 +1,84 @@
+package edu.soton.ecs.arxivscraper;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
+
+// Small integer codes for arxiv taxonomy categories such as cs.LG, hep-th or cond-mat.str-el.
+// Codes are assigned in order of first sight and never reused, so they can be persisted in entries.
+// Authors' MSC and ACM classes also arrive as categories, e.g. "62H12, 62F15" or "F.2.2; G.2.2";
+// these are open ended, so they get no code and are kept as plain strings.
+// Lookups are lock free; adding codes is synchronized.
+public class CategoryDictionary {
+
+    private static final Pattern TAXONOMY_CODE = Pattern.compile("[a-z]+(-[a-z]+)?(\\.[A-Za-z]+(-[a-z]+)?)?");
+
+    private final List<String> names = new CopyOnWriteArrayList<>();
+    private final Map<String, Integer> codes = new ConcurrentHashMap<>();
+
+    public static boolean isTaxonomyCode(String category) {
+        return category != null && category.length() <= 32 && TAXONOMY_CODE.matcher(category).matches();
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    // Returns the code of the category, or -1 if it has none
+    public int getCode(String category) {
+        Integer code = category != null ? codes.get(category) : null;
+        return code != null ? code : -1;
+    }
+
+    public String getName(int code) {
+        return names.get(code);
+    }
+
+    // Registers a code loaded from storage; codes must be put in order
+    public synchronized void put(int code, String category) {
+        if (code != names.size())
+            throw new IllegalArgumentException("Expected category code " + names.size() + " but got " + code);
+        names.add(category);
+        codes.put(category, code);
+    }
+
+    // Returns the taxonomy codes in the list that do not have a code yet
+    public List<String> findUnknown(List<String> categories) {
+        List<String> unknown = new ArrayList<>();
+        if (categories == null)
+            return unknown;
+        for (String category : categories) {
+            if (isTaxonomyCode(category) && !codes.containsKey(category) && !unknown.contains(category))
+                unknown.add(category);
+        }
+        return unknown;
+    }
+
+    // Returns the shared instance of a known category, so decoded entries do not each hold a copy
+    public String intern(String category) {
+        int code = getCode(category);
+        return code >= 0 ? names.get(code) : category;
+    }
+
+    // Bit per category code, as little-endian bytes; categories without a code are left out
+    public byte[] toBits(List<String> categories) {
+        BitSet bits = new BitSet();
+        if (categories != null) {
+            for (String category : categories) {
+                int code = getCode(category);
+                if (code >= 0)
+                    bits.set(code);
+            }
+        }
+        return bits.toByteArray();
+    }
+
+    public static boolean hasBit(byte[] bits, int code) {
+        return bits != null && code >= 0 && code / 8 < bits.length && (bits[code / 8] & (1 << (code % 8))) != 0;
+    }
+
+}
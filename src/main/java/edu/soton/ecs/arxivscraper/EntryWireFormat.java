@@ -0,0 +1,179 @@
+package edu.soton.ecs.arxivscraper;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+// Value encoding shared by ArxivEntryCodec rows and ArxivColumnarFile columns.
+// Strings and lists are prefixed with a varint of (length + 1) so that 0 encodes null, dates are zigzag
+// varints of epoch millis + 1, and a link is its title, href, rel and type.
+class EntryWireFormat {
+
+    private EntryWireFormat() {
+    }
+
+    // Growable buffer; reset() keeps the array. Not synchronized, unlike ByteArrayOutputStream.
+    static class Writer {
+        private byte[] buf;
+        private int pos = 0;
+
+        Writer(int size) {
+            buf = new byte[size];
+        }
+
+        void reset() {
+            pos = 0;
+        }
+
+        int size() {
+            return pos;
+        }
+
+        // Valid up to size()
+        byte[] array() {
+            return buf;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+
+        private void ensureCapacity(int extra) {
+            if (pos + extra > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(pos + extra, buf.length * 2));
+        }
+
+        void writeByte(int b) {
+            ensureCapacity(1);
+            buf[pos++] = (byte) b;
+        }
+
+        void writeBytes(byte[] bytes, int offset, int length) {
+            ensureCapacity(length);
+            System.arraycopy(bytes, offset, buf, pos, length);
+            pos += length;
+        }
+
+        void writeVarLong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte) value;
+        }
+
+        void writeString(String value) {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length + 1);
+            writeBytes(bytes, 0, bytes.length);
+        }
+
+        void writeStringList(List<String> values) {
+            if (values == null) {
+                writeVarLong(0);
+                return;
+            }
+            writeVarLong(values.size() + 1);
+            for (String value : values) {
+                writeString(value);
+            }
+        }
+
+        void writeDate(Date date) {
+            if (date == null) {
+                writeVarLong(0);
+                return;
+            }
+            long millis = date.getTime();
+            writeVarLong(((millis << 1) ^ (millis >> 63)) + 1);
+        }
+
+        void writeLinks(List<ArxivEntry.Link> links) {
+            if (links == null) {
+                writeVarLong(0);
+                return;
+            }
+            writeVarLong(links.size() + 1);
+            for (ArxivEntry.Link link : links) {
+                writeString(link.getTitle());
+                writeString(link.getHref());
+                writeString(link.getRel());
+                writeString(link.getType());
+            }
+        }
+    }
+
+    static class Reader {
+        final byte[] raw;
+        int pos;
+
+        Reader(byte[] raw, int pos) {
+            this.raw = raw;
+            this.pos = pos;
+        }
+
+        long readVarLong() {
+            long value = 0;
+            int shift = 0;
+            while (true) {
+                byte b = raw[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+                shift += 7;
+            }
+        }
+
+        String readString() {
+            int length = (int) readVarLong() - 1;
+            if (length < 0)
+                return null;
+            String value = new String(raw, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return value;
+        }
+
+        List<String> readStringList() {
+            int size = (int) readVarLong() - 1;
+            if (size < 0)
+                return null;
+            List<String> values = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                values.add(readString());
+            }
+            return values;
+        }
+
+        Date readDate() {
+            long value = readVarLong();
+            if (value == 0)
+                return null;
+            value -= 1;
+            return new Date((value >>> 1) ^ -(value & 1));
+        }
+
+        List<ArxivEntry.Link> readLinks() {
+            int size = (int) readVarLong() - 1;
+            if (size < 0)
+                return null;
+            List<ArxivEntry.Link> links = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                ArxivEntry.Link link = new ArxivEntry.Link();
+                link.setTitle(readString());
+                link.setHref(readString());
+                link.setRel(readString());
+                link.setType(readString());
+                links.add(link);
+            }
+            return links;
+        }
+    }
+
+}
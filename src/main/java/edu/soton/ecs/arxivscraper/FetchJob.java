@@ -0,0 +1,92 @@
+package edu.soton.ecs.arxivscraper;
+
+import com.google.common.base.MoreObjects;
+
+// A unit of fetching handed from the coordinator to a worker over the jobs queue, as JSON
+public class FetchJob {
+
+    public enum Type {
+        // One page of a shard in submission order, from start
+        BACKFILL,
+        // A shard newest first, down to markMillis or maxResults entries
+        POLL
+    }
+
+    private String id;
+    private Type type;
+    private String shard;
+    private int start;
+    private int pageSize;
+    private long markMillis;
+    private int maxResults;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public void setType(Type type) {
+        this.type = type;
+    }
+
+    public String getShard() {
+        return shard;
+    }
+
+    public void setShard(String shard) {
+        this.shard = shard;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public void setStart(int start) {
+        this.start = start;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public long getMarkMillis() {
+        return markMillis;
+    }
+
+    public void setMarkMillis(long markMillis) {
+        this.markMillis = markMillis;
+    }
+
+    public int getMaxResults() {
+        return maxResults;
+    }
+
+    public void setMaxResults(int maxResults) {
+        this.maxResults = maxResults;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("id", id)
+                .add("type", type)
+                .add("shard", shard)
+                .add("start", start)
+                .add("pageSize", pageSize)
+                .add("markMillis", markMillis)
+                .add("maxResults", maxResults)
+                .toString();
+    }
+
+}
@@ -0,0 +1,90 @@
+package edu.soton.ecs.arxivscraper;
+
+import com.google.common.base.MoreObjects;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Sent by a worker on the results queue with the job's entries, which only the coordinator stores and outputs
+public class FetchJobResult {
+
+    private FetchJob job;
+    private String worker;
+    private boolean isFailed;
+    private int numEntries;
+    private int totalResults = -1;
+    private long markMillis;
+    private List<ArxivEntry> entries = new ArrayList<>();
+
+    public FetchJob getJob() {
+        return job;
+    }
+
+    public void setJob(FetchJob job) {
+        this.job = job;
+    }
+
+    public String getWorker() {
+        return worker;
+    }
+
+    public void setWorker(String worker) {
+        this.worker = worker;
+    }
+
+    // The job was given up after its last delivery; nothing else in the result is valid
+    public boolean isFailed() {
+        return isFailed;
+    }
+
+    public void setFailed(boolean isFailed) {
+        this.isFailed = isFailed;
+    }
+
+    public int getNumEntries() {
+        return numEntries;
+    }
+
+    public void setNumEntries(int numEntries) {
+        this.numEntries = numEntries;
+    }
+
+    public int getTotalResults() {
+        return totalResults;
+    }
+
+    public void setTotalResults(int totalResults) {
+        this.totalResults = totalResults;
+    }
+
+    // For poll jobs, the newest updated time seen, or the job's mark if nothing newer was found
+    public long getMarkMillis() {
+        return markMillis;
+    }
+
+    public void setMarkMillis(long markMillis) {
+        this.markMillis = markMillis;
+    }
+
+    public List<ArxivEntry> getEntries() {
+        return entries;
+    }
+
+    public void setEntries(List<ArxivEntry> entries) {
+        this.entries = entries;
+    }
+
+    // Entries are left out, numEntries counts them
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("job", job)
+                .add("worker", worker)
+                .add("isFailed", isFailed)
+                .add("numEntries", numEntries)
+                .add("totalResults", totalResults)
+                .add("markMillis", markMillis)
+                .toString();
+    }
+
+}
@@ -0,0 +1,428 @@
+package edu.soton.ecs.arxivscraper;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.ExceptionHandler;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.TimeoutException;
+import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
+import edu.soton.ecs.arxivscraper.util.ByteArrayBuffer;
+import edu.soton.ecs.arxivscraper.util.Metrics;
+import edu.soton.ecs.arxivscraper.util.MqWrapper;
+import edu.soton.ecs.arxivscraper.util.RotatingFileWriter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Staged ingest over a Disruptor ring buffer: fetch threads publish entries as they are parsed, then
+// dedup -> persist -> serialize -> sinks each run on their own thread.
+// Every stage treats whatever is available in the ring as one batch, so DB transactions, fsyncs and
+// AMQP commits are amortised over many entries. A full ring blocks the fetch threads, bounding memory.
+public class IngestPipeline implements AutoCloseable {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private static final Metrics.Counter ENTRIES_PUBLISHED = Metrics.counter("arxiv_pipeline_entries_total",
+            "Entries published into the ingest pipeline");
+    private static final Metrics.Counter DUPLICATES = Metrics.counter("arxiv_dedup_duplicates_total",
+            "Entries dropped as copies of a cross-listed paper already seen in the same poll or page");
+    private static final Metrics.Counter ENTRIES_CHANGED = Metrics.counter("arxiv_entries_changed_total",
+            "Entries inserted or updated and sent to the outputs");
+    private static final Metrics.Histogram FILE_WRITE_SECONDS = Metrics.timer("arxiv_file_write_seconds",
+            "Time to write and fsync one batch to the output file");
+    private static final Metrics.Counter FILE_FAILURES = Metrics.counter("arxiv_file_failures_total",
+            "Batches that failed to be written to the output file");
+    private static final Metrics.Histogram AMQP_SEND_SECONDS = Metrics.timer("arxiv_amqp_send_seconds",
+            "Time to send and confirm one batch of AMQP messages");
+    private static final Metrics.Counter AMQP_FAILURES = Metrics.counter("arxiv_amqp_failures_total",
+            "Batches that failed to be sent over AMQP");
+
+    static {
+        Metrics.gauge("arxiv_dedup_hit_ratio",
+                "Fraction of published entries that were duplicates or already stored, since start", () -> {
+                    long published = ENTRIES_PUBLISHED.getCount();
+                    return published > 0 ? (published - ENTRIES_CHANGED.getCount()) / (double) published : 0;
+                });
+    }
+
+    private ArxivStore store;
+    private RotatingFileWriter fileWriter;
+    private MqWrapper mqWrapper;
+
+    private int ringSize = 1024;
+    private int batchSize = 500;
+    private int serializeThreads = 1;
+    private int entriesPerMessage = 1;
+    private boolean isDeltaMessages = false;
+
+    private Disruptor<IngestEvent> disruptor = null;
+    private volatile RingBuffer<IngestEvent> ringBuffer = null;
+    private AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    public IngestPipeline(ArxivStore store, RotatingFileWriter fileWriter, MqWrapper mqWrapper) {
+        this.store = store;
+        this.fileWriter = fileWriter;
+        this.mqWrapper = mqWrapper;
+    }
+
+    // Number of in-flight entries, a power of 2; publishers block once the ring is full
+    public void setRingSize(int ringSize) {
+        Preconditions.checkArgument(Integer.bitCount(ringSize) == 1, "Ring size must be a power of 2");
+        this.ringSize = ringSize;
+    }
+
+    // Upper bound on the entries persisted in one transaction
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setSerializeThreads(int serializeThreads) {
+        this.serializeThreads = Math.max(1, serializeThreads);
+    }
+
+    public void setEntriesPerMessage(int entriesPerMessage) {
+        this.entriesPerMessage = entriesPerMessage;
+    }
+
+    // Outputs only the changed fields of entries revised at the same version, instead of the whole entry
+    public void setDeltaMessages(boolean isDeltaMessages) {
+        this.isDeltaMessages = isDeltaMessages;
+    }
+
+    // Disruptor takes its handlers as generic varargs
+    @SuppressWarnings("unchecked")
+    public synchronized void start() {
+        if (disruptor != null) {
+            return;
+        }
+        disruptor = new Disruptor<>(IngestEvent::new, ringSize,
+                new ThreadFactoryBuilder().setNameFormat("ingest-%d").setDaemon(true).build(),
+                ProducerType.MULTI, new BlockingWaitStrategy());
+        disruptor.setDefaultExceptionHandler(new IngestExceptionHandler());
+
+        SerializeHandler[] serializeHandlers = new SerializeHandler[serializeThreads];
+        for (int i = 0; i < serializeThreads; i++) {
+            serializeHandlers[i] = new SerializeHandler(i, serializeThreads);
+        }
+        disruptor.handleEventsWith(new DedupHandler())
+                .then(new PersistHandler())
+                .then(serializeHandlers)
+                .then(new SinkHandler());
+        ringBuffer = disruptor.start();
+        Metrics.gauge("arxiv_pipeline_queue_depth", "Entries in the ingest pipeline not yet written to the outputs",
+                () -> {
+                    RingBuffer<IngestEvent> current = ringBuffer;
+                    return current != null ? current.getBufferSize() - current.remainingCapacity() : 0;
+                });
+    }
+
+    // Safe to call from several fetch threads at once; blocks while the ring is full
+    public void publish(ArxivEntry arxivEntry) {
+        if (ringBuffer == null)
+            start();
+        long sequence = ringBuffer.next();
+        try {
+            ringBuffer.get(sequence).arxivEntry = arxivEntry;
+        } finally {
+            ringBuffer.publish(sequence);
+        }
+        ENTRIES_PUBLISHED.increment();
+    }
+
+    // Waits until every entry published so far has been persisted and written to the sinks.
+    // The cursors are moved in the same transaction as the last entries, unless a stage failed.
+    public void flush(Map<String, Long> cursors) throws Exception {
+        if (ringBuffer == null)
+            start();
+        Barrier barrier = new Barrier(cursors);
+        long sequence = ringBuffer.next();
+        try {
+            ringBuffer.get(sequence).barrier = barrier;
+        } finally {
+            ringBuffer.publish(sequence);
+        }
+        barrier.latch.await();
+
+        Throwable throwable = failure.getAndSet(null);
+        if (throwable != null) {
+            throw throwable instanceof Exception ? (Exception) throwable : new RuntimeException(throwable);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (disruptor != null) {
+            // Drains whatever has already been published before stopping the stages
+            try {
+                disruptor.shutdown(1, TimeUnit.MINUTES);
+            } catch (TimeoutException e) {
+                LOGGER.warn("Ingest pipeline did not drain before shutdown");
+                disruptor.halt();
+            }
+            disruptor = null;
+            ringBuffer = null;
+        }
+        if (fileWriter != null) {
+            try {
+                fileWriter.close();
+            } catch (IOException e) {
+                LOGGER.warn(e);
+            }
+        }
+        if (mqWrapper != null) {
+            try {
+                mqWrapper.close();
+            } catch (Exception e) {
+                LOGGER.warn(e);
+            }
+        }
+    }
+
+    private static class IngestEvent {
+        private ArxivEntry arxivEntry;
+        private boolean isDuplicate;
+        private boolean isChanged;
+        // The stored entry this one revised at the same version, when delta messages are on
+        private ArxivEntry previousEntry;
+        // Owned by the ring slot and reused on every lap, so serializing allocates nothing once warmed up
+        private final ByteArrayBuffer json = new ByteArrayBuffer(4096);
+        private Barrier barrier;
+
+        // Slots stay in the ring, so references are dropped once the last stage is done with them
+        private void clear() {
+            arxivEntry = null;
+            isDuplicate = false;
+            isChanged = false;
+            previousEntry = null;
+            json.reset();
+            barrier = null;
+        }
+    }
+
+    private static class Barrier {
+        private final Map<String, Long> cursors;
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        private Barrier(Map<String, Long> cursors) {
+            this.cursors = cursors;
+        }
+    }
+
+    // Cross-listed papers arrive once per shard; only the first copy of each version goes on to the DB, unless
+    // a later copy of that version is a newer snapshot, which the DB then prefers
+    private static class DedupHandler implements EventHandler<IngestEvent> {
+        private final Map<String, Integer> versions = new HashMap<>();
+        private final Map<String, Date> updates = new HashMap<>();
+
+        @Override
+        public void onEvent(IngestEvent event, long sequence, boolean endOfBatch) {
+            if (event.barrier != null) {
+                versions.clear();
+                updates.clear();
+                return;
+            }
+            ArxivId arxivId = ArxivId.parse(event.arxivEntry.getId());
+            Integer version = versions.get(arxivId.getBaseId());
+            Date updated = event.arxivEntry.getUpdated();
+            if (version != null && (version > arxivId.getVersion() || (version == arxivId.getVersion()
+                    && !ArxivEntryFingerprint.isNewerSnapshot(updated, updates.get(arxivId.getBaseId()))))) {
+                event.isDuplicate = true;
+                DUPLICATES.increment();
+            } else {
+                versions.put(arxivId.getBaseId(), arxivId.getVersion());
+                updates.put(arxivId.getBaseId(), updated);
+            }
+        }
+    }
+
+    // The only stage touching the DB connection
+    private class PersistHandler implements EventHandler<IngestEvent> {
+        private final List<IngestEvent> pending = new ArrayList<>();
+        private int numChanged = 0;
+
+        @Override
+        public void onEvent(IngestEvent event, long sequence, boolean endOfBatch) throws Exception {
+            if (event.barrier != null) {
+                // Cursors must not move past entries lost to an earlier failure
+                persist(failure.get() == null ? event.barrier.cursors : Collections.emptyMap());
+                LOGGER.info("Inserted or updated {} entries", numChanged);
+                numChanged = 0;
+                return;
+            }
+            if (!event.isDuplicate)
+                pending.add(event);
+            if (pending.size() >= batchSize || (endOfBatch && !pending.isEmpty()))
+                persist(Collections.emptyMap());
+        }
+
+        private void persist(Map<String, Long> cursors) throws Exception {
+            try {
+                List<ArxivEntry> arxivEntries = new ArrayList<>(pending.size());
+                for (IngestEvent event : pending) {
+                    arxivEntries.add(event.arxivEntry);
+                }
+                Set<ArxivEntry> changed = Collections.newSetFromMap(new IdentityHashMap<>());
+                changed.addAll(store.upsertEntries(arxivEntries, cursors));
+                Map<ArxivEntry, ArxivEntry> replaced = isDeltaMessages
+                        ? store.getReplacedEntries() : Collections.emptyMap();
+                for (IngestEvent event : pending) {
+                    event.isChanged = changed.contains(event.arxivEntry);
+                    event.previousEntry = replaced.get(event.arxivEntry);
+                    if (event.isChanged)
+                        LOGGER.debug("Upserted {}", event.arxivEntry.getId());
+                }
+                numChanged += changed.size();
+                ENTRIES_CHANGED.add(changed.size());
+            } finally {
+                pending.clear();
+            }
+        }
+    }
+
+    // Handlers split the ring between them by sequence so serialization scales across threads.
+    // Each entry is serialized once and the same bytes go to every sink.
+    private static class SerializeHandler implements EventHandler<IngestEvent> {
+        private final ArxivEntrySerializer serializer = new ArxivEntrySerializer();
+        private final int ordinal;
+        private final int numHandlers;
+
+        private SerializeHandler(int ordinal, int numHandlers) {
+            this.ordinal = ordinal;
+            this.numHandlers = numHandlers;
+        }
+
+        @Override
+        public void onEvent(IngestEvent event, long sequence, boolean endOfBatch) throws IOException {
+            if (!event.isChanged || sequence % numHandlers != ordinal)
+                return;
+            if (event.previousEntry != null) {
+                serializer.serializeDelta(event.previousEntry, event.arxivEntry, event.json);
+            } else {
+                serializer.serialize(event.arxivEntry, event.json);
+            }
+        }
+    }
+
+    private class SinkHandler implements EventHandler<IngestEvent> {
+        private final List<String> pendingMessages = new ArrayList<>();
+        private int numPending = 0;
+        private long fileNanos = 0;
+
+        @Override
+        public void onEvent(IngestEvent event, long sequence, boolean endOfBatch) throws Exception {
+            Barrier barrier = event.barrier;
+            try {
+                if (event.json.size() > 0) {
+                    numPending++;
+                    // TextMessage bodies are strings, so only decode when AMQP is enabled
+                    if (mqWrapper != null)
+                        pendingMessages.add(event.json.toUtf8String());
+                    if (fileWriter != null) {
+                        long startNanos = System.nanoTime();
+                        // One call per record and newline, as the writer only rotates between calls
+                        event.json.write(LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+                        fileWriter.write(event.json.array(), 0, event.json.size());
+                        fileNanos += System.nanoTime() - startNanos;
+                    }
+                }
+                if (endOfBatch || barrier != null)
+                    flushSinks();
+            } finally {
+                event.clear();
+                if (barrier != null)
+                    barrier.latch.countDown();
+            }
+        }
+
+        private void flushSinks() throws IOException {
+            if (numPending == 0) {
+                return;
+            }
+            try {
+                if (fileWriter != null)
+                    flushFile();
+                if (mqWrapper != null)
+                    sendMessages();
+            } finally {
+                pendingMessages.clear();
+                numPending = 0;
+                fileNanos = 0;
+            }
+        }
+
+        private void flushFile() throws IOException {
+            long startNanos = System.nanoTime();
+            try {
+                fileWriter.flush();
+            } catch (IOException e) {
+                FILE_FAILURES.increment();
+                throw e;
+            }
+            FILE_WRITE_SECONDS.observe(fileNanos + System.nanoTime() - startNanos);
+        }
+
+        private void sendMessages() {
+            long startNanos = System.nanoTime();
+            try {
+                if (entriesPerMessage > 1) {
+                    // Batched messages carry a JSON array of entries
+                    List<String> messages = new ArrayList<>();
+                    for (List<String> batch : Lists.partition(pendingMessages, entriesPerMessage)) {
+                        messages.add("[" + String.join(",", batch) + "]");
+                    }
+                    mqWrapper.sendTextMessages(messages);
+                } else {
+                    mqWrapper.sendTextMessages(pendingMessages);
+                }
+                AMQP_SEND_SECONDS.observeSince(startNanos);
+            } catch (Exception e) {
+                AMQP_FAILURES.increment();
+                LOGGER.error(e);
+                // Drop the connection so that the next send reconnects
+                try {
+                    mqWrapper.close();
+                } catch (Exception closeException) {
+                    LOGGER.warn(closeException);
+                }
+            }
+        }
+    }
+
+    private class IngestExceptionHandler implements ExceptionHandler<IngestEvent> {
+        @Override
+        public void handleEventException(Throwable ex, long sequence, IngestEvent event) {
+            LOGGER.error("Ingest stage failed at sequence {}", sequence, ex);
+            failure.compareAndSet(null, ex);
+        }
+
+        @Override
+        public void handleOnStartException(Throwable ex) {
+            LOGGER.error("Ingest stage failed to start", ex);
+        }
+
+        @Override
+        public void handleOnShutdownException(Throwable ex) {
+            LOGGER.warn("Ingest stage failed to shut down", ex);
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+package edu.soton.ecs.arxivscraper;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.function.LongPredicate;
+
+// Open addressing hash table held in a direct buffer, mapping a 64-bit key hash to a record location and version.
+// Keys themselves are not stored; callers confirm a candidate by comparing the key stored at its location,
+// so hash collisions only cost an extra probe. Slots are 24 bytes: hash, location, version and padding.
+// Not thread safe; ArxivLogStore guards it with its own lock.
+class LogIndex {
+
+    private static final int SLOT_SIZE = 24;
+    private static final double MAX_LOAD = 0.75;
+
+    private ByteBuffer slots;
+    private int capacity;
+    private int size = 0;
+
+    LogIndex(int expectedEntries) {
+        capacity = Integer.highestOneBit(Math.max(16, (int) (expectedEntries / MAX_LOAD)) - 1) << 1;
+        slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+    }
+
+    static long location(int segmentId, int offset) {
+        return ((long) segmentId << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    static int segmentId(long location) {
+        return (int) (location >>> 32);
+    }
+
+    static int offset(long location) {
+        return (int) location;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    long offHeapBytes() {
+        return (long) capacity * SLOT_SIZE;
+    }
+
+    // Returns the slot holding the key, or -1; isKeyAt confirms that the record at a location has the key
+    int find(long hash, LongPredicate isKeyAt) {
+        hash = nonZero(hash);
+        int mask = capacity - 1;
+        for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+            long slotHash = slots.getLong(slot * SLOT_SIZE);
+            if (slotHash == 0)
+                return -1;
+            if (slotHash == hash && isKeyAt.test(getLocation(slot)))
+                return slot;
+        }
+    }
+
+    long getLocation(int slot) {
+        return slots.getLong(slot * SLOT_SIZE + 8);
+    }
+
+    int getVersion(int slot) {
+        return slots.getInt(slot * SLOT_SIZE + 16);
+    }
+
+    void set(int slot, long location, int version) {
+        slots.putLong(slot * SLOT_SIZE + 8, location);
+        slots.putInt(slot * SLOT_SIZE + 16, version);
+    }
+
+    // Adds a key known to be absent, e.g. after find returned -1
+    void add(long hash, long location, int version) {
+        if (size + 1 > capacity * MAX_LOAD)
+            resize(capacity << 1);
+        insert(nonZero(hash), location, version);
+        size++;
+    }
+
+    // Copies the raw slots, for a checkpoint that can be loaded without rehashing
+    void writeTo(FileChannel channel) throws IOException {
+        ByteBuffer source = slots.duplicate();
+        source.clear();
+        while (source.hasRemaining()) {
+            channel.write(source);
+        }
+    }
+
+    void readFrom(FileChannel channel, int capacity, int size) throws IOException {
+        Preconditions.checkArgument(Integer.bitCount(capacity) == 1, "Capacity must be a power of 2");
+        if (capacity != this.capacity) {
+            slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+            this.capacity = capacity;
+        }
+        slots.clear();
+        while (slots.hasRemaining()) {
+            if (channel.read(slots) < 0)
+                throw new IOException("Truncated index checkpoint");
+        }
+        slots.clear();
+        this.size = size;
+    }
+
+    void clear() {
+        for (int i = 0; i < capacity * SLOT_SIZE; i += 8) {
+            slots.putLong(i, 0);
+        }
+        size = 0;
+    }
+
+    private void insert(long hash, long location, int version) {
+        int mask = capacity - 1;
+        int slot = mix(hash) & mask;
+        while (slots.getLong(slot * SLOT_SIZE) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots.putLong(slot * SLOT_SIZE, hash);
+        set(slot, location, version);
+    }
+
+    private void resize(int newCapacity) {
+        Preconditions.checkState((long) newCapacity * SLOT_SIZE <= Integer.MAX_VALUE, "Log index is full");
+        ByteBuffer oldSlots = slots;
+        int oldCapacity = capacity;
+        slots = ByteBuffer.allocateDirect(newCapacity * SLOT_SIZE);
+        capacity = newCapacity;
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            long hash = oldSlots.getLong(slot * SLOT_SIZE);
+            if (hash != 0)
+                insert(hash, oldSlots.getLong(slot * SLOT_SIZE + 8), oldSlots.getInt(slot * SLOT_SIZE + 16));
+        }
+    }
+
+    // 0 marks an empty slot
+    private static long nonZero(long hash) {
+        return hash != 0 ? hash : 1;
+    }
+
+    private static int mix(long hash) {
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+}
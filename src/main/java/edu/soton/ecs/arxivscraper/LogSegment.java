@@ -0,0 +1,250 @@
+package edu.soton.ecs.arxivscraper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.function.IntConsumer;
+import java.util.zip.CRC32;
+
+// One fixed size file of the log, memory mapped for both appends and reads.
+// Record layout: int body length, int CRC32 of the body, then the body: byte type, int version,
+// long timestamp, short key length, UTF-8 key and the value. The file is preallocated with zeroes,
+// so a zero length marks the end of the written records.
+// Appends are single threaded; reads of records below getSize() are safe from any thread.
+class LogSegment {
+
+    static final byte TYPE_ENTRY = 1;
+    static final byte TYPE_CURSOR = 2;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int BODY_FIXED_SIZE = 15;
+    private static final int ZERO_PAGE_SIZE = 4096;
+
+    private final int id;
+    private final File file;
+    private final int capacity;
+    private final MappedByteBuffer buffer;
+    private final CRC32 crc = new CRC32();
+
+    private volatile int size = 0;
+    private long liveBytes = 0;
+
+    private LogSegment(int id, File file, int capacity, MappedByteBuffer buffer) {
+        this.id = id;
+        this.file = file;
+        this.capacity = capacity;
+        this.buffer = buffer;
+    }
+
+    static File file(File dir, int id) {
+        return new File(dir, String.format("%010d.log", id));
+    }
+
+    // Returns the id of a segment file name, or -1 if it is not one
+    static int parseId(String fileName) {
+        if (!fileName.matches("\\d{10}\\.log"))
+            return -1;
+        return Integer.parseInt(fileName.substring(0, 10));
+    }
+
+    static int recordSize(int keyLength, int valueLength) {
+        return HEADER_SIZE + BODY_FIXED_SIZE + keyLength + valueLength;
+    }
+
+    static LogSegment create(File dir, int id, int capacity) throws IOException {
+        File file = file(dir, id);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");) {
+            raf.setLength(capacity);
+            return new LogSegment(id, file, capacity, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+        }
+    }
+
+    // The mapping outlives the file handle, so nothing is held open besides the mapped memory
+    static LogSegment open(File file, int id) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");) {
+            long length = raf.length();
+            if (length > Integer.MAX_VALUE)
+                throw new IOException("Segment " + file + " is larger than 2GB");
+            return new LogSegment(id, file, (int) length, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length));
+        }
+    }
+
+    int getId() {
+        return id;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    // End of the valid records
+    int getSize() {
+        return size;
+    }
+
+    void setSize(int size) {
+        this.size = size;
+    }
+
+    long getLiveBytes() {
+        return liveBytes;
+    }
+
+    void setLiveBytes(long liveBytes) {
+        this.liveBytes = liveBytes;
+    }
+
+    void addLiveBytes(long delta) {
+        liveBytes += delta;
+    }
+
+    boolean hasRoom(int recordSize) {
+        return size + recordSize <= capacity;
+    }
+
+    // Returns the offset of the new record; the caller checks hasRoom first
+    int append(byte type, int version, long timestamp, byte[] key, byte[] value) {
+        int offset = size;
+        int bodyOffset = offset + HEADER_SIZE;
+        buffer.put(bodyOffset, type);
+        buffer.putInt(bodyOffset + 1, version);
+        buffer.putLong(bodyOffset + 5, timestamp);
+        buffer.putShort(bodyOffset + 13, (short) key.length);
+        ByteBuffer target = buffer.duplicate();
+        target.position(bodyOffset + BODY_FIXED_SIZE);
+        target.put(key);
+        target.put(value);
+        int bodyLength = BODY_FIXED_SIZE + key.length + value.length;
+        buffer.putInt(offset + 4, checksum(bodyOffset, bodyLength));
+        buffer.putInt(offset, bodyLength);
+        size = offset + HEADER_SIZE + bodyLength;
+        return offset;
+    }
+
+    // Copies a record verbatim from another segment, e.g. during compaction
+    int appendCopy(LogSegment source, int sourceOffset) {
+        int offset = size;
+        int length = source.recordSize(sourceOffset);
+        ByteBuffer record = source.buffer.duplicate();
+        record.position(sourceOffset).limit(sourceOffset + length);
+        ByteBuffer target = buffer.duplicate();
+        target.position(offset);
+        target.put(record);
+        size = offset + length;
+        return offset;
+    }
+
+    int recordSize(int offset) {
+        return HEADER_SIZE + buffer.getInt(offset);
+    }
+
+    byte getType(int offset) {
+        return buffer.get(offset + HEADER_SIZE);
+    }
+
+    int getVersion(int offset) {
+        return buffer.getInt(offset + HEADER_SIZE + 1);
+    }
+
+    long getTimestamp(int offset) {
+        return buffer.getLong(offset + HEADER_SIZE + 5);
+    }
+
+    byte[] getKey(int offset) {
+        byte[] key = new byte[buffer.getShort(offset + HEADER_SIZE + 13)];
+        ByteBuffer source = buffer.duplicate();
+        source.position(offset + HEADER_SIZE + BODY_FIXED_SIZE);
+        source.get(key);
+        return key;
+    }
+
+    String getKeyString(int offset) {
+        return new String(getKey(offset), StandardCharsets.UTF_8);
+    }
+
+    boolean keyEquals(int offset, byte[] key) {
+        if (buffer.getShort(offset + HEADER_SIZE + 13) != key.length)
+            return false;
+        int keyOffset = offset + HEADER_SIZE + BODY_FIXED_SIZE;
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(keyOffset + i) != key[i])
+                return false;
+        }
+        return true;
+    }
+
+    byte[] getValue(int offset) {
+        int bodyLength = buffer.getInt(offset);
+        int keyLength = buffer.getShort(offset + HEADER_SIZE + 13);
+        byte[] value = new byte[bodyLength - BODY_FIXED_SIZE - keyLength];
+        ByteBuffer source = buffer.duplicate();
+        source.position(offset + HEADER_SIZE + BODY_FIXED_SIZE + keyLength);
+        source.get(value);
+        return value;
+    }
+
+    // Validates records from the given offset, passing the offset of each to the visitor, and ends the
+    // segment at the first missing or torn record. Anything written past that point is zeroed so that a
+    // record which reached the disk out of order cannot reappear behind later appends.
+    int recover(int from, IntConsumer visitor) {
+        int offset = from;
+        while (offset + HEADER_SIZE + BODY_FIXED_SIZE <= capacity) {
+            int bodyLength = buffer.getInt(offset);
+            if (bodyLength < BODY_FIXED_SIZE || bodyLength > capacity - offset - HEADER_SIZE)
+                break;
+            int keyLength = buffer.getShort(offset + HEADER_SIZE + 13);
+            if (keyLength < 0 || BODY_FIXED_SIZE + keyLength > bodyLength)
+                break;
+            if (buffer.getInt(offset + 4) != checksum(offset + HEADER_SIZE, bodyLength))
+                break;
+            visitor.accept(offset);
+            offset += HEADER_SIZE + bodyLength;
+        }
+        size = offset;
+        zeroFrom(offset);
+        return offset;
+    }
+
+    private void zeroFrom(int from) {
+        boolean isDirty = false;
+        // Only touch pages that hold data, so the unwritten part of the file stays sparse
+        for (int page = from; page < capacity; page = (page / ZERO_PAGE_SIZE + 1) * ZERO_PAGE_SIZE) {
+            int end = Math.min(capacity, (page / ZERO_PAGE_SIZE + 1) * ZERO_PAGE_SIZE);
+            for (int i = page; i < end; i++) {
+                if (buffer.get(i) != 0) {
+                    buffer.put(i, (byte) 0);
+                    isDirty = true;
+                }
+            }
+        }
+        if (isDirty)
+            buffer.force();
+    }
+
+    private int checksum(int offset, int length) {
+        ByteBuffer body = buffer.duplicate();
+        body.position(offset).limit(offset + length);
+        crc.reset();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    // The mapping is released when the buffer is collected; on Linux the file can be unlinked before then
+    boolean delete() {
+        return file.delete();
+    }
+
+    @Override
+    public String toString() {
+        return file.getName();
+    }
+
+}
@@ -0,0 +1,23 @@
+package edu.soton.ecs.arxivscraper.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+// ByteArrayOutputStream that exposes its backing array, so contents can be written out without a copy.
+// reset() keeps the array, so a long lived buffer stops allocating once it has grown to size.
+public class ByteArrayBuffer extends ByteArrayOutputStream {
+
+    public ByteArrayBuffer(int size) {
+        super(size);
+    }
+
+    // Valid up to size()
+    public byte[] array() {
+        return buf;
+    }
+
+    public String toUtf8String() {
+        return new String(buf, 0, count, StandardCharsets.UTF_8);
+    }
+
+}
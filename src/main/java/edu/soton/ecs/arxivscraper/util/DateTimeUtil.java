@@ -18,6 +18,8 @@ public class DateTimeUtil {
 
     private static final DateTimeFormatter ISO_8601_DATEFORMAT = ISODateTimeFormat.dateTime().withZoneUTC();
 
+    private static final DateTimeFormatter ISO_8601_PARSER = ISODateTimeFormat.dateTimeParser().withZoneUTC();
+
     private static final DateTimeParser[] DATEFORMAT_STANDARD_PARSERS = {
             ISODateTimeFormat.dateTimeParser().getParser(),
             DateTimeFormat.forPattern("yyyy-MM-dd").getParser(),
@@ -60,6 +62,10 @@ public class DateTimeUtil {
         return parse(dateString, ISO_8601_DATEFORMAT);
     }
 
+    public static Optional<Date> tryParseISO8601(@NotNull String dateString) {
+        return parse(dateString, ISO_8601_PARSER);
+    }
+
     private static Optional<Date> parse(@NotNull String dateString,
                                         @NotNull DateTimeFormatter formatter) {
         Preconditions.checkNotNull(dateString);
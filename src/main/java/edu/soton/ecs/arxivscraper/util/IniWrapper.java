@@ -113,4 +113,26 @@ public class IniWrapper {
             return defaultValue;
         }
     }
+
+    public static double getDouble(String section, String option) throws Exception {
+        String result = getString(section, option);
+        try {
+            return Double.parseDouble(result);
+        } catch (NumberFormatException e) {
+            throw new Exception("Configuration[" + section + ","
+                    + "] is not a Double");
+        }
+    }
+
+    public static double optDouble(String section, String option) {
+        return optDouble(section, option, 0.0);
+    }
+
+    public static double optDouble(String section, String option, double defaultValue) {
+        try {
+            return getDouble(section, option);
+        } catch (Exception e) {
+            return defaultValue;
+        }
+    }
 }
@@ -0,0 +1,359 @@
+package edu.soton.ecs.arxivscraper.util;
+
+import com.google.common.base.Preconditions;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import javax.validation.constraints.NotNull;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+// Process wide registry of counters, histograms and gauges.
+// Recording is lock free (LongAdder and AtomicLongArray) so it can sit on every hot path; reads are
+// only as consistent as a scrape needs. Exposed over JMX and in the Prometheus text format.
+public class Metrics {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final String JMX_DOMAIN = "edu.soton.ecs.arxivscraper";
+
+    // Nanoseconds, from 1ms to 1 minute
+    public static final long[] LATENCY_BUCKETS = {
+            ms(1), ms(2), ms(5), ms(10), ms(25), ms(50), ms(100), ms(250), ms(500),
+            ms(1000), ms(2500), ms(5000), ms(10000), ms(30000), ms(60000)
+    };
+
+    // Bytes, from 1KB to 16MB
+    public static final long[] SIZE_BUCKETS = {
+            1L << 10, 4L << 10, 16L << 10, 64L << 10, 256L << 10, 1L << 20, 4L << 20, 16L << 20
+    };
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private static final Map<String, Metric> METRICS = new ConcurrentSkipListMap<>();
+    private static final long START_NANOS = System.nanoTime();
+    private static volatile MBeanServer mBeanServer = null;
+
+    private static long ms(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    public static Counter counter(@NotNull String name, @NotNull String help) {
+        return register(new Counter(name, help));
+    }
+
+    // Latency histogram; record nanoseconds, exposed in seconds
+    public static Histogram timer(@NotNull String name, @NotNull String help) {
+        return register(new Histogram(name, help, LATENCY_BUCKETS, 1 / NANOS_PER_SECOND));
+    }
+
+    public static Histogram histogram(@NotNull String name, @NotNull String help, @NotNull long[] buckets) {
+        return register(new Histogram(name, help, buckets, 1));
+    }
+
+    // Re-registering a gauge replaces the previous supplier, e.g. when a wrapper is recreated
+    public static Gauge gauge(@NotNull String name, @NotNull String help, @NotNull DoubleSupplier supplier) {
+        return register(new Gauge(name, help, supplier));
+    }
+
+    private static synchronized <T extends Metric> T register(T metric) {
+        Preconditions.checkNotNull(metric.name);
+
+        Metric previous = METRICS.put(metric.name, metric);
+        if (previous != null)
+            unregisterMBean(previous);
+        if (mBeanServer != null)
+            registerMBean(metric);
+        return metric;
+    }
+
+    // Registers every metric, current and future, with the platform MBean server
+    public static synchronized void enableJmx() {
+        if (mBeanServer != null) {
+            return;
+        }
+        mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        for (Metric metric : METRICS.values()) {
+            registerMBean(metric);
+        }
+    }
+
+    private static void registerMBean(Metric metric) {
+        try {
+            ObjectName objectName = metric.objectName();
+            if (mBeanServer.isRegistered(objectName))
+                mBeanServer.unregisterMBean(objectName);
+            mBeanServer.registerMBean(metric.mBean(), objectName);
+        } catch (JMException e) {
+            LOGGER.warn("Unable to register {} with JMX", metric.name, e);
+        }
+    }
+
+    private static void unregisterMBean(Metric metric) {
+        if (mBeanServer == null) {
+            return;
+        }
+        try {
+            ObjectName objectName = metric.objectName();
+            if (mBeanServer.isRegistered(objectName))
+                mBeanServer.unregisterMBean(objectName);
+        } catch (JMException e) {
+            LOGGER.warn(e);
+        }
+    }
+
+    // Prometheus text exposition format 0.0.4
+    public static void writePrometheus(@NotNull Writer writer) throws IOException {
+        Preconditions.checkNotNull(writer);
+
+        for (Metric metric : METRICS.values()) {
+            writer.write("# HELP " + metric.name + " " + metric.help + "\n");
+            writer.write("# TYPE " + metric.name + " " + metric.type() + "\n");
+            metric.writePrometheus(writer);
+        }
+    }
+
+    private static String formatDouble(double value) {
+        if (value == Double.POSITIVE_INFINITY)
+            return "+Inf";
+        if (Double.isNaN(value))
+            return "NaN";
+        if (value == (long) value)
+            return Long.toString((long) value);
+        return Double.toString(value);
+    }
+
+    public abstract static class Metric {
+        protected final String name;
+        protected final String help;
+
+        protected Metric(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        protected abstract String type();
+
+        protected abstract Object mBean() throws JMException;
+
+        protected abstract void writePrometheus(Writer writer) throws IOException;
+
+        private ObjectName objectName() throws JMException {
+            return new ObjectName(JMX_DOMAIN + ":type=Metrics,name=" + name);
+        }
+    }
+
+    public interface CounterMBean {
+        long getCount();
+
+        double getMeanRatePerSecond();
+    }
+
+    public static class Counter extends Metric implements CounterMBean {
+        private final LongAdder count = new LongAdder();
+
+        private Counter(String name, String help) {
+            super(name, help);
+        }
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long value) {
+            count.add(value);
+        }
+
+        @Override
+        public long getCount() {
+            return count.sum();
+        }
+
+        // Since process start; Prometheus should use rate() over the counter instead
+        @Override
+        public double getMeanRatePerSecond() {
+            double seconds = (System.nanoTime() - START_NANOS) / NANOS_PER_SECOND;
+            return seconds > 0 ? getCount() / seconds : 0;
+        }
+
+        @Override
+        protected String type() {
+            return "counter";
+        }
+
+        @Override
+        protected Object mBean() throws JMException {
+            return new StandardMBean(this, CounterMBean.class);
+        }
+
+        @Override
+        protected void writePrometheus(Writer writer) throws IOException {
+            writer.write(name + " " + getCount() + "\n");
+        }
+    }
+
+    public interface HistogramMBean {
+        long getCount();
+
+        double getSum();
+
+        double getMean();
+
+        double getPercentile50();
+
+        double getPercentile95();
+
+        double getPercentile99();
+    }
+
+    // Fixed buckets, each an upper bound inclusive of its value, plus an overflow bucket
+    public static class Histogram extends Metric implements HistogramMBean {
+        private final long[] bounds;
+        private final double scale;
+        private final AtomicLongArray buckets;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        private Histogram(String name, String help, long[] bounds, double scale) {
+            super(name, help);
+            this.bounds = bounds;
+            this.scale = scale;
+            this.buckets = new AtomicLongArray(bounds.length + 1);
+        }
+
+        public void observe(long value) {
+            int bucket = Arrays.binarySearch(bounds, value);
+            buckets.incrementAndGet(bucket >= 0 ? bucket : -bucket - 1);
+            count.increment();
+            sum.add(value);
+        }
+
+        public void observeSince(long startNanos) {
+            observe(System.nanoTime() - startNanos);
+        }
+
+        @Override
+        public long getCount() {
+            return count.sum();
+        }
+
+        @Override
+        public double getSum() {
+            return sum.sum() * scale;
+        }
+
+        @Override
+        public double getMean() {
+            long n = getCount();
+            return n > 0 ? getSum() / n : 0;
+        }
+
+        @Override
+        public double getPercentile50() {
+            return percentile(0.5);
+        }
+
+        @Override
+        public double getPercentile95() {
+            return percentile(0.95);
+        }
+
+        @Override
+        public double getPercentile99() {
+            return percentile(0.99);
+        }
+
+        // Upper bound of the bucket holding the percentile, so it overestimates by up to one bucket
+        private double percentile(double percentile) {
+            long total = 0;
+            long[] counts = new long[buckets.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0)
+                return 0;
+            long rank = (long) Math.ceil(percentile * total);
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += counts[i];
+                if (cumulative >= rank)
+                    return bounds[i] * scale;
+            }
+            return Double.POSITIVE_INFINITY;
+        }
+
+        @Override
+        protected String type() {
+            return "histogram";
+        }
+
+        @Override
+        protected Object mBean() throws JMException {
+            return new StandardMBean(this, HistogramMBean.class);
+        }
+
+        @Override
+        protected void writePrometheus(Writer writer) throws IOException {
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += buckets.get(i);
+                writer.write(name + "_bucket{le=\"" + formatDouble(bounds[i] * scale) + "\"} " + cumulative + "\n");
+            }
+            cumulative += buckets.get(bounds.length);
+            writer.write(name + "_bucket{le=\"+Inf\"} " + cumulative + "\n");
+            writer.write(name + "_sum " + formatDouble(getSum()) + "\n");
+            writer.write(name + "_count " + cumulative + "\n");
+        }
+    }
+
+    public interface GaugeMBean {
+        double getValue();
+    }
+
+    public static class Gauge extends Metric implements GaugeMBean {
+        private final DoubleSupplier supplier;
+
+        private Gauge(String name, String help, DoubleSupplier supplier) {
+            super(name, help);
+            this.supplier = supplier;
+        }
+
+        @Override
+        public double getValue() {
+            return supplier.getAsDouble();
+        }
+
+        @Override
+        protected String type() {
+            return "gauge";
+        }
+
+        @Override
+        protected Object mBean() throws JMException {
+            return new StandardMBean(this, GaugeMBean.class);
+        }
+
+        @Override
+        protected void writePrometheus(Writer writer) throws IOException {
+            writer.write(name + " " + formatDouble(getValue()) + "\n");
+        }
+    }
+
+}
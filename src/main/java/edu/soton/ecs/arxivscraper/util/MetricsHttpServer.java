@@ -0,0 +1,51 @@
+package edu.soton.ecs.arxivscraper.util;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+// Serves Metrics in the Prometheus text format at /metrics using the JDK's built in HTTP server
+public class MetricsHttpServer implements AutoCloseable {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private HttpServer server;
+
+    public MetricsHttpServer(String host, int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.createContext("/metrics", exchange -> {
+            try {
+                StringWriter body = new StringWriter();
+                Metrics.writePrometheus(body);
+                byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                exchange.sendResponseHeaders(200, bytes.length);
+                try (OutputStream os = exchange.getResponseBody();) {
+                    os.write(bytes);
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+        LOGGER.info("Serving metrics on http://{}:{}/metrics",
+                server.getAddress().getHostString(), server.getAddress().getPort());
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+}
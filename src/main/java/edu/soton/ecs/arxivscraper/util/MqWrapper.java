@@ -2,6 +2,7 @@ package edu.soton.ecs.arxivscraper.util;
 
 import com.google.common.base.Preconditions;
 
+import javax.jms.CompletionListener;
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
 import javax.jms.DeliveryMode;
@@ -12,7 +13,11 @@ import javax.jms.MessageConsumer;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
 import javax.jms.TextMessage;
+import javax.jms.Topic;
 import javax.validation.constraints.NotNull;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class MqWrapper implements AutoCloseable {
 
@@ -21,14 +26,30 @@ public class MqWrapper implements AutoCloseable {
     private String destinationName;
     private boolean isTopic;
 
+    private boolean isTransacted = false;
+    private int commitBatchSize = 100;
+    private boolean isPersistent = false;
+    private int maxInFlight = 0;
+    private boolean isClientAcknowledge = false;
+    private long timeToLive = 0;
+    private String subscriptionName = null;
+
     private Connection connection = null;
     private Session session = null;
+    private Destination destination = null;
     private MessageProducer producer = null;
     private MessageConsumer consumer = null;
 
     private boolean isConnectionOpen = false;
     private boolean isConnectionStarted = false;
 
+    private volatile Semaphore inFlight = null;
+    private AtomicReference<Exception> asyncFailure = new AtomicReference<>();
+    private int uncommitted = 0;
+    // Set when a send or commit fails, so that close() rolls back rather than commits what went before it
+    private boolean isFailed = false;
+
+    // clientId may be null; it only needs to be set, and unique, for durable subscriptions
     public MqWrapper(ConnectionFactory factory, String clientId,
                      String destinationName, boolean isTopic) {
         this.factory = factory;
@@ -37,20 +58,63 @@ public class MqWrapper implements AutoCloseable {
         this.isTopic = isTopic;
     }
 
+    // Sends within a transacted session, committing every commitBatchSize messages
+    public void setTransacted(boolean isTransacted, int commitBatchSize) {
+        this.isTransacted = isTransacted;
+        this.commitBatchSize = commitBatchSize;
+    }
+
+    public void setPersistent(boolean isPersistent) {
+        this.isPersistent = isPersistent;
+    }
+
+    // Sends asynchronously with at most maxInFlight unacknowledged messages; 0 sends synchronously
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        if (maxInFlight > 0) {
+            Metrics.gauge("arxiv_amqp_in_flight", "AMQP messages sent but not yet confirmed by the broker", () -> {
+                Semaphore current = inFlight;
+                return current != null ? this.maxInFlight - current.availablePermits() : 0;
+            });
+        }
+    }
+
+    // Received messages stay unacknowledged until acknowledge(), and are redelivered if the connection
+    // drops or recover() is called first. Ignored for transacted sessions.
+    public void setClientAcknowledge(boolean isClientAcknowledge) {
+        this.isClientAcknowledge = isClientAcknowledge;
+    }
+
+    // Sent messages expire after this many millis; 0 never expires
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    // Receives from the topic through a durable subscription of this name, which keeps messages published
+    // while this consumer is away. Needs a clientId that is unique to this consumer.
+    public void setDurableSubscription(String subscriptionName) {
+        this.subscriptionName = subscriptionName;
+    }
+
     public void open() throws JMSException {
         if (!isConnectionOpen) {
             connection = factory.createConnection();
-            connection.setClientID(clientId);
-            session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-            Destination destination;
+            if (clientId != null)
+                connection.setClientID(clientId);
+            session = connection.createSession(isTransacted, isTransacted ? Session.SESSION_TRANSACTED
+                    : isClientAcknowledge ? Session.CLIENT_ACKNOWLEDGE : Session.AUTO_ACKNOWLEDGE);
             if (isTopic) {
                 destination = session.createTopic(destinationName);
             } else {
                 destination = session.createQueue(destinationName);
             }
             producer = session.createProducer(destination);
-            producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
-            consumer = session.createConsumer(destination);
+            producer.setDeliveryMode(isPersistent ? DeliveryMode.PERSISTENT : DeliveryMode.NON_PERSISTENT);
+            producer.setTimeToLive(timeToLive);
+            inFlight = maxInFlight > 0 ? new Semaphore(maxInFlight) : null;
+            asyncFailure.set(null);
+            uncommitted = 0;
+            isFailed = false;
             isConnectionOpen = true;
         }
     }
@@ -61,7 +125,88 @@ public class MqWrapper implements AutoCloseable {
         if (!isConnectionOpen) {
             open();
         }
-        producer.send(session.createTextMessage(message.toString()));
+        try {
+            TextMessage textMessage = session.createTextMessage(message.toString());
+            if (inFlight == null) {
+                producer.send(textMessage);
+            } else {
+                throwAsyncFailure();
+                inFlight.acquireUninterruptibly();
+                producer.send(textMessage, new CompletionListener() {
+                    @Override
+                    public void onCompletion(Message message) {
+                        inFlight.release();
+                    }
+
+                    @Override
+                    public void onException(Message message, Exception exception) {
+                        asyncFailure.compareAndSet(null, exception);
+                        inFlight.release();
+                    }
+                });
+            }
+        } catch (JMSException | RuntimeException e) {
+            isFailed = true;
+            throw e;
+        }
+        if (isTransacted && ++uncommitted >= commitBatchSize) {
+            commit();
+        }
+    }
+
+    // Sends all messages, then waits for outstanding async sends and commits any open transaction
+    public void sendTextMessages(@NotNull List<?> messages) throws JMSException {
+        Preconditions.checkNotNull(messages);
+
+        for (Object message : messages) {
+            sendTextMessage(message);
+        }
+        flush();
+    }
+
+    public void flush() throws JMSException {
+        if (!isConnectionOpen) {
+            return;
+        }
+        if (inFlight != null) {
+            inFlight.acquireUninterruptibly(maxInFlight);
+            inFlight.release(maxInFlight);
+            try {
+                throwAsyncFailure();
+            } catch (JMSException e) {
+                isFailed = true;
+                throw e;
+            }
+        }
+        if (isTransacted && uncommitted > 0) {
+            commit();
+        }
+    }
+
+    // Also acknowledges every message received in the transaction
+    public void commit() throws JMSException {
+        try {
+            if (inFlight != null) {
+                // Every send in the transaction must have completed before it can be committed
+                inFlight.acquireUninterruptibly(maxInFlight);
+                inFlight.release(maxInFlight);
+                throwAsyncFailure();
+            }
+            session.commit();
+        } catch (JMSException | RuntimeException e) {
+            isFailed = true;
+            throw e;
+        }
+        uncommitted = 0;
+    }
+
+    private void throwAsyncFailure() throws JMSException {
+        Exception exception = asyncFailure.getAndSet(null);
+        if (exception != null) {
+            JMSException jmsException = new JMSException("Asynchronous send failed: " + exception.getMessage());
+            jmsException.setLinkedException(exception);
+            throw jmsException;
+        }
     }
 
     public String receiveTextMessage() throws JMSException {
@@ -74,10 +219,43 @@ public class MqWrapper implements AutoCloseable {
         return null;
     }
 
+    // Waits up to timeoutMillis for a message; returns null on timeout
+    public TextMessage receive(long timeoutMillis) throws JMSException {
+        startIncomingMessages();
+        return (TextMessage) consumer.receive(timeoutMillis);
+    }
+
+    // With client acknowledge, also acknowledges every earlier message received in this session
+    public void acknowledge(@NotNull Message message) throws JMSException {
+        Preconditions.checkNotNull(message);
+
+        message.acknowledge();
+    }
+
+    // Redelivers every unacknowledged message, e.g. after failing to process one. A transacted session
+    // is rolled back instead, dropping its uncommitted sends as well.
+    public void recover() throws JMSException {
+        if (!isConnectionOpen)
+            return;
+        if (isTransacted) {
+            session.rollback();
+            uncommitted = 0;
+            isFailed = false;
+        } else {
+            session.recover();
+        }
+    }
+
     private void startIncomingMessages() throws JMSException {
         if (!isConnectionOpen) {
             open();
         }
+        // Created on first use so that producer-only runs never register a consumer
+        if (consumer == null) {
+            consumer = isTopic && subscriptionName != null
+                    ? session.createDurableSubscriber((Topic) destination, subscriptionName)
+                    : session.createConsumer(destination);
+        }
         if (!isConnectionStarted) {
             connection.start();
             isConnectionStarted = true;
@@ -91,20 +269,36 @@ public class MqWrapper implements AutoCloseable {
         }
     }
 
+    // Sends what is pending and commits on a clean close. After a failed send or commit, an open transaction
+    // is rolled back instead, so none of a partly sent batch is delivered.
     @Override
     public void close() throws Exception {
-        if (producer != null)
-            producer.close();
-        if (consumer != null)
-            consumer.close();
-        if (session != null)
-            session.close();
-        if (connection != null) {
-            connection.stop();
-            connection.close();
+        try {
+            if (!isFailed) {
+                flush();
+            } else if (isTransacted && session != null) {
+                session.rollback();
+            }
+        } finally {
+            if (producer != null)
+                producer.close();
+            if (consumer != null)
+                consumer.close();
+            if (session != null)
+                session.close();
+            if (connection != null) {
+                connection.stop();
+                connection.close();
+            }
+            producer = null;
+            consumer = null;
+            session = null;
+            connection = null;
+            isConnectionOpen = false;
+            isConnectionStarted = false;
+            isFailed = false;
+            uncommitted = 0;
         }
-        isConnectionOpen = false;
-        isConnectionStarted = false;
     }
 
 }
@@ -0,0 +1,162 @@
+package edu.soton.ecs.arxivscraper.util;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.validation.constraints.NotNull;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+// Appends to a single open, buffered file channel, rolling it over by size and/or age.
+// Rotated segments are renamed with a timestamp suffix and optionally gzipped in the background.
+public class RotatingFileWriter implements AutoCloseable {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private Path path;
+    private long rotateBytes;
+    private long rotateIntervalMillis;
+    private boolean gzipRotated;
+
+    private FileChannel channel = null;
+    private OutputStream out = null;
+    private long size;
+    private long openedAt;
+    private ExecutorService gzipExecutor = null;
+
+    public RotatingFileWriter(String file, long rotateBytes, long rotateIntervalMillis, boolean gzipRotated) {
+        this.path = new File(file).toPath();
+        this.rotateBytes = rotateBytes;
+        this.rotateIntervalMillis = rotateIntervalMillis;
+        this.gzipRotated = gzipRotated;
+    }
+
+    public synchronized void write(@NotNull String line) throws IOException {
+        Preconditions.checkNotNull(line);
+
+        write(line.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public synchronized void write(@NotNull byte[] bytes) throws IOException {
+        write(bytes, 0, bytes.length);
+    }
+
+    // Rotation only happens between calls, so a record written in one call is never split across files
+    public synchronized void write(@NotNull byte[] bytes, int offset, int length) throws IOException {
+        Preconditions.checkNotNull(bytes);
+
+        if (out != null && shouldRotate()) {
+            rotate();
+        }
+        if (out == null) {
+            open();
+        }
+        out.write(bytes, offset, length);
+        size += length;
+    }
+
+    // Flushes the buffer and fsyncs; call once per batch rather than per record
+    public synchronized void flush() throws IOException {
+        if (out != null) {
+            out.flush();
+            channel.force(false);
+        }
+    }
+
+    private boolean shouldRotate() {
+        if (rotateBytes > 0 && size >= rotateBytes)
+            return true;
+        return rotateIntervalMillis > 0 && System.currentTimeMillis() - openedAt >= rotateIntervalMillis;
+    }
+
+    private void open() throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null)
+            Files.createDirectories(parent);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+        size = channel.size();
+        openedAt = System.currentTimeMillis();
+    }
+
+    private void closeChannel() throws IOException {
+        if (out != null) {
+            flush();
+            out.close();
+        }
+        out = null;
+        channel = null;
+    }
+
+    private void rotate() throws IOException {
+        closeChannel();
+        String rotatedName = path.getFileName() + "." + DateTimeUtil.format(new Date(), "yyyyMMdd-HHmmss-SSS");
+        Path rotated = path.resolveSibling(rotatedName);
+        for (int i = 1; Files.exists(rotated) || Files.exists(rotated.resolveSibling(rotated.getFileName() + ".gz")); i++) {
+            rotated = path.resolveSibling(rotatedName + "-" + i);
+        }
+        Path rotatedPath = rotated;
+        Files.move(path, rotatedPath, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.info("Rotated {} to {}", path, rotatedPath);
+        if (gzipRotated) {
+            if (gzipExecutor == null)
+                gzipExecutor = Executors.newSingleThreadExecutor(
+                        new ThreadFactoryBuilder().setNameFormat("file-gzip-%d").build());
+            gzipExecutor.submit(() -> gzip(rotatedPath));
+        }
+    }
+
+    private static void gzip(Path source) {
+        Path target = source.resolveSibling(source.getFileName() + ".gz");
+        try (InputStream in = Files.newInputStream(source);
+             OutputStream gz = new GZIPOutputStream(Files.newOutputStream(target), BUFFER_SIZE);) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                gz.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            LOGGER.error("Unable to gzip {}", source, e);
+            return;
+        }
+        try {
+            Files.delete(source);
+        } catch (IOException e) {
+            LOGGER.warn(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeChannel();
+        if (gzipExecutor != null) {
+            gzipExecutor.shutdown();
+            try {
+                gzipExecutor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            gzipExecutor = null;
+        }
+    }
+
+}
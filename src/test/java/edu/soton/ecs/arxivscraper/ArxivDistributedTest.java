@@ -0,0 +1,188 @@
+package edu.soton.ecs.arxivscraper;
+
+import com.sun.net.httpserver.HttpServer;
+import edu.soton.ecs.arxivscraper.util.RotatingFileWriter;
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.jms.ConnectionFactory;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+// A coordinator and two workers over an embedded broker, with Arxiv played by a local server paging through
+// etc/sample.xml. Every entry must end up once in the coordinator's store and output, whichever worker fetched it.
+public class ArxivDistributedTest {
+
+    private static final String SHARD = "cs.AI";
+    private static final int NUM_WORKERS = 2;
+    private static final int PAGE_SIZE = 50;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private List<ArxivEntry> sampleEntries;
+    private String feedHeader;
+    private List<String> feedEntries = new ArrayList<>();
+    private String feedFooter;
+    private final AtomicInteger numRequests = new AtomicInteger();
+
+    private BrokerService broker;
+    private HttpServer server;
+    private ExecutorService workerExecutor;
+    private List<ArxivWorker> workers = new ArrayList<>();
+    private List<Future<?>> workerRuns = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        String sample = new String(Files.readAllBytes(Paths.get("etc", "sample.xml")), StandardCharsets.UTF_8);
+        try (InputStream is = Files.newInputStream(Paths.get("etc", "sample.xml"));) {
+            sampleEntries = new ArxivFeedParser().parse(is).getEntries();
+        }
+        // The sample claims more results than it holds; the server pages through the entries it has
+        int from = sample.indexOf("<entry>");
+        feedHeader = sample.substring(0, from)
+                .replaceFirst("(<opensearch:totalResults[^>]*>)\\d+", "$1" + sampleEntries.size());
+        while (from >= 0) {
+            int to = sample.indexOf("</entry>", from) + "</entry>".length();
+            feedEntries.add(sample.substring(from, to));
+            from = sample.indexOf("<entry>", to);
+        }
+        feedFooter = sample.substring(sample.lastIndexOf("</entry>") + "</entry>".length());
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/query", exchange -> {
+            Map<String, String> params = new HashMap<>();
+            for (NameValuePair param : URLEncodedUtils.parse(exchange.getRequestURI(), StandardCharsets.UTF_8)) {
+                params.put(param.getName(), param.getValue());
+            }
+            int start = Math.min(Integer.parseInt(params.get("start")), feedEntries.size());
+            int end = Math.min(start + Integer.parseInt(params.get("max_results")), feedEntries.size());
+            byte[] body = (feedHeader + String.join("\n  ", feedEntries.subList(start, end)) + feedFooter)
+                    .getBytes(StandardCharsets.UTF_8);
+            numRequests.incrementAndGet();
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody();) {
+                os.write(body);
+            }
+        });
+        server.start();
+
+        broker = new BrokerService();
+        broker.setBrokerName("arxiv");
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.start();
+        broker.waitUntilStarted();
+
+        workerExecutor = Executors.newFixedThreadPool(NUM_WORKERS);
+        for (int i = 0; i < NUM_WORKERS; i++) {
+            ArxivScraper scraper = new ArxivScraper(
+                    "http://127.0.0.1:" + server.getAddress().getPort() + "/api/query", "100", SHARD);
+            scraper.setSharding(0, 1, 0);
+            ArxivWorker worker = new ArxivWorker(connectionFactory(), scraper);
+            workers.add(worker);
+            workerRuns.add(workerExecutor.submit(() -> {
+                worker.run();
+                return null;
+            }));
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (ArxivWorker worker : workers) {
+            worker.stop();
+        }
+        for (Future<?> workerRun : workerRuns) {
+            workerRun.get(30, TimeUnit.SECONDS);
+        }
+        for (ArxivWorker worker : workers) {
+            worker.close();
+        }
+        workerExecutor.shutdown();
+        broker.stop();
+        broker.waitUntilStopped();
+        server.stop(0);
+    }
+
+    @Test
+    public void storesAndOutputsEntriesOnceAtTheCoordinator() throws Exception {
+        File outFile = new File(folder.getRoot(), "out.jsonl");
+        ArxivDbWrapper store = new ArxivDbWrapper(new File(folder.getRoot(), "db.sqlite").getPath(), "arxiv_raw");
+        IngestPipeline pipeline = new IngestPipeline(store, new RotatingFileWriter(outFile.getPath(), 0, 0, false),
+                null);
+        // Only used to close the pipeline and store, as ArxivScraper.main does
+        ArxivHarvester harvester = new ArxivHarvester(new ArxivScraper("http://127.0.0.1", "100", SHARD), store,
+                pipeline);
+        long newestMillis = sampleEntries.stream().mapToLong(arxivEntry -> arxivEntry.getUpdated().getTime()).max()
+                .getAsLong();
+        try {
+            store.initalize();
+            try (ArxivCoordinator coordinator = newCoordinator(store, pipeline);) {
+                coordinator.run(0, false, true);
+            }
+            assertEquals(sampleEntries.size(), store.getCursor(ArxivHarvester.BACKFILL_CURSOR_PREFIX + SHARD, 0L));
+            assertEquals(sampleEntries.size() / PAGE_SIZE, numRequests.get());
+
+            // One round of polls fetches every entry again, which the coordinator's pipeline drops as stored
+            try (ArxivCoordinator coordinator = newCoordinator(store, pipeline);) {
+                coordinator.run(0, true, false);
+            }
+            assertEquals(newestMillis, store.getCursor(ArxivHarvester.HWM_CURSOR_PREFIX + SHARD, 0L));
+            assertEquals(2 * sampleEntries.size() / PAGE_SIZE, numRequests.get());
+
+            Map<String, ArxivEntry> stored = store.getAllArxivEntries().stream()
+                    .collect(Collectors.toMap(ArxivEntry::getId, arxivEntry -> arxivEntry));
+            assertEquals(sampleEntries.size(), stored.size());
+            for (ArxivEntry expected : sampleEntries) {
+                ArxivEntry actual = stored.get(expected.getId());
+                assertEquals(expected.getId(), expected.getTitle(), actual.getTitle());
+                assertEquals(expected.getId(), expected.getUpdated(), actual.getUpdated());
+                assertEquals(expected.getId(), expected.getCategories(), actual.getCategories());
+            }
+        } finally {
+            harvester.close();
+        }
+        assertEquals(sampleEntries.size(), Files.readAllLines(outFile.toPath()).size());
+    }
+
+    private ArxivCoordinator newCoordinator(ArxivStore store, IngestPipeline pipeline) {
+        ArxivCoordinator coordinator = new ArxivCoordinator(connectionFactory(), store, pipeline,
+                Collections.singletonList(SHARD));
+        coordinator.setQueues("arxiv.jobs.queue", "arxiv.jobs.results", null);
+        coordinator.setPoll(PAGE_SIZE, sampleEntries.size());
+        coordinator.setBackfill(PAGE_SIZE, 3);
+        return coordinator;
+    }
+
+    // Prefetch 1, as in config.ini, so that both workers take jobs
+    private ConnectionFactory connectionFactory() {
+        return new ActiveMQConnectionFactory("vm://arxiv?create=false&jms.prefetchPolicy.all=1");
+    }
+
+}
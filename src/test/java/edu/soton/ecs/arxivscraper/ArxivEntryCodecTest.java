@@ -0,0 +1,181 @@
+package edu.soton.ecs.arxivscraper;
+
+import org.apache.commons.lang3.SerializationUtils;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static edu.soton.ecs.arxivscraper.ArxivFeedParserTest.assertEntryEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+// Entries are stored in this format, so every variant must decode to exactly what was encoded
+public class ArxivEntryCodecTest {
+
+    @Test
+    public void roundTripsSampleInEveryFormat() throws Exception {
+        List<ArxivEntry> entries;
+        try (InputStream is = Files.newInputStream(Paths.get("etc", "sample.xml"));) {
+            entries = new ArxivFeedParser().parse(is).getEntries();
+        }
+        for (ArxivEntryCodec codec : new ArxivEntryCodec[]{new ArxivEntryCodec(), new ArxivEntryCodec(true, 0),
+                newDictionaryCodec(entries)}) {
+            for (ArxivEntry arxivEntry : entries) {
+                assertEntryEquals(arxivEntry, codec.decode(codec.encode(arxivEntry)));
+            }
+        }
+    }
+
+    @Test
+    public void roundTripsNullFieldsAndEmptyLists() {
+        ArxivEntry nulls = new ArxivEntry();
+        ArxivEntry empties = newEntry();
+        empties.setAuthors(new ArrayList<>());
+        empties.setLinks(new ArrayList<>());
+        empties.setCategories(new ArrayList<>());
+        empties.setSummary("");
+        for (ArxivEntryCodec codec : new ArxivEntryCodec[]{new ArxivEntryCodec(), newDictionaryCodec(
+                Collections.emptyList())}) {
+            ArxivEntry decoded = codec.decode(codec.encode(nulls));
+            assertEntryEquals(nulls, decoded);
+            assertNull(decoded.getAuthors());
+            assertNull(decoded.getCategories());
+
+            decoded = codec.decode(codec.encode(empties));
+            assertEntryEquals(empties, decoded);
+            assertEquals(Collections.emptyList(), decoded.getAuthors());
+            assertEquals(Collections.emptyList(), decoded.getCategories());
+            assertEquals("", decoded.getSummary());
+        }
+    }
+
+    @Test
+    public void roundTripsDatesBeforeTheEpoch() {
+        ArxivEntry arxivEntry = newEntry();
+        arxivEntry.setPublished(new Date(-1L));
+        arxivEntry.setUpdated(new Date(Long.MIN_VALUE / 2));
+        ArxivEntryCodec codec = new ArxivEntryCodec();
+        assertEntryEquals(arxivEntry, codec.decode(codec.encode(arxivEntry)));
+    }
+
+    @Test
+    public void deflatesOnlyLongSummaries() {
+        ArxivEntryCodec codec = new ArxivEntryCodec(true, 256);
+        ArxivEntry arxivEntry = newEntry();
+        byte[] raw = codec.encode(arxivEntry);
+        assertEquals(0, raw[1]);
+
+        StringBuilder summary = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            summary.append("We study the ground state of the Hubbard model. ");
+        }
+        arxivEntry.setSummary(summary.toString());
+        raw = codec.encode(arxivEntry);
+        assertEquals(1, raw[1]);
+        assertEntryEquals(arxivEntry, codec.decode(raw));
+        // Deflated rows decode without compression enabled
+        assertEntryEquals(arxivEntry, new ArxivEntryCodec().decode(raw));
+    }
+
+    @Test
+    public void keepsCategoriesWithoutCodesAsStrings() {
+        ArxivEntry arxivEntry = newEntry();
+        arxivEntry.setCategories(Arrays.asList("math.ST", "62H12, 62F15", "F.2.2; G.2.2", "stat.ML"));
+        arxivEntry.setPrimaryCategory("62H12, 62F15");
+        CategoryDictionary dictionary = new CategoryDictionary();
+        dictionary.put(0, "math.ST");
+        dictionary.put(1, "stat.ML");
+        ArxivEntryCodec codec = new ArxivEntryCodec();
+        codec.setCategoryDictionary(dictionary);
+
+        byte[] raw = codec.encode(arxivEntry);
+        assertEquals(ArxivEntryCodec.FORMAT_V2, raw[0]);
+        ArxivEntry decoded = codec.decode(raw);
+        assertEntryEquals(arxivEntry, decoded);
+        assertSame(dictionary.getName(0), decoded.getCategories().get(0));
+    }
+
+    @Test
+    public void readsV1WithDictionaryLoaded() {
+        ArxivEntry arxivEntry = newEntry();
+        byte[] raw = new ArxivEntryCodec().encode(arxivEntry);
+        assertEquals(ArxivEntryCodec.FORMAT_V1, raw[0]);
+
+        ArxivEntryCodec codec = newDictionaryCodec(Collections.singletonList(arxivEntry));
+        ArxivEntry decoded = codec.decode(raw);
+        assertEntryEquals(arxivEntry, decoded);
+        // Known categories are shared with the dictionary, as in V2
+        ArxivEntry reference = codec.decode(codec.encode(arxivEntry));
+        assertSame(reference.getPrimaryCategory(), decoded.getPrimaryCategory());
+    }
+
+    @Test
+    public void readsLegacySerializedRows() {
+        ArxivEntry arxivEntry = newEntry();
+        byte[] raw = SerializationUtils.serialize(arxivEntry);
+        assertTrue(ArxivEntryCodec.isLegacySerialized(raw));
+        assertEntryEquals(arxivEntry, new ArxivEntryCodec().decode(raw));
+        assertFalse(ArxivEntryCodec.isLegacySerialized(new ArxivEntryCodec().encode(arxivEntry)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsV2WithoutDictionary() {
+        ArxivEntry arxivEntry = newEntry();
+        byte[] raw = newDictionaryCodec(Collections.singletonList(arxivEntry)).encode(arxivEntry);
+        new ArxivEntryCodec().decode(raw);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownFormat() {
+        new ArxivEntryCodec().decode(new byte[]{9, 0});
+    }
+
+    private static ArxivEntry newEntry() {
+        ArxivEntry arxivEntry = new ArxivEntry();
+        arxivEntry.setId("http://arxiv.org/abs/1701.00001v2");
+        arxivEntry.setTitle("Über die Quantenmechanik — ein Überblick");
+        arxivEntry.setPublished(new Date(1483228800000L));
+        arxivEntry.setUpdated(new Date(1485907200123L));
+        arxivEntry.setSummary("A short summary.");
+        arxivEntry.setAuthors(Arrays.asList("A. Author", "B. Autor"));
+        ArxivEntry.Link link = new ArxivEntry.Link();
+        link.setHref("http://arxiv.org/abs/1701.00001v2");
+        link.setRel("alternate");
+        link.setType("text/html");
+        ArxivEntry.Link pdf = new ArxivEntry.Link();
+        pdf.setTitle("pdf");
+        pdf.setHref("http://arxiv.org/pdf/1701.00001v2");
+        pdf.setRel("related");
+        pdf.setType("application/pdf");
+        arxivEntry.setLinks(Arrays.asList(link, pdf));
+        arxivEntry.setCategories(Arrays.asList("quant-ph", "cond-mat.str-el"));
+        arxivEntry.setPrimaryCategory("quant-ph");
+        arxivEntry.setComment("12 pages");
+        arxivEntry.setDoi("10.1000/xyz123");
+        return arxivEntry;
+    }
+
+    // As the sqlite backend builds it, with a code for every taxonomy category of the entries
+    private static ArxivEntryCodec newDictionaryCodec(List<ArxivEntry> entries) {
+        CategoryDictionary dictionary = new CategoryDictionary();
+        for (ArxivEntry arxivEntry : entries) {
+            for (String category : dictionary.findUnknown(arxivEntry.getCategories())) {
+                dictionary.put(dictionary.size(), category);
+            }
+        }
+        ArxivEntryCodec codec = new ArxivEntryCodec(true, 256);
+        codec.setCategoryDictionary(dictionary);
+        return codec;
+    }
+
+}
@@ -0,0 +1,92 @@
+package edu.soton.ecs.arxivscraper;
+
+import com.rometools.rome.feed.synd.SyndEntry;
+import com.rometools.rome.feed.synd.SyndFeed;
+import com.rometools.rome.io.SyndFeedInput;
+import com.rometools.rome.io.XmlReader;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+// The StAX parser replaced ROME and must map etc/sample.xml to the same entries
+public class ArxivFeedParserTest {
+
+    private static final Path SAMPLE = Paths.get("etc", "sample.xml");
+
+    @Test
+    public void parsesSampleLikeRome() throws Exception {
+        List<ArxivEntry> expected = new ArrayList<>();
+        try (InputStream is = Files.newInputStream(SAMPLE);) {
+            SyndFeed feed = new SyndFeedInput().build(new XmlReader(is));
+            for (SyndEntry syndEntry : feed.getEntries()) {
+                expected.add(ArxivScraper.syndEntryToArxivEntry(syndEntry));
+            }
+        }
+        List<ArxivEntry> actual;
+        try (InputStream is = Files.newInputStream(SAMPLE);) {
+            actual = new ArxivFeedParser().parse(is).getEntries();
+        }
+
+        assertFalse(expected.isEmpty());
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEntryEquals(expected.get(i), actual.get(i));
+        }
+    }
+
+    @Test
+    public void streamsEntriesInFeedOrder() throws Exception {
+        List<ArxivEntry> streamed = new ArrayList<>();
+        ArxivFeed feed;
+        try (InputStream is = Files.newInputStream(SAMPLE);) {
+            feed = new ArxivFeedParser().parse(is, streamed::add);
+        }
+        assertEquals(feed.getNumEntries(), streamed.size());
+        try (InputStream is = Files.newInputStream(SAMPLE);) {
+            List<ArxivEntry> parsed = new ArxivFeedParser().parse(is).getEntries();
+            for (int i = 0; i < parsed.size(); i++) {
+                assertEntryEquals(parsed.get(i), streamed.get(i));
+            }
+        }
+    }
+
+    // ArxivEntry has no equals, so every field is compared here, links in order; shared with the other tests
+    static void assertEntryEquals(ArxivEntry expected, ArxivEntry actual) {
+        String id = expected.getId();
+        assertEquals(id, expected.getId(), actual.getId());
+        assertEquals(id, expected.getTitle(), actual.getTitle());
+        assertEquals(id, expected.getPublished(), actual.getPublished());
+        assertEquals(id, expected.getUpdated(), actual.getUpdated());
+        assertEquals(id, expected.getSummary(), actual.getSummary());
+        assertEquals(id, expected.getAuthors(), actual.getAuthors());
+        assertEquals(id, expected.getCategories(), actual.getCategories());
+        assertEquals(id, expected.getPrimaryCategory(), actual.getPrimaryCategory());
+        assertEquals(id, expected.getComment(), actual.getComment());
+        assertEquals(id, expected.getDoi(), actual.getDoi());
+        assertEquals(id, expected.getJournalRef(), actual.getJournalRef());
+
+        if (expected.getLinks() == null) {
+            assertNull(id, actual.getLinks());
+            return;
+        }
+        assertEquals(id, expected.getLinks().size(), actual.getLinks().size());
+        for (int i = 0; i < expected.getLinks().size(); i++) {
+            ArxivEntry.Link expectedLink = expected.getLinks().get(i);
+            ArxivEntry.Link actualLink = actual.getLinks().get(i);
+            assertEquals(id, expectedLink.getTitle(), actualLink.getTitle());
+            assertEquals(id, expectedLink.getHref(), actualLink.getHref());
+            assertEquals(id, expectedLink.getRel(), actualLink.getRel());
+            assertEquals(id, expectedLink.getType(), actualLink.getType());
+        }
+    }
+
+}
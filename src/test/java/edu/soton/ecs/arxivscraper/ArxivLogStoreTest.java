@@ -0,0 +1,218 @@
+package edu.soton.ecs.arxivscraper;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+// Stores are opened without the compaction thread; compact() is called directly
+public class ArxivLogStoreTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void keepsEntriesAndCursorsAcrossReopen() throws Exception {
+        ArxivLogStore store = newStore();
+        List<ArxivEntry> changed = store.upsertEntries(newEntries(0, 30, 1), Collections.singletonMap("hwm", 42L));
+        assertEquals(30, changed.size());
+        // Versions already stored are not appended again
+        assertEquals(0, store.upsertEntries(newEntries(0, 30, 1)).size());
+        store.close();
+
+        store = newStore();
+        try {
+            assertEquals(42L, store.getCursor("hwm", 0L));
+            assertEntries(store, 30, 1);
+            assertEquals(1, store.getStoredVersion(baseId(0)));
+            assertEquals(-1, store.getStoredVersion(baseId(30)));
+
+            store.upsertEntries(newEntries(0, 10, 2));
+        } finally {
+            store.close();
+        }
+
+        // Without a checkpoint every segment is scanned
+        assertTrue(new File(folder.getRoot(), "index.checkpoint").delete());
+        store = newStore();
+        try {
+            assertEquals(42L, store.getCursor("hwm", 0L));
+            assertEquals(2, store.getStoredVersion(baseId(0)));
+            assertEquals(1, store.getStoredVersion(baseId(10)));
+            assertEquals(30, streamAll(store).size());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void dropsTornRecordAtTheTail() throws Exception {
+        ArxivLogStore store = newStore();
+        store.upsertEntries(newEntries(0, 5, 1));
+        store.close();
+
+        // Appended after the checkpoint, then left open as if the process crashed
+        ArxivLogStore crashed = newStore();
+        crashed.upsertEntries(newEntries(5, 8, 1));
+        File segmentFile = LogSegment.file(folder.getRoot(), 0);
+        List<Integer> offsets = new ArrayList<>();
+        LogSegment.open(segmentFile, 0).recover(0, offsets::add);
+        assertEquals(8, offsets.size());
+        try (RandomAccessFile raf = new RandomAccessFile(segmentFile, "rw");) {
+            long position = offsets.get(7) + 30;
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0xFF);
+        }
+
+        store = newStore();
+        try {
+            assertEntries(store, 7, 1);
+            assertEquals(-1, store.getStoredVersion(baseId(7)));
+            // The torn record is overwritten by the next append
+            store.upsertEntries(newEntries(7, 8, 1));
+        } finally {
+            store.close();
+        }
+        assertTrue(new File(folder.getRoot(), "index.checkpoint").delete());
+        store = newStore();
+        try {
+            assertEntries(store, 8, 1);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void compactsSupersededSegments() throws Exception {
+        ArxivLogStore store = newStore();
+        try {
+            store.upsertEntries(newEntries(0, 60, 1), Collections.singletonMap("hwm", 1L));
+            store.upsertEntries(newEntries(0, 60, 2), Collections.singletonMap("hwm", 2L));
+            int numSegments = countSegments();
+            assertTrue(numSegments > 2);
+
+            store.compact();
+            assertTrue(countSegments() < numSegments);
+            assertFalse(LogSegment.file(folder.getRoot(), 0).exists());
+            assertEquals(2L, store.getCursor("hwm", 0L));
+            assertEntries(store, 60, 2);
+        } finally {
+            store.close();
+        }
+
+        store = newStore();
+        try {
+            assertEquals(2L, store.getCursor("hwm", 0L));
+            assertEntries(store, 60, 2);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void holdsOffCompactionWhileStreaming() throws Exception {
+        ArxivLogStore store = newStore();
+        try {
+            store.upsertEntries(newEntries(0, 60, 1));
+            store.upsertEntries(newEntries(0, 60, 2));
+            int numSegments = countSegments();
+
+            List<ArxivEntry> streamed = new ArrayList<>();
+            try (Stream<ArxivEntry> arxivEntries = store.streamArxivEntries(new ArxivEntryQuery());) {
+                arxivEntries.limit(10).forEach(streamed::add);
+                store.compact();
+                assertEquals(numSegments, countSegments());
+            }
+            try (Stream<ArxivEntry> arxivEntries = store.streamArxivEntries(new ArxivEntryQuery());) {
+                store.compact();
+                arxivEntries.forEach(streamed::add);
+            }
+            assertEquals(numSegments, countSegments());
+            assertEquals(10 + 60, streamed.size());
+            assertEquals(60, streamed.stream().skip(10).map(ArxivEntry::getId).distinct().count());
+
+            store.compact();
+            assertTrue(countSegments() < numSegments);
+            assertEquals(60, streamAll(store).size());
+        } finally {
+            store.close();
+        }
+    }
+
+    private ArxivLogStore newStore() throws Exception {
+        ArxivLogStore store = new ArxivLogStore(folder.getRoot().getPath());
+        store.setSegmentSize(SEGMENT_SIZE);
+        store.setExpectedEntries(16);
+        store.setCompaction(0.5, 0);
+        store.initalize();
+        return store;
+    }
+
+    private int countSegments() {
+        File[] files = folder.getRoot().listFiles((dir, name) -> LogSegment.parseId(name) >= 0);
+        return files != null ? files.length : 0;
+    }
+
+    private static List<ArxivEntry> streamAll(ArxivLogStore store) {
+        try (Stream<ArxivEntry> arxivEntries = store.streamArxivEntries(new ArxivEntryQuery());) {
+            return arxivEntries.collect(Collectors.toList());
+        }
+    }
+
+    // Every paper below numEntries is stored once, at the given version
+    private static void assertEntries(ArxivLogStore store, int numEntries, int version) {
+        Map<String, ArxivEntry> streamed = new HashMap<>();
+        for (ArxivEntry arxivEntry : streamAll(store)) {
+            assertNull(arxivEntry.getId(), streamed.put(ArxivId.parse(arxivEntry.getId()).getBaseId(), arxivEntry));
+        }
+        assertEquals(numEntries, streamed.size());
+        for (int i = 0; i < numEntries; i++) {
+            ArxivEntry expected = newEntry(i, version);
+            ArxivFeedParserTest.assertEntryEquals(expected, streamed.get(baseId(i)));
+            ArxivFeedParserTest.assertEntryEquals(expected, store.getArxivEntry(baseId(i)));
+        }
+    }
+
+    private static List<ArxivEntry> newEntries(int from, int to, int version) {
+        List<ArxivEntry> arxivEntries = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            arxivEntries.add(newEntry(i, version));
+        }
+        return arxivEntries;
+    }
+
+    private static ArxivEntry newEntry(int i, int version) {
+        ArxivEntry arxivEntry = new ArxivEntry();
+        arxivEntry.setId("http://arxiv.org/abs/" + baseId(i) + "v" + version);
+        arxivEntry.setTitle("Paper " + i + " version " + version);
+        arxivEntry.setUpdated(new Date(1485907200000L + i * 1000L + version * 1000000L));
+        arxivEntry.setSummary("A short summary.");
+        arxivEntry.setCategories(Collections.singletonList("cs.AI"));
+        arxivEntry.setPrimaryCategory("cs.AI");
+        return arxivEntry;
+    }
+
+    private static String baseId(int i) {
+        return String.format("1701.%05d", i);
+    }
+
+}